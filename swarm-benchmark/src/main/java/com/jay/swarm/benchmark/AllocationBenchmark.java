@@ -0,0 +1,63 @@
+package com.jay.swarm.benchmark;
+
+import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.network.BaseClient;
+import com.jay.swarm.common.network.BaseServer;
+import com.jay.swarm.common.network.ShardedFileSender;
+import com.jay.swarm.common.network.callback.DefaultFileTransferCallback;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * <p>
+ *  内存分配测试
+ *  在本机回环上持续用拷贝模式上传文件（分片数据经过分配器），统计期间的GC次数和耗时。
+ *  分配器在进程内只创建一次，池化和非池化需要分别启动进程运行：
+ *
+ *  java -cp swarm-benchmark-jar-with-dependencies.jar com.jay.swarm.benchmark.AllocationBenchmark pooled 60
+ *  java -cp swarm-benchmark-jar-with-dependencies.jar com.jay.swarm.benchmark.AllocationBenchmark unpooled 60
+ *
+ *  参数：分配器（pooled / unpooled，默认pooled）、持续时间秒（默认30）、文件大小MB（默认256）、端口（默认19600）。
+ *  建议固定堆大小（如 -Xms1g -Xmx1g）后比较两次输出的GC次数。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 10:45
+ */
+public class AllocationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        boolean pooled = args.length < 1 || !"unpooled".equals(args[0]);
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+        long fileSize = (args.length > 2 ? Long.parseLong(args[2]) : 256) * 1024 * 1024;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 19600;
+
+        Config config = LoopbackSupport.config("allocator.pooled", String.valueOf(pooled));
+        BaseServer server = LoopbackSupport.startAckServer(config, port);
+        BaseClient client = new BaseClient(config);
+        File file = LoopbackSupport.tempFile(fileSize);
+        // 拷贝模式，分片从分配器申请直接内存
+        ShardedFileSender sender = new ShardedFileSender(client, new DefaultFileTransferCallback(), false, 16);
+
+        // 预热
+        sender.send("127.0.0.1", port, file, UUID.randomUUID().toString());
+
+        long gcCount = LoopbackSupport.gcCount();
+        long gcTime = LoopbackSupport.gcTime();
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000_000_000L;
+        long sent = 0;
+        while(System.nanoTime() < deadline){
+            sender.send("127.0.0.1", port, file, UUID.randomUUID().toString());
+            sent += fileSize;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("allocator: %s, sent: %d MB in %.1f s, throughput: %.1f MB/s, gc count: %d, gc time: %d ms%n",
+                pooled ? "pooled" : "unpooled", sent >> 20, elapsed, (sent >> 20) / elapsed,
+                LoopbackSupport.gcCount() - gcCount, LoopbackSupport.gcTime() - gcTime);
+        client.shutdown();
+        System.exit(0);
+    }
+}
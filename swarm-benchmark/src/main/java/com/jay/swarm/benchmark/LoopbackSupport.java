@@ -0,0 +1,117 @@
+package com.jay.swarm.benchmark;
+
+import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.network.BaseServer;
+import com.jay.swarm.common.network.entity.NetworkPacket;
+import com.jay.swarm.common.network.entity.PacketTypes;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.ResourceLeakDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ *  本机回环测试的公共部分
+ *  接收端只回复分片，不写磁盘，测出的是网络栈和内存分配的开销。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 10:30
+ */
+final class LoopbackSupport {
+
+    private LoopbackSupport(){
+
+    }
+
+    /**
+     * 由键值对创建配置
+     * @param keyValues key1, value1, key2, value2 ...
+     * @return Config
+     */
+    static Config config(String... keyValues){
+        Properties properties = new Properties();
+        for(int i = 0; i + 1 < keyValues.length; i += 2){
+            properties.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return new Config(properties);
+    }
+
+    /**
+     * 启动只回复分片的接收端
+     * @param config 配置
+     * @param port 端口
+     * @return BaseServer
+     */
+    static BaseServer startAckServer(Config config, int port){
+        BaseServer server = new BaseServer(config);
+        server.addHandler(new AckHandler());
+        server.bind(port);
+        // bind开启了ADVANCED泄漏检测，采样的缓冲区记录访问栈，会拉低测出的吞吐
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.DISABLED);
+        return server;
+    }
+
+    /**
+     * 创建随机内容的临时文件
+     * @param size 文件大小
+     * @return 文件，JVM退出时删除
+     * @throws IOException IOException
+     */
+    static File tempFile(long size) throws IOException {
+        File file = File.createTempFile("swarm-benchmark", ".data");
+        file.deleteOnExit();
+        byte[] block = new byte[1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(block);
+        try(RandomAccessFile out = new RandomAccessFile(file, "rw")){
+            for(long written = 0; written < size; written += block.length){
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 所有垃圾收集器的累计次数
+     */
+    static long gcCount(){
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * 所有垃圾收集器的累计耗时，毫秒
+     */
+    static long gcTime(){
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * 分片回复TRANSFER_RESPONSE，其他请求回复SUCCESS
+     */
+    @ChannelHandler.Sharable
+    private static final class AckHandler extends SimpleChannelInboundHandler<NetworkPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, NetworkPacket packet) {
+            short type = packet.getType() == PacketTypes.TRANSFER_FILE_BODY ? PacketTypes.TRANSFER_RESPONSE : PacketTypes.SUCCESS;
+            NetworkPacket response = NetworkPacket.builder().id(packet.getId()).type(type).build();
+            packet.release();
+            ctx.channel().writeAndFlush(response);
+        }
+    }
+}
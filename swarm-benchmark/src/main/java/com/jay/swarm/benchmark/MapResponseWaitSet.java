@@ -0,0 +1,51 @@
+package com.jay.swarm.benchmark;
+
+import io.netty.channel.Channel;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *  改为环形数组之前的ResponseWaitSet，作为ResponseWaitSetBenchmark的对照
+ *  报文ID装箱为Integer，等待者保存在ConcurrentHashMap中。
+ *  只保留添加、绑定连接和完成，超时在测试中不使用。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 19:30
+ */
+final class MapResponseWaitSet {
+    /**
+     * key: id, value: 等待者
+     */
+    private final Map<Integer, Waiter> waitSet = new ConcurrentHashMap<>(256);
+
+    void addWaiter(Integer packetId, CompletableFuture<Object> future){
+        waitSet.put(packetId, new Waiter(future));
+    }
+
+    void bind(Integer packetId, Channel channel){
+        Waiter waiter = waitSet.get(packetId);
+        if(waiter != null){
+            waiter.channel = channel;
+        }
+    }
+
+    void complete(Integer packetId, Object object){
+        Waiter remove = waitSet.remove(packetId);
+        if(remove != null){
+            remove.future.complete(object);
+        }
+    }
+
+    private static final class Waiter {
+        private final CompletableFuture<Object> future;
+        private volatile Channel channel;
+
+        Waiter(CompletableFuture<Object> future) {
+            this.future = future;
+        }
+    }
+}
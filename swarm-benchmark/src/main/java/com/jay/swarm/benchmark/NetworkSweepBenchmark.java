@@ -0,0 +1,115 @@
+package com.jay.swarm.benchmark;
+
+import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.config.NetworkConfig;
+import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.network.BaseClient;
+import com.jay.swarm.common.network.BaseServer;
+import com.jay.swarm.common.network.ShardedFileSender;
+import com.jay.swarm.common.network.TransportFactory;
+import com.jay.swarm.common.network.callback.DefaultFileTransferCallback;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * <p>
+ *  网络参数扫描
+ *  在本机回环上用零拷贝、条带发送持续上传文件，对每组参数测一次吞吐：
+ *  SO_SNDBUF/SO_RCVBUF（两端相同）、写缓冲高低水位、线程数（服务端worker线程、客户端线程和条带数相同）。
+ *  每组参数使用新的服务端、客户端和端口，组之间互不影响。
+ *
+ *  java -cp swarm-benchmark-jar-with-dependencies.jar com.jay.swarm.benchmark.NetworkSweepBenchmark 10
+ *
+ *  参数：每组持续时间秒（默认10）、文件大小MB（默认256）、起始端口（默认19700）。
+ *  扫描的取值可以用系统属性覆盖，逗号分隔：
+ *  -Dsweep.buffers=0,1048576,4194304,16777216  socket缓冲区，字节，0表示系统默认
+ *  -Dsweep.watermarks=1,2,4                   低水位的分片数，高水位是低水位的两倍
+ *  -Dsweep.threads=1,2,4                      线程数和条带数
+ *  缓冲区大小受内核net.core.wmem_max/rmem_max限制，超过的部分被截断，比较大缓冲区前先调大这两个值。
+ *  回环没有真实网卡的延迟和丢包，结果只用于比较参数的相对影响。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 18:20
+ */
+public class NetworkSweepBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : 256) * 1024 * 1024;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 19700;
+
+        int[] buffers = values("sweep.buffers", "0,1048576,4194304,16777216");
+        int[] watermarks = values("sweep.watermarks", "1,2,4");
+        int[] threads = values("sweep.threads", "1,2,4");
+
+        File file = LoopbackSupport.tempFile(fileSize);
+        System.out.printf("transport: %s, file: %d MB, %d s per case%n",
+                TransportFactory.name(NetworkConfig.load(null)), fileSize >> 20, seconds);
+        System.out.println("buffer(KB)\tlow/high(KB)\tthreads\tthroughput(MB/s)");
+        double best = 0;
+        String bestCase = null;
+        for (int buffer : buffers) {
+            for (int watermark : watermarks) {
+                for (int thread : threads) {
+                    int low = watermark * SwarmConstants.DEFAULT_SHARD_SIZE;
+                    double throughput = run(port++, file, seconds, buffer, low, low * 2, thread);
+                    String line = String.format("%d\t%d/%d\t%d\t%.1f", buffer >> 10, low >> 10, low >> 9, thread, throughput);
+                    System.out.println(line);
+                    if(throughput > best){
+                        best = throughput;
+                        bestCase = line;
+                    }
+                }
+            }
+        }
+        System.out.println("best: " + bestCase);
+        System.exit(0);
+    }
+
+    /**
+     * 用一组参数持续发送文件
+     * @return 吞吐量，MB/s
+     */
+    private static double run(int port, File file, long seconds, int buffer, int low, int high, int threads) throws Exception {
+        Config config = LoopbackSupport.config(
+                "socket.sndbuf", String.valueOf(buffer),
+                "socket.rcvbuf", String.valueOf(buffer),
+                "write.buffer.low", String.valueOf(low),
+                "write.buffer.high", String.valueOf(high),
+                "server.worker.threads", String.valueOf(threads),
+                "client.threads", String.valueOf(threads),
+                "client.pool.max", String.valueOf(threads));
+        BaseServer server = LoopbackSupport.startAckServer(config, port);
+        BaseClient client = new BaseClient(config);
+        try{
+            ShardedFileSender sender = new ShardedFileSender(client, new DefaultFileTransferCallback(),
+                    true, SwarmConstants.DEFAULT_TRANSFER_WINDOW, threads);
+            // 预热，建立连接
+            sender.send("127.0.0.1", port, file, UUID.randomUUID().toString());
+
+            long start = System.nanoTime();
+            long deadline = start + seconds * 1000_000_000L;
+            long sent = 0;
+            while(System.nanoTime() < deadline){
+                sender.send("127.0.0.1", port, file, UUID.randomUUID().toString());
+                sent += file.length();
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            return (sent >> 20) / elapsed;
+        }finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private static int[] values(String property, String defaultValue){
+        String[] parts = System.getProperty(property, defaultValue).split(",");
+        int[] values = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
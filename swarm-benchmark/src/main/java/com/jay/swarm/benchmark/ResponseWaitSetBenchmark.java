@@ -0,0 +1,109 @@
+package com.jay.swarm.benchmark;
+
+import com.jay.swarm.common.network.ResponseWaitSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  ResponseWaitSet微基准测试
+ *  比较环形数组版本和原来的ConcurrentHashMap版本（MapResponseWaitSet）在多线程下添加、完成等待者的吞吐。
+ *  和BaseClient一样，所有线程从同一个计数器取报文ID。每个线程保持inflight个未完成的请求：
+ *  每次操作先完成自己最早的请求，再添加一个新请求，测的是一次请求-回复在等待队列上的开销。
+ *  inflight乘线程数超过环的大小（4096）时，部分等待者进入溢出表。
+ *
+ *  java -cp swarm-benchmark-jar-with-dependencies.jar org.openjdk.jmh.Main ResponseWaitSetBenchmark
+ *  java -cp swarm-benchmark-jar-with-dependencies.jar org.openjdk.jmh.Main ResponseWaitSetBenchmark -t 16 -p inflight=256
+ *
+ *  -t 线程数（默认4），-p inflight=... 每个线程的未完成请求数，-prof gc 可以同时比较每次操作分配的内存。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 19:30
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ResponseWaitSetBenchmark {
+    private static final Object RESPONSE = new Object();
+
+    @Param({"1", "256", "2048"})
+    private int inflight;
+
+    private final AtomicInteger idProvider = new AtomicInteger(1);
+    private final MapResponseWaitSet mapWaitSet = new MapResponseWaitSet();
+    private final ResponseWaitSet ringWaitSet = new ResponseWaitSet();
+
+    /**
+     * 每个线程未完成的请求ID，按添加顺序循环使用
+     */
+    @State(Scope.Thread)
+    public static class Outstanding {
+        private int[] ids;
+        private int next;
+        private boolean full;
+
+        @Setup
+        public void setUp(ResponseWaitSetBenchmark benchmark){
+            ids = new int[benchmark.inflight];
+        }
+
+        /**
+         * 取出最早的请求ID的位置，full为false时该位置还没有请求
+         */
+        int advance(){
+            int slot = next;
+            if(++next == ids.length){
+                next = 0;
+                full = true;
+            }
+            return slot;
+        }
+    }
+
+    @Benchmark
+    public CompletableFuture<Object> ring(Outstanding outstanding){
+        boolean full = outstanding.full;
+        int slot = outstanding.advance();
+        if(full){
+            ringWaitSet.complete(outstanding.ids[slot], RESPONSE);
+        }
+        int id = idProvider.getAndIncrement();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        ringWaitSet.addWaiter(id, future);
+        outstanding.ids[slot] = id;
+        return future;
+    }
+
+    @Benchmark
+    public CompletableFuture<Object> map(Outstanding outstanding){
+        boolean full = outstanding.full;
+        int slot = outstanding.advance();
+        if(full){
+            mapWaitSet.complete(outstanding.ids[slot], RESPONSE);
+        }
+        int id = idProvider.getAndIncrement();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        mapWaitSet.addWaiter(id, future);
+        outstanding.ids[slot] = id;
+        return future;
+    }
+}
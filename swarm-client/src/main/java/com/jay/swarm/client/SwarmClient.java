@@ -4,16 +4,24 @@ import com.jay.swarm.client.download.DownloadHelper;
 import com.jay.swarm.client.handler.SwarmClientHandler;
 import com.jay.swarm.client.upload.UploadHelper;
 import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.constants.SwarmConstants;
 import com.jay.swarm.common.entity.DownloadResponse;
+import com.jay.swarm.common.entity.ListObjectsRequest;
+import com.jay.swarm.common.entity.ListObjectsResponse;
 import com.jay.swarm.common.network.BaseClient;
 import com.jay.swarm.common.network.callback.DefaultFileTransferCallback;
 import com.jay.swarm.common.network.callback.FileTransferCallback;
+import com.jay.swarm.common.network.entity.NetworkPacket;
+import com.jay.swarm.common.network.entity.PacketTypes;
 import com.jay.swarm.common.network.handler.FileTransferHandler;
 import com.jay.swarm.common.serialize.ProtoStuffSerializer;
 import com.jay.swarm.common.serialize.Serializer;
+import com.jay.swarm.common.util.StringUtils;
+import io.netty.buffer.ByteBuf;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.ConnectException;
+import java.util.List;
 
 /**
  * <p>
@@ -31,20 +39,21 @@ public class SwarmClient {
     private final Config config;
     private final UploadHelper uploadHelper;
     private final DownloadHelper downloadHelper;
+    private final Serializer serializer;
     private final static String DOWNLOAD_DIR = "D:/swarm/downloads";
     private static final int DEFAULT_BACKUP_COUNT = 2;
 
     public SwarmClient(Config config){
         this.config = config;
-        this.overseerClient = new BaseClient();
-        this.storageClient = new BaseClient();
-        Serializer serializer = new ProtoStuffSerializer();
+        this.overseerClient = new BaseClient(config);
+        this.storageClient = new BaseClient(config);
+        this.serializer = new ProtoStuffSerializer();
         FileTransferHandler transferHandler = new FileTransferHandler();
         SwarmClientHandler clientHandler = new SwarmClientHandler(transferHandler, serializer, DOWNLOAD_DIR);
         this.overseerClient.addHandler(clientHandler);
         this.storageClient.addHandler(clientHandler);
         this.uploadHelper = new UploadHelper(overseerClient, storageClient, serializer, config);
-        this.downloadHelper = new DownloadHelper(overseerClient, storageClient, serializer, config);
+        this.downloadHelper = new DownloadHelper(overseerClient, storageClient, serializer, config, transferHandler);
         init();
     }
 
@@ -88,10 +97,37 @@ public class SwarmClient {
         return uploadHelper.upload(path, backupCount, new DefaultFileTransferCallback());
     }
 
+    /**
+     * 上传文件到桶，使用默认的callback
+     * @param bucket 桶ID
+     * @param key 对象在桶中的key
+     * @param path 文件路径
+     * @return 文件ID
+     * @throws Exception Exception
+     */
+    public String upload(String bucket, String key, String path) throws Exception{
+        return uploadHelper.upload(path, DEFAULT_BACKUP_COUNT, bucket, key, new DefaultFileTransferCallback());
+    }
+
+    /**
+     * 批量上传文件，元数据只需要一次请求
+     * @param paths 文件路径
+     * @return 文件ID，与paths顺序一致
+     * @throws Exception Exception
+     */
+    public List<String> upload(List<String> paths) throws Exception{
+        return uploadHelper.upload(paths, DEFAULT_BACKUP_COUNT, new DefaultFileTransferCallback());
+    }
+
     public void download(String fileId, String downloadDir){
        try{
            DownloadResponse response = downloadHelper.sendDownloadRequest(fileId);
-           downloadHelper.pullData(response, downloadDir);
+           // 默认从所有副本并行下载
+           if("false".equals(config.get("download.parallel"))){
+               downloadHelper.pullData(response, downloadDir);
+           }else{
+               downloadHelper.pullDataParallel(response, downloadDir);
+           }
        }catch (ConnectException e){
            log.error("unable to reach target Node, please check Node status, error:", e);
        }catch (Exception e){
@@ -99,6 +135,76 @@ public class SwarmClient {
        }
     }
 
+    /**
+     * 批量下载文件，元数据只需要一次请求，不存在的文件被跳过
+     * @param fileIds 文件ID
+     * @param downloadDir 下载目录
+     */
+    public void download(List<String> fileIds, String downloadDir){
+        try{
+            List<DownloadResponse> responses = downloadHelper.sendBatchDownloadRequest(fileIds);
+            for (DownloadResponse response : responses) {
+                if(response.getError() != null){
+                    log.warn("skip download {}, error: {}", response.getFileId(), response.getError());
+                    continue;
+                }
+                if("false".equals(config.get("download.parallel"))){
+                    downloadHelper.pullData(response, downloadDir);
+                }else{
+                    downloadHelper.pullDataParallel(response, downloadDir);
+                }
+            }
+        }catch (ConnectException e){
+            log.error("unable to reach target Node, please check Node status, error:", e);
+        }catch (Exception e){
+            log.error("download process error: ", e);
+        }
+    }
+
+    /**
+     * 读取文件的一个区间，不需要下载整个文件
+     * @param fileId 文件ID
+     * @param offset 起始位置
+     * @param length 长度，超出文件末尾的部分被截断
+     * @return ByteBuf 区间数据，使用后需要release
+     * @throws Exception Exception
+     */
+    public ByteBuf read(String fileId, long offset, long length) throws Exception {
+        if(offset < 0 || length < 0){
+            throw new IllegalArgumentException("wrong argument for read");
+        }
+        DownloadResponse response = downloadHelper.sendDownloadRequest(fileId);
+        return downloadHelper.readRange(response, offset, length);
+    }
+
+    /**
+     * 列出桶中的对象，一次返回一页
+     * @param bucket 桶ID
+     * @param prefix 前缀，可以为null
+     * @param delimiter 分隔符，可以为null，设置后返回的公共前缀相当于目录
+     * @param maxKeys 每页最多条数，小于等于0时使用服务端默认值
+     * @param continuationToken 上一页的nextContinuationToken，第一页为null
+     * @return ListObjectsResponse
+     * @throws Exception Exception
+     */
+    public ListObjectsResponse list(String bucket, String prefix, String delimiter, int maxKeys, String continuationToken) throws Exception {
+        if(StringUtils.isEmpty(bucket)){
+            throw new IllegalArgumentException("wrong argument for list");
+        }
+        String host = config.get("overseer.host");
+        String port = config.get("overseer.port");
+        ListObjectsRequest request = ListObjectsRequest.builder()
+                .bucket(bucket).prefix(prefix).delimiter(delimiter)
+                .maxKeys(maxKeys).continuationToken(continuationToken)
+                .build();
+        NetworkPacket packet = NetworkPacket.buildPacketOfType(PacketTypes.LIST_OBJECTS, serializer.serialize(request, ListObjectsRequest.class));
+        NetworkPacket response = (NetworkPacket) overseerClient.sendAsync(host, Integer.parseInt(port), packet).get();
+        if(response.getType() == PacketTypes.ERROR){
+            throw new IllegalStateException(new String(response.getContent(), SwarmConstants.DEFAULT_CHARSET));
+        }
+        return serializer.deserialize(response.getContent(), ListObjectsResponse.class);
+    }
+
     public Config getConfig(){
         return config;
     }
@@ -3,17 +3,31 @@ package com.jay.swarm.client.download;
 import com.jay.swarm.client.storage.StorageNodeSelector;
 import com.jay.swarm.common.config.Config;
 import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.BatchDownloadRequest;
+import com.jay.swarm.common.entity.BatchDownloadResponse;
+import com.jay.swarm.common.entity.DownloadRange;
 import com.jay.swarm.common.entity.DownloadResponse;
 import com.jay.swarm.common.entity.StorageInfo;
+import com.jay.swarm.common.fs.FileInfo;
 import com.jay.swarm.common.network.BaseClient;
 import com.jay.swarm.common.network.entity.NetworkPacket;
 import com.jay.swarm.common.network.entity.PacketTypes;
+import com.jay.swarm.common.network.handler.FileTransferHandler;
 import com.jay.swarm.common.serialize.Serializer;
 import com.jay.swarm.common.util.StringUtils;
+import io.netty.buffer.ByteBuf;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
@@ -33,11 +47,30 @@ public class DownloadHelper {
 
     private final Config config;
 
-    public DownloadHelper(BaseClient overseerClient, BaseClient storageClient, Serializer serializer, Config config) {
+    /**
+     * 文件传输处理器，与SwarmClientHandler共用，分段下载的数据由它写入文件
+     */
+    private final FileTransferHandler fileTransferHandler;
+
+    /**
+     * 并行下载线程
+     */
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadFactory() {
+        private final AtomicInteger idProvider = new AtomicInteger(0);
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "download-thread-" + idProvider.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public DownloadHelper(BaseClient overseerClient, BaseClient storageClient, Serializer serializer, Config config, FileTransferHandler fileTransferHandler) {
         this.overseerClient = overseerClient;
         this.storageClient = storageClient;
         this.serializer = serializer;
         this.config = config;
+        this.fileTransferHandler = fileTransferHandler;
     }
 
     public DownloadResponse sendDownloadRequest(String fileId) throws Exception{
@@ -60,22 +93,147 @@ public class DownloadHelper {
         return serializer.deserialize(content, DownloadResponse.class);
     }
 
+    /**
+     * 一次请求获取多个文件的元数据
+     * @param fileIds 文件ID
+     * @return DownloadResponse，与fileIds顺序一致，不存在的文件error不为空
+     * @throws Exception Exception
+     */
+    public List<DownloadResponse> sendBatchDownloadRequest(List<String> fileIds) throws Exception{
+        if(fileIds == null || fileIds.isEmpty() || fileIds.size() > SwarmConstants.MAX_BATCH_SIZE){
+            throw new IllegalArgumentException("wrong argument for batch download");
+        }
+        String host = config.get("overseer.host");
+        String port = config.get("overseer.port");
+        if(StringUtils.isEmpty(host) || StringUtils.isEmpty(port)){
+            throw new IllegalArgumentException("invalid overseer address");
+        }
+        BatchDownloadRequest request = BatchDownloadRequest.builder().fileIds(fileIds).build();
+        NetworkPacket packet = NetworkPacket.buildPacketOfType(PacketTypes.BATCH_DOWNLOAD_REQUEST, serializer.serialize(request, BatchDownloadRequest.class));
+        NetworkPacket response = (NetworkPacket)overseerClient.sendAsync(host, Integer.parseInt(port), packet).get();
+        if(response.getType() == PacketTypes.ERROR){
+            throw new RuntimeException(new String(response.getContent(), SwarmConstants.DEFAULT_CHARSET));
+        }
+        return serializer.deserialize(response.getContent(), BatchDownloadResponse.class).getResponses();
+    }
+
+    /**
+     * 每次只从一个副本下载文件
+     * 与并行下载一样由SwarmDownloader按区间请求，CRC32C校验失败的分片会重新请求。
+     * 副本不可用时换一个副本，从断点继续
+     * @param fileInfo 文件元数据
+     * @param downloadDir 下载目录
+     * @throws Exception Exception
+     */
     public void pullData(DownloadResponse fileInfo, String downloadDir) throws Exception{
         String fileId = fileInfo.getFileId();
-        List<StorageInfo> storages = fileInfo.getStorages();
+        if(fileInfo.getStorages() == null || fileInfo.getStorages().isEmpty()){
+            throw new RuntimeException("no alive storage node contains file " + fileId);
+        }
+        long start = System.currentTimeMillis();
+        String path = startTransfer(fileInfo, downloadDir);
+        List<StorageInfo> storages = new ArrayList<>(fileInfo.getStorages());
+        while(!storages.isEmpty()){
+            StorageInfo targetStorage = StorageNodeSelector.selectRandom(storages);
+            SwarmDownloader downloader = new SwarmDownloader(storageClient, serializer, fileTransferHandler, fileInfo);
+            if(downloader.download(Collections.singletonList(targetStorage), executor)){
+                finishTransfer(fileInfo, downloadDir, path);
+                log.info("download finished from {}:{}, time used: {} ms", targetStorage.getHost(), targetStorage.getPort(), (System.currentTimeMillis() - start));
+                return;
+            }
+            log.warn("download from {}:{} failed, trying another storage node", targetStorage.getHost(), targetStorage.getPort());
+        }
+        // 保留断点，再次下载时继续
+        fileTransferHandler.handleTransferAbort(fileId);
+        throw new RuntimeException("download failed, no storage node available for file " + fileId);
+    }
 
-        StorageInfo targetStorage = StorageNodeSelector.selectRandom(storages);
+    /**
+     * 读取文件的一个区间
+     * 依次尝试存活副本，直到有一个返回数据
+     * @param fileInfo 文件元数据
+     * @param offset 起始位置
+     * @param length 长度，超出文件末尾的部分被截断
+     * @return ByteBuf 区间数据，使用后需要release
+     * @throws Exception Exception
+     */
+    public ByteBuf readRange(DownloadResponse fileInfo, long offset, long length) throws Exception{
+        if(fileInfo.getStorages() == null || fileInfo.getStorages().isEmpty()){
+            throw new RuntimeException("no alive storage node contains file " + fileInfo.getFileId());
+        }
+        // selectRandom会移除选中的节点，在副本上遍历，调用者的元数据可以重复使用
+        List<StorageInfo> storages = new ArrayList<>(fileInfo.getStorages());
+        DownloadRange range = DownloadRange.builder()
+                .fileId(fileInfo.getFileId()).offset(offset).length(length)
+                .build();
+        byte[] serializedRange = serializer.serialize(range, DownloadRange.class);
+        Exception lastError = null;
+        while(!storages.isEmpty()){
+            StorageInfo targetStorage = StorageNodeSelector.selectRandom(storages);
+            try{
+                NetworkPacket request = NetworkPacket.buildPacketOfType(PacketTypes.READ_RANGE_REQUEST, serializedRange);
+                NetworkPacket response = (NetworkPacket)storageClient.sendAsync(targetStorage.getHost(), targetStorage.getPort(), request).get();
+                if(response.getType() == PacketTypes.ERROR){
+                    throw new RuntimeException(new String(response.getContent(), SwarmConstants.DEFAULT_CHARSET));
+                }
+                return response.getData();
+            }catch (Exception e){
+                log.warn("range read from {}:{} failed", targetStorage.getHost(), targetStorage.getPort(), e);
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
 
-        String host = targetStorage.getHost();
-        int port = targetStorage.getPort();
+    /**
+     * 从所有存活副本并行下载文件
+     * 文件按区间分配给各个副本，数据按偏移写入同一个文件
+     * @param fileInfo 文件元数据
+     * @param downloadDir 下载目录
+     * @throws Exception Exception
+     */
+    public void pullDataParallel(DownloadResponse fileInfo, String downloadDir) throws Exception{
+        String fileId = fileInfo.getFileId();
+        List<StorageInfo> storages = fileInfo.getStorages();
+        if(storages == null || storages.isEmpty()){
+            throw new RuntimeException("no alive storage node contains file " + fileId);
+        }
+        long start = System.currentTimeMillis();
+        String path = startTransfer(fileInfo, downloadDir);
 
-        NetworkPacket request = NetworkPacket.buildPacketOfType(PacketTypes.DOWNLOAD_REQUEST, fileId.getBytes(SwarmConstants.DEFAULT_CHARSET));
-        NetworkPacket response = (NetworkPacket)storageClient.sendAsync(host, port, request).get();
-        File file = new File(downloadDir + File.separator + fileId);
-        boolean res = file.renameTo(new File(downloadDir + File.separator + fileInfo.getFilename()));
+        SwarmDownloader downloader = new SwarmDownloader(storageClient, serializer, fileTransferHandler, fileInfo);
+        if(!downloader.download(storages, executor)){
+            // 保留断点，再次下载时继续
+            fileTransferHandler.handleTransferAbort(fileId);
+            throw new RuntimeException("download failed, no storage node available for file " + fileId);
+        }
+        finishTransfer(fileInfo, downloadDir, path);
+        log.info("download finished from {} storage nodes, time used: {} ms", storages.size(), (System.currentTimeMillis() - start));
+    }
 
-        if(response.getType() == PacketTypes.ERROR){
-            throw new RuntimeException(new String(response.getContent(), SwarmConstants.DEFAULT_CHARSET));
+    /**
+     * 创建文件拼接器，有断点时从断点继续
+     * @return 下载中的文件路径
+     */
+    private String startTransfer(DownloadResponse fileInfo, String downloadDir) throws IOException {
+        String path = downloadDir + File.separator + fileInfo.getFileId();
+        FileInfo transferInfo = FileInfo.builder().fileId(fileInfo.getFileId())
+                .md5(fileInfo.getMd5())
+                .totalSize(fileInfo.getSize())
+                .shardCount((int) (fileInfo.getSize() / SwarmConstants.DEFAULT_SHARD_SIZE))
+                .build();
+        fileTransferHandler.handleTransferHead(transferInfo, path);
+        return path;
+    }
+
+    /**
+     * 校验md5，完成下载，文件改为原文件名
+     */
+    private void finishTransfer(DownloadResponse fileInfo, String downloadDir, String path){
+        fileTransferHandler.handleTransferEnd(fileInfo.getFileId());
+        File file = new File(path);
+        if(!file.renameTo(new File(downloadDir + File.separator + fileInfo.getFilename()))){
+            log.warn("unable to rename downloaded file {} to {}", path, fileInfo.getFilename());
         }
     }
 }
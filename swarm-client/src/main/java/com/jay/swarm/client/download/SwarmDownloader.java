@@ -0,0 +1,277 @@
+package com.jay.swarm.client.download;
+
+import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.DownloadRange;
+import com.jay.swarm.common.entity.DownloadResponse;
+import com.jay.swarm.common.entity.StorageInfo;
+import com.jay.swarm.common.network.BaseClient;
+import com.jay.swarm.common.network.entity.NetworkPacket;
+import com.jay.swarm.common.network.entity.PacketTypes;
+import com.jay.swarm.common.network.handler.FileTransferHandler;
+import com.jay.swarm.common.serialize.Serializer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *  多副本并行下载
+ *  文件被切分成若干区间，每个存活副本上运行若干个下载者，
+ *  下载者从公共队列中取区间，用DOWNLOAD_RANGE_REQUEST向自己的副本请求，
+ *  所以快的副本自然会领到更多区间。
+ *  队列取空后进入收尾阶段：空闲的下载者会重复下载耗时最长的未完成区间，
+ *  慢副本手上的区间由快副本接手，先完成的一方生效。
+ *  没有可领取的区间时，下载者在队列上等待，直到所有区间完成，失败副本交还的区间总能被其他副本领取。
+ *  所有下载者都退出后才结束下载，此时所有区间请求都已收到回复，结束传输后不会再有分片写入。
+ *  区间数据由SwarmClientHandler按偏移写入同一个目标文件，重复写入的内容相同。
+ *  CRC32C校验失败的分片不会写入，区间回复后下载者只重新请求这些分片。
+ *  下载中断后再次下载同一个文件时，断点中已完成的区间直接跳过。
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/28 11:05
+ */
+@Slf4j
+class SwarmDownloader {
+    /**
+     * 区间大小，4个分片
+     */
+    private static final long PIECE_SIZE = SwarmConstants.DEFAULT_SHARD_SIZE * 4L;
+    /**
+     * 每个副本上的下载者数量，用于掩盖请求往返的延迟
+     */
+    private static final int WORKERS_PER_REPLICA = 2;
+    /**
+     * 单个区间的下载超时时间，超时的副本被视为不可用
+     */
+    private static final long PIECE_TIMEOUT = 60 * 1000;
+    /**
+     * 一个区间最多同时由几个下载者下载
+     */
+    private static final int MAX_FETCHERS = 2;
+    /**
+     * 没有可领取的区间时，在队列上等待的时间，毫秒
+     */
+    private static final long IDLE_WAIT = 100;
+
+    private final BaseClient storageClient;
+    private final Serializer serializer;
+    private final FileTransferHandler fileTransferHandler;
+    private final String fileId;
+    private final Piece[] pieces;
+    private final BlockingQueue<Piece> pending = new LinkedBlockingQueue<>();
+    private final AtomicInteger remaining;
+    private final AtomicInteger aliveWorkers = new AtomicInteger(0);
+    /**
+     * 所有下载者退出后完成
+     */
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    SwarmDownloader(BaseClient storageClient, Serializer serializer, FileTransferHandler fileTransferHandler, DownloadResponse fileInfo) {
+        this.storageClient = storageClient;
+        this.serializer = serializer;
+        this.fileTransferHandler = fileTransferHandler;
+        this.fileId = fileInfo.getFileId();
+        long size = fileInfo.getSize();
+        int count = (int) ((size + PIECE_SIZE - 1) / PIECE_SIZE);
+        // 上次中断的下载留下的断点，已完成的区间不再下载
+        BitSet completedShards = fileTransferHandler.completedShards(fileId);
+        int shardsPerPiece = (int) (PIECE_SIZE / SwarmConstants.DEFAULT_SHARD_SIZE);
+        int left = 0;
+        this.pieces = new Piece[count];
+        for(int i = 0; i < count; i++){
+            long offset = i * PIECE_SIZE;
+            pieces[i] = new Piece(offset, Math.min(PIECE_SIZE, size - offset));
+            int firstShard = i * shardsPerPiece;
+            int shardCount = (int) ((pieces[i].length + SwarmConstants.DEFAULT_SHARD_SIZE - 1) / SwarmConstants.DEFAULT_SHARD_SIZE);
+            if(completedShards.nextClearBit(firstShard) >= firstShard + shardCount){
+                pieces[i].done.set(true);
+                continue;
+            }
+            pending.offer(pieces[i]);
+            left++;
+        }
+        if(left < count){
+            log.info("resume download {}, {} of {} pieces already downloaded", fileId, count - left, count);
+        }
+        this.remaining = new AtomicInteger(left);
+    }
+
+    /**
+     * 从所有副本并行下载
+     * 返回时所有下载者都已退出，没有未完成的区间请求
+     * @param storages 存活副本
+     * @param executor 下载线程池
+     * @return 是否所有区间都下载完成
+     * @throws InterruptedException InterruptedException
+     */
+    boolean download(List<StorageInfo> storages, Executor executor) throws InterruptedException {
+        if(remaining.get() == 0){
+            return true;
+        }
+        aliveWorkers.set(storages.size() * WORKERS_PER_REPLICA);
+        for (StorageInfo storage : storages) {
+            for(int i = 0; i < WORKERS_PER_REPLICA; i++){
+                executor.execute(() -> work(storage));
+            }
+        }
+        finished.await();
+        return remaining.get() == 0;
+    }
+
+    /**
+     * 下载者循环，从队列中领取区间直到全部完成或副本不可用
+     * @param storage 副本
+     */
+    private void work(StorageInfo storage){
+        try{
+            while(remaining.get() > 0){
+                Piece piece = next();
+                if(piece == null){
+                    continue;
+                }
+                boolean success = fetch(storage, piece);
+                piece.fetchers.decrementAndGet();
+                if(!success){
+                    // 副本不可用，区间交还给其他副本
+                    if(!piece.done.get()){
+                        pending.offer(piece);
+                    }
+                    return;
+                }
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }finally {
+            if(aliveWorkers.decrementAndGet() == 0){
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * 领取下一个区间
+     * 队列为空时，重复领取开始最早的未完成区间，也没有可以重复领取的区间时在队列上等待IDLE_WAIT
+     * @return 区间，等待后仍没有可领取的区间时返回null
+     * @throws InterruptedException 等待被中断
+     */
+    private Piece next() throws InterruptedException {
+        Piece piece;
+        while((piece = pending.poll()) != null){
+            if(!piece.done.get()){
+                return claim(piece);
+            }
+        }
+        if(remaining.get() == 0){
+            return null;
+        }
+        // 收尾阶段，接手最慢的区间
+        Piece slowest = null;
+        for (Piece candidate : pieces) {
+            if(!candidate.done.get() && candidate.fetchers.get() > 0 && candidate.fetchers.get() < MAX_FETCHERS
+                    && (slowest == null || candidate.startTime < slowest.startTime)){
+                slowest = candidate;
+            }
+        }
+        if(slowest != null){
+            slowest.fetchers.incrementAndGet();
+            return slowest;
+        }
+        // 等待失败副本交还的区间
+        piece = pending.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+        return piece == null || piece.done.get() ? null : claim(piece);
+    }
+
+    private static Piece claim(Piece piece){
+        piece.fetchers.incrementAndGet();
+        piece.startTime = System.currentTimeMillis();
+        return piece;
+    }
+
+    /**
+     * 向副本请求一个区间
+     * @param storage 副本
+     * @param piece 区间
+     * @return 是否成功
+     */
+    private boolean fetch(StorageInfo storage, Piece piece){
+        try{
+            if(!fetchRange(storage, piece.offset, piece.length)){
+                return false;
+            }
+            // 重新请求校验失败的分片
+            long end = piece.offset + piece.length;
+            Map<Long, Integer> corrupted;
+            int attempt = 0;
+            while(!(corrupted = fileTransferHandler.corruptedShards(fileId, piece.offset, end)).isEmpty()){
+                if(attempt++ >= SwarmConstants.MAX_SHARD_RETRY){
+                    log.warn("shards from {}:{} still corrupted after {} retries", storage.getHost(), storage.getPort(), SwarmConstants.MAX_SHARD_RETRY);
+                    return false;
+                }
+                for (Map.Entry<Long, Integer> shard : corrupted.entrySet()) {
+                    if(!fetchRange(storage, shard.getKey(), shard.getValue())){
+                        return false;
+                    }
+                }
+            }
+            if(piece.done.compareAndSet(false, true)){
+                remaining.decrementAndGet();
+            }
+            return true;
+        }catch (Exception e){
+            log.warn("range download from {}:{} failed", storage.getHost(), storage.getPort(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 请求文件区间，等待副本发送完成
+     * @param storage 副本
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 副本是否发送成功
+     * @throws Exception 请求超时或网络异常
+     */
+    private boolean fetchRange(StorageInfo storage, long offset, long length) throws Exception {
+        DownloadRange range = DownloadRange.builder()
+                .fileId(fileId).offset(offset).length(length)
+                .build();
+        NetworkPacket request = NetworkPacket.buildPacketOfType(PacketTypes.DOWNLOAD_RANGE_REQUEST, serializer.serialize(range, DownloadRange.class));
+        NetworkPacket response = (NetworkPacket) storageClient.sendAsync(storage.getHost(), storage.getPort(), request, PIECE_TIMEOUT)
+                .get(PIECE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if(response.getType() == PacketTypes.ERROR){
+            log.warn("range download from {}:{} failed: {}", storage.getHost(), storage.getPort(), new String(response.getContent(), SwarmConstants.DEFAULT_CHARSET));
+            return false;
+        }
+        response.release();
+        return true;
+    }
+
+    /**
+     * 下载区间
+     */
+    private static class Piece {
+        private final long offset;
+        private final long length;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        /**
+         * 正在下载该区间的下载者数量
+         */
+        private final AtomicInteger fetchers = new AtomicInteger(0);
+        private volatile long startTime;
+
+        Piece(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
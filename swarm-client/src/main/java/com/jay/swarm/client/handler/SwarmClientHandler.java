@@ -69,8 +69,11 @@ public class SwarmClientHandler extends SimpleChannelInboundHandler<NetworkPacke
         ByteBuf data = packet.getData();
         byte[] idBytes = new byte[36];
         data.readBytes(idBytes);
-        // 处理分片
-        fileTransferHandler.handleTransferBody(new String(idBytes, SwarmConstants.DEFAULT_CHARSET), data);
+        // 分片在文件中的位置
+        long position = data.readLong();
+        int crc = data.readInt();
+        // 处理分片，校验失败的分片被记录下来，由下载者重新请求
+        fileTransferHandler.handleTransferBody(new String(idBytes, SwarmConstants.DEFAULT_CHARSET), position, crc, data);
         context.fireChannelRead(packet);
     }
 
@@ -3,10 +3,13 @@ package com.jay.swarm.client.upload;
 import com.jay.swarm.client.storage.StorageNodeSelector;
 import com.jay.swarm.common.config.Config;
 import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.BatchUploadRequest;
+import com.jay.swarm.common.entity.BatchUploadResponse;
 import com.jay.swarm.common.entity.FileUploadEnd;
 import com.jay.swarm.common.entity.FileUploadRequest;
 import com.jay.swarm.common.entity.FileUploadResponse;
 import com.jay.swarm.common.entity.StorageInfo;
+import com.jay.swarm.common.entity.TransferCheckpoint;
 import com.jay.swarm.common.fs.FileInfo;
 import com.jay.swarm.common.network.BaseClient;
 import com.jay.swarm.common.network.ShardedFileSender;
@@ -19,7 +22,13 @@ import com.jay.swarm.common.util.StringUtils;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * <p>
@@ -37,7 +46,20 @@ public final class UploadHelper {
     private final Serializer serializer;
     private final Config config;
 
+    /**
+     * 上传中断后默认的重试次数，每次从断点继续
+     */
+    private static final int DEFAULT_UPLOAD_RETRY = 3;
+
+    /**
+     * 重试间隔，随重试次数递增
+     */
+    private static final long RETRY_INTERVAL = 1000;
 
+    /**
+     * HEAD和断点查询的等待时间
+     */
+    private static final long REQUEST_TIMEOUT = 30 * 1000;
 
     public UploadHelper(BaseClient overseerClient, BaseClient storageClient, Serializer serializer, Config config) {
         this.overseerClient = overseerClient;
@@ -68,12 +90,31 @@ public final class UploadHelper {
      * @throws Exception Exception
      */
     public String upload(String path, int backupCount, FileTransferCallback callback) throws Exception {
+        return upload(path, backupCount, null, null, callback);
+    }
+
+    /**
+     * 上传文件到桶
+     * @param path 路径
+     * @param backupCount 备份数量
+     * @param bucket 桶ID，为null时不放入桶
+     * @param key 对象在桶中的key，为null时使用文件名
+     * @param callback 上传过程回调
+     * @return 文件ID
+     * @throws Exception Exception
+     */
+    public String upload(String path, int backupCount, String bucket, String key, FileTransferCallback callback) throws Exception {
         if(backupCount < 0 || StringUtils.isEmpty(path)){
             throw new IllegalArgumentException("wrong argument for upload ");
         }
         try{
+            // 计算文件MD5，元数据和文件数据上传共用，只读取一次文件
+            byte[] md5 = FileUtil.md5(path);
+            if(md5 == null){
+                throw new IllegalArgumentException("unable to read file " + path);
+            }
             // 向Overseer发送上传请求，获得overseer返回的存储节点和fileId
-            NetworkPacket metaResponse = uploadMeta(path, backupCount);
+            NetworkPacket metaResponse = uploadMeta(path, backupCount, md5, bucket, key);
             short metaResponseType = metaResponse.getType();
             // Overseer返回错误
             if(metaResponseType == PacketTypes.ERROR){
@@ -86,7 +127,7 @@ public final class UploadHelper {
             String fileId = fileUploadResponse.getFileId();
             List<StorageInfo> storages = fileUploadResponse.getStorageNodes();
             // 向storage发送文件
-            NetworkPacket uploadFileResponse = uploadFileData(path, fileId, storages, callback);
+            NetworkPacket uploadFileResponse = uploadFileData(path, md5, fileId, storages, callback);
 
             // storageNode返回错误
             if(uploadFileResponse.getType() == PacketTypes.ERROR){
@@ -105,16 +146,75 @@ public final class UploadHelper {
         }
     }
 
+    /**
+     * 批量上传文件
+     * 所有文件的元数据在一个BATCH_UPLOAD_REQUEST中发送，然后依次上传文件数据
+     * @param paths 路径
+     * @param backupCount 备份数量
+     * @param callback 上传过程回调
+     * @return 文件ID，与paths顺序一致
+     * @throws Exception 任意一个文件的元数据或数据上传失败
+     */
+    public List<String> upload(List<String> paths, int backupCount, FileTransferCallback callback) throws Exception {
+        if(backupCount < 0 || paths == null || paths.isEmpty() || paths.size() > SwarmConstants.MAX_BATCH_SIZE){
+            throw new IllegalArgumentException("wrong argument for batch upload ");
+        }
+        // 计算所有文件的MD5
+        List<byte[]> md5s = new ArrayList<>(paths.size());
+        List<FileUploadRequest> requests = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            byte[] md5 = StringUtils.isEmpty(path) ? null : FileUtil.md5(path);
+            if(md5 == null){
+                throw new IllegalArgumentException("unable to read file " + path);
+            }
+            md5s.add(md5);
+            File file = new File(path);
+            requests.add(FileUploadRequest.builder()
+                    .filename(file.getName()).size(file.length())
+                    .md5(md5).backupCount(backupCount + 1)
+                    .build());
+        }
+        // 一次请求获得所有文件的ID和存储节点
+        long uploadMetaStart = System.currentTimeMillis();
+        String host = config.get("overseer.host");
+        String port = config.get("overseer.port");
+        BatchUploadRequest batchRequest = BatchUploadRequest.builder().requests(requests).build();
+        NetworkPacket requestPacket = NetworkPacket.buildPacketOfType(PacketTypes.BATCH_UPLOAD_REQUEST, serializer.serialize(batchRequest, BatchUploadRequest.class));
+        NetworkPacket metaResponse = (NetworkPacket) overseerClient.sendAsync(host, Integer.parseInt(port), requestPacket).get();
+        if(metaResponse.getType() == PacketTypes.ERROR){
+            throw new IllegalStateException(new String(metaResponse.getContent(), SwarmConstants.DEFAULT_CHARSET));
+        }
+        List<FileUploadResponse> responses = serializer.deserialize(metaResponse.getContent(), BatchUploadResponse.class).getResponses();
+        log.info("batch upload meta finished, {} files, time used {} ms", paths.size(), (System.currentTimeMillis() - uploadMetaStart));
+
+        // 依次上传文件数据
+        List<String> fileIds = new ArrayList<>(paths.size());
+        for(int i = 0; i < paths.size(); i++){
+            FileUploadResponse response = responses.get(i);
+            if(response.getError() != null){
+                throw new IllegalStateException(paths.get(i) + ": " + response.getError());
+            }
+            NetworkPacket uploadFileResponse = uploadFileData(paths.get(i), md5s.get(i), response.getFileId(), response.getStorageNodes(), callback);
+            if(uploadFileResponse.getType() == PacketTypes.ERROR){
+                throw new IllegalStateException(new String(uploadFileResponse.getContent(), SwarmConstants.DEFAULT_CHARSET));
+            }
+            uploadFileResponse.release();
+            fileIds.add(response.getFileId());
+        }
+        return fileIds;
+    }
+
     /**
      * 发送文件数据到StorageNode
      * @param path 路径
+     * @param md5 文件md5
      * @param fileId 文件ID
      * @param storages 目标存储节点
      * @param callback 回调
      * @return response NetworkPacket
      * @throws Exception Exception
      */
-    private NetworkPacket uploadFileData(String path, String fileId, List<StorageInfo> storages, FileTransferCallback callback) throws Exception {
+    private NetworkPacket uploadFileData(String path, byte[] md5, String fileId, List<StorageInfo> storages, FileTransferCallback callback) throws Exception {
         long uploadDataStart = System.currentTimeMillis();
         /*
             选择目标存储节点
@@ -122,30 +222,32 @@ public final class UploadHelper {
          */
         StorageInfo targetStorageNode = StorageNodeSelector.selectRandom(storages);
 
-        // 计算文件MD5
         File file = new File(path);
-        byte[] md5 = FileUtil.md5(path);
 
         // 封装文件信息，md5、ID、大小、分片个数
         FileInfo fileInfo = FileInfo.builder().fileId(fileId)
                 .md5(md5).totalSize(file.length())
                 .shardCount((int) (file.length() / SwarmConstants.DEFAULT_SHARD_SIZE))
                 .build();
-        /*
-            HEAD报文
-         */
-        byte[] headSerialized = serializer.serialize(fileInfo, FileInfo.class);
-        NetworkPacket headPacket = NetworkPacket.buildPacketOfType(PacketTypes.TRANSFER_FILE_HEAD, headSerialized);
-        // 发送HEAD
-        NetworkPacket respHead = (NetworkPacket) storageClient.sendAsync(targetStorageNode.getHost(), targetStorageNode.getPort(), headPacket).get();
-        respHead.release();
-
-        /*
-            文件分片
-         */
-        ShardedFileSender shardedFileSender = new ShardedFileSender(storageClient, callback);
-        // 发送分片
-        shardedFileSender.send(targetStorageNode.getHost(), targetStorageNode.getPort(), file, fileId);
+        ShardedFileSender shardedFileSender = new ShardedFileSender(storageClient, callback, true, transferWindow(), uploadStripes());
+        int retries = uploadRetries();
+        for(int attempt = 0; ; attempt++){
+            try{
+                // 发送HEAD，存储节点创建appender，已有断点时从断点恢复
+                sendHead(targetStorageNode, fileInfo);
+                // 查询断点，跳过已经写入的分片
+                BitSet completedShards = queryCheckpoint(targetStorageNode, fileId);
+                // 发送分片
+                shardedFileSender.send(targetStorageNode.getHost(), targetStorageNode.getPort(), file, fileId, completedShards);
+                break;
+            }catch (IOException | ExecutionException | TimeoutException e){
+                if(attempt >= retries){
+                    throw e;
+                }
+                log.warn("upload interrupted, resume from checkpoint, attempt: {}", attempt + 1, e);
+                Thread.sleep(RETRY_INTERVAL * (attempt + 1));
+            }
+        }
 
         /*
             END 报文
@@ -169,27 +271,107 @@ public final class UploadHelper {
     }
 
 
+    /**
+     * 发送文件头
+     * @param storage 目标存储节点
+     * @param fileInfo 文件信息
+     * @throws Exception 发送失败或存储节点返回错误
+     */
+    private void sendHead(StorageInfo storage, FileInfo fileInfo) throws Exception {
+        byte[] headSerialized = serializer.serialize(fileInfo, FileInfo.class);
+        NetworkPacket headPacket = NetworkPacket.buildPacketOfType(PacketTypes.TRANSFER_FILE_HEAD, headSerialized);
+        NetworkPacket respHead = (NetworkPacket) storageClient.sendAsync(storage.getHost(), storage.getPort(), headPacket)
+                .get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        if(respHead.getType() == PacketTypes.ERROR){
+            throw new IOException(new String(respHead.getContent(), SwarmConstants.DEFAULT_CHARSET));
+        }
+        respHead.release();
+    }
+
+    /**
+     * 查询存储节点上的传输断点
+     * @param storage 目标存储节点
+     * @param fileId 文件ID
+     * @return 已经写入的分片
+     * @throws Exception 发送失败或存储节点返回错误
+     */
+    private BitSet queryCheckpoint(StorageInfo storage, String fileId) throws Exception {
+        NetworkPacket query = NetworkPacket.buildPacketOfType(PacketTypes.RESUME_QUERY, fileId.getBytes(SwarmConstants.DEFAULT_CHARSET));
+        NetworkPacket response = (NetworkPacket) storageClient.sendAsync(storage.getHost(), storage.getPort(), query)
+                .get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        if(response.getType() == PacketTypes.ERROR){
+            throw new IOException(new String(response.getContent(), SwarmConstants.DEFAULT_CHARSET));
+        }
+        TransferCheckpoint checkpoint = serializer.deserialize(response.getContent(), TransferCheckpoint.class);
+        if(checkpoint.getShardSize() != SwarmConstants.DEFAULT_SHARD_SIZE || checkpoint.getCompletedShards() == null){
+            return new BitSet();
+        }
+        BitSet completed = BitSet.valueOf(checkpoint.getCompletedShards());
+        if(!completed.isEmpty()){
+            log.info("resume upload {}, {} shards already on storage node", fileId, completed.cardinality());
+        }
+        return completed;
+    }
+
+    /**
+     * 读取上传中断后的重试次数
+     * @return 重试次数
+     */
+    private int uploadRetries(){
+        String retries = config.get("upload.retry");
+        if(StringUtils.isEmpty(retries) || !retries.matches("^[0-9]+$")){
+            return DEFAULT_UPLOAD_RETRY;
+        }
+        return Integer.parseInt(retries);
+    }
+
+    /**
+     * 读取分片发送窗口大小
+     * @return 最大在途分片数
+     */
+    private int transferWindow(){
+        String window = config.get("transfer.window");
+        if(StringUtils.isEmpty(window) || !window.matches("^[1-9][0-9]*$")){
+            return SwarmConstants.DEFAULT_TRANSFER_WINDOW;
+        }
+        return Integer.parseInt(window);
+    }
+
+    /**
+     * 读取条带上传的连接数
+     * @return 向目标存储节点并行发送分片的连接数
+     */
+    private int uploadStripes(){
+        String stripes = config.get("upload.stripes");
+        if(StringUtils.isEmpty(stripes) || !stripes.matches("^[1-9][0-9]*$")){
+            return 1;
+        }
+        return Integer.parseInt(stripes);
+    }
+
     /**
      * 上传文件元数据到Overseer
      * @param path 路径
+     * @param backupCount 备份数量
+     * @param md5 文件md5
+     * @param bucket 桶ID
+     * @param key 对象key
      * @return response NetworkPacket
      * @throws Exception Exception
      */
-    private NetworkPacket uploadMeta(String path, int backupCount) throws Exception {
+    private NetworkPacket uploadMeta(String path, int backupCount, byte[] md5, String bucket, String key) throws Exception {
         long uploadMetaStart = System.currentTimeMillis();
         // 获取Overseer地址
         String host = config.get("overseer.host");
         String port = config.get("overseer.port");
-        // 计算文件MD5
         File file = new File(path);
 
-        byte[] md5 = FileUtil.md5(path);
-
         // 创建上传请求
         FileUploadRequest request = FileUploadRequest.builder()
-                .filename(file.getName())
+                .filename(StringUtils.isEmpty(key) ? file.getName() : key)
                 .size(file.length())
                 .md5(md5).backupCount(backupCount + 1)
+                .bucket(bucket)
                 .build();
         // 序列化、封装报文
 
@@ -28,6 +28,14 @@ public class Config {
         }
     }
 
+    /**
+     * 使用已加载的配置项
+     * @param properties 配置项
+     */
+    public Config(Properties properties) {
+        this.properties = properties;
+    }
+
     public String get(String name){
         return properties.getProperty(name);
     }
@@ -0,0 +1,136 @@
+package com.jay.swarm.common.config;
+
+import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.util.StringUtils;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>
+ *  网络调优配置
+ *  BaseServer和BaseClient从这里读取线程数和socket选项，配置文件中没有或格式错误的项使用默认值。
+ *  0表示不设置，使用Netty或操作系统的默认值。
+ *
+ *  传输层：
+ *  transport.epoll            设置为false时强制使用NIO，默认true
+ *  server.reuseport           epoll下开启SO_REUSEPORT，默认false
+ *  server.acceptors           开启SO_REUSEPORT时在同一端口绑定的监听channel数，默认1
+ *  线程：
+ *  server.boss.threads        boss线程数，默认等于监听channel数
+ *  server.worker.threads      worker线程数，默认0
+ *  client.threads             客户端EventLoop线程数，默认0
+ *  socket选项：
+ *  server.backlog             SO_BACKLOG，默认1024
+ *  socket.sndbuf              SO_SNDBUF，字节，默认0
+ *  socket.rcvbuf              SO_RCVBUF，字节，默认0
+ *  tcp.nodelay                TCP_NODELAY，默认true
+ *  write.buffer.low           WRITE_BUFFER_WATER_MARK低水位，字节，默认一个分片
+ *  write.buffer.high          WRITE_BUFFER_WATER_MARK高水位，字节，默认两个分片
+ *  client.connect.timeout     连接超时，毫秒，默认3000
+ *  client.request.timeout     请求的默认期限，毫秒，默认30000，0表示没有期限
+ *  批量flush：
+ *  server.flush.consolidation 服务端合并flush，连续多少次flush后强制写出一次，默认256，0表示关闭
+ *  client.pipelining          客户端请求只write，每个EventLoop周期flush一次，默认true
+ *  连接池：
+ *  client.pool.min            每个目标地址保持的最少连接数，默认1
+ *  client.pool.max            每个目标地址的最多连接数，默认4
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/12 15:30
+ */
+@Slf4j
+@Getter
+@ToString
+public class NetworkConfig {
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+    private static final int DEFAULT_POOL_MAX = 4;
+    private static final int DEFAULT_REQUEST_TIMEOUT = 30 * 1000;
+    private static final int DEFAULT_FLUSH_CONSOLIDATION = 256;
+
+    private final boolean epollEnabled;
+    private final boolean reusePort;
+    private final int acceptors;
+
+    private final int bossThreads;
+    private final int workerThreads;
+    private final int clientThreads;
+
+    private final int backlog;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean tcpNoDelay;
+    /**
+     * 出站缓冲超过高水位后channel不可写，降到低水位以下后恢复可写
+     */
+    private final int writeBufferLowWaterMark;
+    private final int writeBufferHighWaterMark;
+    private final int connectTimeout;
+    private final int requestTimeout;
+    /**
+     * 读事件处理期间的flush推迟到读完成时，否则推迟到下一个EventLoop任务
+     */
+    private final int flushConsolidation;
+    private final boolean clientPipelining;
+
+    private final int poolMinConnections;
+    private final int poolMaxConnections;
+
+    private NetworkConfig(Config config){
+        this.epollEnabled = !"false".equals(value(config, "transport.epoll"));
+        this.reusePort = "true".equals(value(config, "server.reuseport"));
+        this.acceptors = reusePort ? intValue(config, "server.acceptors", 1, 1) : 1;
+        this.bossThreads = Math.max(acceptors, intValue(config, "server.boss.threads", acceptors, 1));
+        this.workerThreads = intValue(config, "server.worker.threads", 0, 0);
+        this.clientThreads = intValue(config, "client.threads", 0, 0);
+        this.backlog = intValue(config, "server.backlog", DEFAULT_BACKLOG, 1);
+        this.sendBufferSize = intValue(config, "socket.sndbuf", 0, 0);
+        this.receiveBufferSize = intValue(config, "socket.rcvbuf", 0, 0);
+        this.tcpNoDelay = !"false".equals(value(config, "tcp.nodelay"));
+        if(value(config, "tcp.cork") != null){
+            log.warn("tcp.cork is no longer supported, ignored");
+        }
+        int low = intValue(config, "write.buffer.low", SwarmConstants.DEFAULT_SHARD_SIZE, 1);
+        int high = intValue(config, "write.buffer.high", SwarmConstants.DEFAULT_SHARD_SIZE * 2, 1);
+        if(low > high){
+            log.warn("write.buffer.low {} is greater than write.buffer.high {}, using default water marks", low, high);
+            low = SwarmConstants.DEFAULT_SHARD_SIZE;
+            high = SwarmConstants.DEFAULT_SHARD_SIZE * 2;
+        }
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+        this.connectTimeout = intValue(config, "client.connect.timeout", DEFAULT_CONNECT_TIMEOUT, 1);
+        this.requestTimeout = intValue(config, "client.request.timeout", DEFAULT_REQUEST_TIMEOUT, 0);
+        this.flushConsolidation = intValue(config, "server.flush.consolidation", DEFAULT_FLUSH_CONSOLIDATION, 0);
+        this.clientPipelining = !"false".equals(value(config, "client.pipelining"));
+        this.poolMinConnections = intValue(config, "client.pool.min", 1, 0);
+        this.poolMaxConnections = Math.max(Math.max(1, poolMinConnections), intValue(config, "client.pool.max", DEFAULT_POOL_MAX, 1));
+    }
+
+    /**
+     * 读取网络配置
+     * @param config 配置，为null时全部使用默认值
+     * @return NetworkConfig
+     */
+    public static NetworkConfig load(Config config){
+        return new NetworkConfig(config);
+    }
+
+    private static String value(Config config, String key){
+        return config == null ? null : config.get(key);
+    }
+
+    private static int intValue(Config config, String key, int defaultValue, int min){
+        String value = value(config, key);
+        if(StringUtils.isEmpty(value)){
+            return defaultValue;
+        }
+        if(!value.matches("^[0-9]{1,9}$") || Integer.parseInt(value) < min){
+            log.warn("invalid network config {}={}, using default value {}", key, value, defaultValue);
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+}
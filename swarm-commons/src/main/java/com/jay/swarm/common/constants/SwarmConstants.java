@@ -26,4 +26,19 @@ public class SwarmConstants {
      * 默认分片大小，4MB
      */
     public static final int DEFAULT_SHARD_SIZE = 1024 * 1024 * 4;
+
+    /**
+     * 默认分片发送窗口，最多8个分片在途，32MB
+     */
+    public static final int DEFAULT_TRANSFER_WINDOW = 8;
+
+    /**
+     * 单个分片校验失败后的最大重传次数
+     */
+    public static final int MAX_SHARD_RETRY = 3;
+
+    /**
+     * 批量元数据请求的最大条数
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
 }
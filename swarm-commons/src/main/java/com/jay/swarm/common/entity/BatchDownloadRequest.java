@@ -0,0 +1,22 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  批量查询下载信息
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/11 10:40
+ */
+@Builder
+@Getter
+@ToString
+public class BatchDownloadRequest {
+    private List<String> fileIds;
+}
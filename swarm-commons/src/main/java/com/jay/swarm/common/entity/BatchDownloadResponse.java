@@ -0,0 +1,23 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  批量下载信息，与请求的文件ID一一对应
+ *  单个文件查询失败时，对应回复的error不为空
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/11 10:40
+ */
+@Builder
+@Getter
+@ToString
+public class BatchDownloadResponse {
+    private List<DownloadResponse> responses;
+}
@@ -0,0 +1,23 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  批量更新元数据中的存储节点
+ *  存储节点把一段时间内保存的副本合并成一个通知发送给Overseer
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/11 11:05
+ */
+@Builder
+@Getter
+@ToString
+public class BatchFileMetaStorage {
+    private List<FileMetaStorage> storages;
+}
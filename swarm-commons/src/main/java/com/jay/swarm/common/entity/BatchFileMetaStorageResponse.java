@@ -0,0 +1,23 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  批量更新元数据的回复，与请求中的条目一一对应
+ *  单个条目失败（文件不存在、存储节点未注册等）时，对应结果的error不为空
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 17:05
+ */
+@Builder
+@Getter
+@ToString
+public class BatchFileMetaStorageResponse {
+    private List<FileMetaStorageResult> results;
+}
@@ -0,0 +1,23 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  批量上传请求
+ *  一次请求为多个文件分配文件ID和存储节点，小文件较多时减少与Overseer的往返
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/11 10:20
+ */
+@Builder
+@Getter
+@ToString
+public class BatchUploadRequest {
+    private List<FileUploadRequest> requests;
+}
@@ -0,0 +1,23 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  批量上传回复，与请求一一对应
+ *  单个文件的请求失败时，对应回复的error不为空
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/11 10:20
+ */
+@Builder
+@Getter
+@ToString
+public class BatchUploadResponse {
+    private List<FileUploadResponse> responses;
+}
@@ -4,11 +4,10 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.ToString;
 
-import java.util.List;
-
 /**
  * <p>
- *
+ *  桶信息
+ *  桶中的对象由overseer的BucketIndex维护，不保存在桶信息中
  * </p>
  *
  * @author Jay
@@ -36,9 +35,4 @@ public class Bucket {
     private long ownerId;
 
     private short accessibility;
-
-    /**
-     * 对象集合
-     */
-    private List<String> objectIds;
 }
@@ -0,0 +1,23 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * <p>
+ *  文件区间
+ *  分段下载时，请求文件的[offset, offset + length)部分
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/28 10:32
+ */
+@Builder
+@Getter
+@ToString
+public class DownloadRange {
+    private String fileId;
+    private long offset;
+    private long length;
+}
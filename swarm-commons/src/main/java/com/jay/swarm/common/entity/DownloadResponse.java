@@ -24,4 +24,9 @@ public class DownloadResponse {
     private long size;
 
     private List<StorageInfo> storages;
+
+    /**
+     * 批量请求中单个文件的错误信息，成功时为null
+     */
+    private String error;
 }
@@ -0,0 +1,22 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * <p>
+ *  批量更新中单个文件的结果
+ *  error为空表示存储节点已加入元数据并写入日志
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 17:05
+ */
+@Builder
+@Getter
+@ToString
+public class FileMetaStorageResult {
+    private String fileId;
+    private String error;
+}
@@ -20,4 +20,8 @@ public class FileUploadRequest {
     private long size;
     private byte[] md5;
     private int backupCount;
+    /**
+     * 桶ID，为空时文件不属于任何桶，filename作为对象在桶中的key
+     */
+    private String bucket;
 }
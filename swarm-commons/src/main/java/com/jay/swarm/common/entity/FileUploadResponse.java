@@ -22,4 +22,8 @@ public class FileUploadResponse {
 
     private List<StorageInfo> storageNodes;
 
+    /**
+     * 批量请求中单个文件的错误信息，成功时为null
+     */
+    private String error;
 }
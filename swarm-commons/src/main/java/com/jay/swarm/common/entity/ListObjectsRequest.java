@@ -0,0 +1,33 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * <p>
+ *  列出桶中的对象
+ *  与S3 ListObjectsV2相同：按key顺序返回prefix开头的对象，
+ *  设置delimiter时，prefix之后包含delimiter的key合并为一个公共前缀。
+ *  对象和公共前缀合计最多返回maxKeys条，结果被截断时用continuationToken请求下一页。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/10 10:05
+ */
+@Builder
+@Getter
+@ToString
+public class ListObjectsRequest {
+    private String bucket;
+    private String prefix;
+    private String delimiter;
+    /**
+     * 每页最多条数，小于等于0时使用默认值
+     */
+    private int maxKeys;
+    /**
+     * 上一页返回的nextContinuationToken，第一页为null
+     */
+    private String continuationToken;
+}
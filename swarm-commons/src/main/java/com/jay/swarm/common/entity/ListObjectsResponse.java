@@ -0,0 +1,30 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  对象列表的一页
+ *  空列表反序列化后为null
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/10 10:05
+ */
+@Builder
+@Getter
+@ToString
+public class ListObjectsResponse {
+    private String bucket;
+    private List<ObjectSummary> objects;
+    private List<String> commonPrefixes;
+    /**
+     * 是否还有下一页
+     */
+    private boolean truncated;
+    private String nextContinuationToken;
+}
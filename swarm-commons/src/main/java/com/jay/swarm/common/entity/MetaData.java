@@ -2,6 +2,7 @@ package com.jay.swarm.common.entity;
 
 import lombok.Builder;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.ToString;
 
 import java.util.List;
@@ -30,7 +31,16 @@ public class MetaData {
 
     private byte[] md5;
 
+    /**
+     * 存储节点，空列表反序列化后为null
+     */
+    @Setter
     private List<String> storages;
 
+    /**
+     * 所属的桶，为空时不属于任何桶
+     */
+    private String bucket;
+
 
 }
@@ -0,0 +1,22 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * <p>
+ *  对象列表中的一个对象
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/10 10:05
+ */
+@Builder
+@Getter
+@ToString
+public class ObjectSummary {
+    private String key;
+    private String fileId;
+    private long size;
+}
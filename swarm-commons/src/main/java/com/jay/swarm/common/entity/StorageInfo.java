@@ -30,5 +30,19 @@ public class StorageInfo {
 
     private long freeStorage;
 
+    /**
+     * 正在接收的文件数，心跳上报
+     */
+    private int activeTransfers;
+
+    /**
+     * 磁盘IO执行器中排队的任务数，心跳上报
+     */
+    private int ioQueueDepth;
+
+    /**
+     * 上一个心跳周期的接收速度，字节/秒
+     */
+    private long throughput;
 
 }
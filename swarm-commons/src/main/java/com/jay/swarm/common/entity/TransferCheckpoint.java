@@ -0,0 +1,29 @@
+package com.jay.swarm.common.entity;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * <p>
+ *  传输断点
+ *  RESUME_QUERY的回复，接收方已经写入的分片，发送方跳过这些分片继续传输
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/30 15:02
+ */
+@Builder
+@Getter
+@ToString
+public class TransferCheckpoint {
+    private String fileId;
+    /**
+     * 分片大小
+     */
+    private int shardSize;
+    /**
+     * 已完成分片的位图，BitSet.toLongArray()
+     */
+    private long[] completedShards;
+}
@@ -1,8 +1,9 @@
 package com.jay.swarm.common.fs;
 
+import com.jay.swarm.common.constants.SwarmConstants;
 import com.jay.swarm.common.network.callback.DefaultFileTransferCallback;
 import com.jay.swarm.common.network.callback.FileTransferCallback;
-import com.jay.swarm.common.util.FileUtil;
+import com.jay.swarm.common.util.Crc32c;
 import io.netty.buffer.ByteBuf;
 import lombok.extern.slf4j.Slf4j;
 
@@ -15,6 +16,11 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -51,13 +57,33 @@ public class FileAppender {
     private final long totalSize;
 
     /**
-     * 接收到的大小
+     * 接收到的大小，分片可能从多个连接并发写入
      */
-    private long receivedSize;
+    private final AtomicLong receivedSize = new AtomicLong(0);
     private final String path;
 
     private final long transferStartTime;
 
+    /**
+     * 随数据到达增量计算的md5
+     */
+    private final FileDigest fileDigest;
+
+    /**
+     * 传输断点，记录已经写入的分片
+     */
+    private final ShardCheckpoint checkpoint;
+
+    /**
+     * 校验失败、等待重传的分片
+     * key：分片位置，value：分片长度
+     */
+    private final ConcurrentSkipListMap<Long, Integer> corruptedShards = new ConcurrentSkipListMap<>();
+    /**
+     * 最后一次收到数据的时间，用于释放长时间没有数据的传输
+     */
+    private volatile long lastActiveTime;
+
     public FileAppender(String fileId, String path, byte[] fileMd5, long totalSize) throws IOException {
         this.fileMd5 = fileMd5;
         this.totalSize = totalSize;
@@ -73,8 +99,30 @@ public class FileAppender {
         }
         RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
         this.fileChannel = randomAccessFile.getChannel();
+        this.fileDigest = new FileDigest(fileChannel);
+        try{
+            if(fileChannel.size() > totalSize){
+                fileChannel.truncate(totalSize);
+            }
+            // 从断点恢复，已写入的分片计入接收大小和md5
+            this.checkpoint = ShardCheckpoint.open(path, fileMd5, totalSize);
+            BitSet completed = checkpoint.completed();
+            for(int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)){
+                long position = (long) i * SwarmConstants.DEFAULT_SHARD_SIZE;
+                long length = checkpoint.shardLength(position);
+                fileDigest.markWritten(position, length);
+                receivedSize.addAndGet(length);
+            }
+            if(!completed.isEmpty()){
+                log.info("resume transfer from checkpoint, fileId: {}, received: {} bytes", fileId, receivedSize.get());
+            }
+        }catch (IOException e){
+            fileChannel.close();
+            throw e;
+        }
 
         this.transferStartTime = System.currentTimeMillis();
+        this.lastActiveTime = transferStartTime;
     }
 
     /**
@@ -85,41 +133,104 @@ public class FileAppender {
     public void append(byte[] data) throws IOException {
         // wrap 数据
         ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = fileChannel.position();
         // 写入channel
         fileChannel.write(buffer);
         buffer.clear();
-        // 计算接收大小和接收进度
-        receivedSize += data.length;
-        float progress = new BigDecimal(receivedSize).multiply(new BigDecimal(100))
-                .divide(new BigDecimal(totalSize), 2, RoundingMode.HALF_DOWN)
-                .floatValue();
-        // 进度回调
-        transferCallback.onProgress(fileId, totalSize, receivedSize, progress);
+        fileDigest.update(position, buffer);
+        checkpoint.markWritten(position, data.length);
+        onReceived(data.length);
     }
 
-    public void append(ByteBuf data) throws IOException {
+    /**
+     * 在指定位置写入数据
+     * 使用FileChannel的定位写，分片到达的顺序不影响结果
+     * @param position 数据在文件中的位置
+     * @param data 数据
+     * @throws IOException IOException
+     */
+    public void append(long position, ByteBuf data) throws IOException {
         ByteBuffer buffer = data.nioBuffer();
-        int length = fileChannel.write(buffer);
-        // 计算接收大小和接收进度
-        receivedSize += length;
-        float progress = new BigDecimal(receivedSize).multiply(new BigDecimal(100))
+        int length = 0;
+        while(buffer.hasRemaining()){
+            length += fileChannel.write(buffer, position + length);
+        }
+        buffer.flip();
+        // 写入的同时更新md5
+        fileDigest.update(position, buffer);
+        // 数据写入后再记录断点
+        checkpoint.markWritten(position, length);
+        onReceived(length);
+    }
+
+    /**
+     * 校验分片的CRC32C后在指定位置写入
+     * 校验失败的分片不写入文件，记录下来等待重传
+     * @param position 数据在文件中的位置
+     * @param crc 发送方计算的CRC32C
+     * @param data 数据
+     * @return 校验是否通过
+     * @throws IOException IOException
+     */
+    public boolean append(long position, int crc, ByteBuf data) throws IOException {
+        int length = data.readableBytes();
+        if(Crc32c.checksum(data.nioBuffer()) != crc){
+            corruptedShards.put(position, length);
+            log.warn("shard checksum mismatch, fileId: {}, position: {}", fileId, position);
+            return false;
+        }
+        append(position, data);
+        corruptedShards.remove(position);
+        return true;
+    }
+
+    /**
+     * 区间[from, to)中校验失败、还没有重传成功的分片
+     * @param from 起始位置
+     * @param to 结束位置
+     * @return key：分片位置，value：分片长度
+     */
+    public Map<Long, Integer> corruptedShards(long from, long to){
+        NavigableMap<Long, Integer> shards = corruptedShards.subMap(from, true, to, false);
+        return new ConcurrentSkipListMap<>(shards);
+    }
+
+    /**
+     * 已经写入的分片
+     * @return BitSet，下标为分片序号
+     */
+    public BitSet completedShards(){
+        return checkpoint.completed();
+    }
+
+    /**
+     * 最后一次收到数据的时间
+     * @return 毫秒时间戳，没有收到数据时为创建时间
+     */
+    public long getLastActiveTime() {
+        return lastActiveTime;
+    }
+
+    /**
+     * 计算接收大小和接收进度
+     * @param length 本次接收的长度
+     */
+    private void onReceived(long length){
+        lastActiveTime = System.currentTimeMillis();
+        long current = receivedSize.addAndGet(length);
+        float progress = new BigDecimal(current).multiply(new BigDecimal(100))
                 .divide(new BigDecimal(totalSize), 2, RoundingMode.HALF_DOWN)
                 .floatValue();
         // 进度回调
-        transferCallback.onProgress(fileId, totalSize, receivedSize, progress);
+        transferCallback.onProgress(fileId, totalSize, current, progress);
     }
 
     @Deprecated
     public void write(long position, byte[] data) throws IOException {
         MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, position, data.length);
         buffer.put(data);
-        // 计算接收大小和接收进度
-        receivedSize += data.length;
-        float progress = new BigDecimal(receivedSize).multiply(new BigDecimal(100))
-                .divide(new BigDecimal(totalSize), 2, RoundingMode.HALF_DOWN)
-                .floatValue();
-        // 进度回调
-        transferCallback.onProgress(fileId, totalSize, receivedSize, progress);
+        fileDigest.update(position, ByteBuffer.wrap(data));
+        onReceived(data.length);
     }
 
 
@@ -127,24 +238,34 @@ public class FileAppender {
      * 完成传输
      */
     public void complete(){
-        // 计算下载完成的文件md5
-        byte[] md5 = FileUtil.md5(path);
+        // 传输过程中已经计算了md5，这里只需要补上未覆盖的部分
+        byte[] md5;
+        try{
+            md5 = fileDigest.finish(totalSize);
+        }catch (IOException e){
+            release();
+            throw new IllegalStateException("unable to verify file " + fileId, e);
+        }
 
         // 检查md5是否相等，判断文件在传输中是否损坏
         if(!Arrays.equals(md5, fileMd5)){
+            // 断点中的数据已损坏，不能用于恢复
+            release();
+            checkpoint.delete();
             log.info("original md5: {}", Arrays.toString(fileMd5));
             log.info("transfer md5: {}", Arrays.toString(md5));
             throw new IllegalStateException("file damaged during transfer, fileID: " + fileId);
         }
         // 触发传输完成回调
-        transferCallback.onComplete(fileId, (System.currentTimeMillis() - transferStartTime), receivedSize);
+        transferCallback.onComplete(fileId, (System.currentTimeMillis() - transferStartTime), receivedSize.get());
         release();
+        checkpoint.delete();
     }
 
 
     /**
      * 释放FileAppender
-     * 关闭channel和OutputStream
+     * 关闭channel和OutputStream，保留传输断点
      */
     public void release(){
         if(fileChannel != null){
@@ -154,6 +275,7 @@ public class FileAppender {
                 log.error("error when closing fileChannel", e);
             }
         }
+        checkpoint.close();
 
     }
 }
@@ -0,0 +1,140 @@
+package com.jay.swarm.common.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ *  传输过程中增量计算的文件md5
+ *  按顺序到达的数据直接更新摘要，不需要在传输结束后重新读取整个文件。
+ *  分片乱序到达时（条带上传、多副本下载），先记录已写入磁盘的区间，
+ *  等摘要推进到该区间时再从文件读回，只有乱序的部分会被重新读取。
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/29 15:20
+ */
+public class FileDigest {
+    private final MessageDigest digest;
+
+    private final FileChannel fileChannel;
+
+    /**
+     * 摘要已经计算到的位置
+     */
+    private long position;
+
+    /**
+     * 已写入文件、但位于摘要位置之后的区间
+     * key：起始位置，value：结束位置
+     */
+    private final TreeMap<Long, Long> pendingRanges = new TreeMap<>();
+
+    /**
+     * 读回乱序区间的缓冲
+     */
+    private ByteBuffer readBuffer;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public FileDigest(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+        try{
+            this.digest = MessageDigest.getInstance("MD5");
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException("md5 not supported", e);
+        }
+    }
+
+    /**
+     * 数据已写入文件[offset, offset + data.remaining())，更新摘要
+     * @param offset 数据在文件中的位置
+     * @param data 数据，不会改变它的position
+     * @throws IOException 读回乱序区间失败
+     */
+    public synchronized void update(long offset, ByteBuffer data) throws IOException {
+        long end = offset + data.remaining();
+        if(end <= position){
+            // 重复的数据
+            return;
+        }
+        if(offset == position){
+            digest.update(data.duplicate());
+            position = end;
+        }else{
+            // 乱序的数据，或与已计算部分重叠的数据，记录区间等待读回
+            long start = Math.max(offset, position);
+            Long existing = pendingRanges.get(start);
+            if(existing == null || existing < end){
+                pendingRanges.put(start, end);
+            }
+        }
+        drain();
+    }
+
+    /**
+     * 记录已经在文件中的区间，比如恢复传输时已接收的分片
+     * @param offset 起始位置
+     * @param length 长度
+     * @throws IOException IOException
+     */
+    public synchronized void markWritten(long offset, long length) throws IOException {
+        long end = offset + length;
+        if(end > position){
+            pendingRanges.merge(Math.max(offset, position), end, Math::max);
+            drain();
+        }
+    }
+
+    /**
+     * 完成摘要计算
+     * @param totalSize 文件总大小，摘要未覆盖的部分从文件读取
+     * @return md5
+     * @throws IOException IOException
+     */
+    public synchronized byte[] finish(long totalSize) throws IOException {
+        if(position < totalSize){
+            pendingRanges.clear();
+            readFromFile(totalSize);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * 摘要位置推进后，读回与之相连的乱序区间
+     */
+    private void drain() throws IOException {
+        Map.Entry<Long, Long> first;
+        while((first = pendingRanges.firstEntry()) != null && first.getKey() <= position){
+            pendingRanges.pollFirstEntry();
+            if(first.getValue() > position){
+                readFromFile(first.getValue());
+            }
+        }
+    }
+
+    /**
+     * 从文件读取[position, end)更新摘要
+     */
+    private void readFromFile(long end) throws IOException {
+        if(readBuffer == null){
+            readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+        while(position < end){
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(READ_BUFFER_SIZE, end - position));
+            int read = fileChannel.read(readBuffer, position);
+            if(read <= 0){
+                break;
+            }
+            readBuffer.flip();
+            digest.update(readBuffer);
+            position += read;
+        }
+    }
+}
@@ -38,7 +38,14 @@ public class FileInfoCache {
                     if(!file.exists() || file.isDirectory()){
                         return null;
                     }
-                    byte[] md5 = FileUtil.md5(path);
+                    // 优先使用接收文件时保存的md5
+                    byte[] md5 = FileUtil.loadMd5(path);
+                    if(md5 == null){
+                        md5 = FileUtil.md5(path);
+                        if(md5 != null){
+                            FileUtil.saveMd5(path, md5);
+                        }
+                    }
                     fileInfo = FileInfo.builder().fileId(fileId)
                             .md5(md5)
                             .totalSize(file.length())
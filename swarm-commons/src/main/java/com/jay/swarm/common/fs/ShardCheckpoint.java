@@ -0,0 +1,207 @@
+package com.jay.swarm.common.fs;
+
+import com.jay.swarm.common.constants.SwarmConstants;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * <p>
+ *  传输断点
+ *  记录文件中已经写入并校验过的分片，保存在文件旁的 path.ckpt 中。
+ *  格式：md5(16) + 文件大小(8) + 分片大小(4) + 每个分片一个字节（1表示已完成）
+ *  分片写入后定位写一个字节，不需要重写整个断点文件。
+ *  断点只在传输成功后删除，连接中断或进程退出后，下次传输同一个文件时从断点继续。
+ *  断点不强制刷盘，断电丢失的数据由传输结束时的md5校验发现。
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/30 14:40
+ */
+@Slf4j
+public class ShardCheckpoint {
+    public static final String SUFFIX = ".ckpt";
+
+    private static final int HEADER_LENGTH = 16 + 8 + 4;
+
+    private static final byte DONE = 1;
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final long totalSize;
+
+    private final int shardCount;
+
+    /**
+     * 已完成的分片
+     */
+    private final BitSet completed;
+
+    private ShardCheckpoint(File file, FileChannel channel, long totalSize, BitSet completed) {
+        this.file = file;
+        this.channel = channel;
+        this.totalSize = totalSize;
+        this.shardCount = shardCount(totalSize);
+        this.completed = completed;
+    }
+
+    /**
+     * 打开文件的断点
+     * 断点不存在或与文件信息不符时，创建新的断点
+     * @param path 文件路径
+     * @param md5 文件md5
+     * @param totalSize 文件大小
+     * @return ShardCheckpoint
+     * @throws IOException IOException
+     */
+    public static ShardCheckpoint open(String path, byte[] md5, long totalSize) throws IOException {
+        File file = new File(path + SUFFIX);
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try{
+            int shardCount = shardCount(totalSize);
+            BitSet completed = load(channel, md5, totalSize, shardCount);
+            if(completed == null){
+                // 新的断点
+                completed = new BitSet(shardCount);
+                channel.truncate(0);
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + shardCount);
+                buffer.put(md5 == null ? new byte[16] : md5, 0, 16);
+                buffer.putLong(totalSize);
+                buffer.putInt(SwarmConstants.DEFAULT_SHARD_SIZE);
+                buffer.position(buffer.limit());
+                buffer.flip();
+                while(buffer.hasRemaining()){
+                    channel.write(buffer, buffer.position());
+                }
+            }
+            return new ShardCheckpoint(file, channel, totalSize, completed);
+        }catch (IOException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 检查断点文件是否存在
+     * @param path 文件路径
+     * @return boolean
+     */
+    public static boolean exists(String path){
+        return new File(path + SUFFIX).exists();
+    }
+
+    /**
+     * 读取已有的断点
+     * @return 已完成的分片，断点无效时返回null
+     */
+    private static BitSet load(FileChannel channel, byte[] md5, long totalSize, int shardCount) throws IOException {
+        if(channel.size() != HEADER_LENGTH + shardCount){
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + shardCount);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, buffer.position()) < 0){
+                return null;
+            }
+        }
+        buffer.flip();
+        byte[] savedMd5 = new byte[16];
+        buffer.get(savedMd5);
+        if(md5 != null && !Arrays.equals(savedMd5, md5) || buffer.getLong() != totalSize
+                || buffer.getInt() != SwarmConstants.DEFAULT_SHARD_SIZE){
+            return null;
+        }
+        BitSet completed = new BitSet(shardCount);
+        for(int i = 0; i < shardCount; i++){
+            if(buffer.get() == DONE){
+                completed.set(i);
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * 记录已写入的数据
+     * 只有完整的分片会被记录，不对齐分片的数据忽略
+     * @param position 数据位置
+     * @param length 数据长度
+     * @throws IOException IOException
+     */
+    public void markWritten(long position, long length) throws IOException {
+        if(position % SwarmConstants.DEFAULT_SHARD_SIZE != 0 || length != shardLength(position)){
+            return;
+        }
+        int index = (int) (position / SwarmConstants.DEFAULT_SHARD_SIZE);
+        synchronized (this){
+            if(completed.get(index)){
+                return;
+            }
+            completed.set(index);
+        }
+        channel.write(ByteBuffer.wrap(new byte[]{DONE}), HEADER_LENGTH + index);
+    }
+
+    /**
+     * 已完成的分片
+     * @return BitSet拷贝，下标为分片序号
+     */
+    public synchronized BitSet completed(){
+        return (BitSet) completed.clone();
+    }
+
+    /**
+     * 已完成分片的总大小
+     * @return bytes
+     */
+    public synchronized long completedSize(){
+        long size = 0;
+        for(int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)){
+            size += shardLength((long) i * SwarmConstants.DEFAULT_SHARD_SIZE);
+        }
+        return size;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * 分片的实际长度，最后一个分片可能不足分片大小
+     */
+    public long shardLength(long position){
+        return Math.min(SwarmConstants.DEFAULT_SHARD_SIZE, totalSize - position);
+    }
+
+    /**
+     * 关闭断点，保留断点文件
+     */
+    public void close(){
+        try{
+            channel.close();
+        }catch (IOException e){
+            log.error("error when closing checkpoint", e);
+        }
+    }
+
+    /**
+     * 传输完成，删除断点文件
+     */
+    public void delete(){
+        close();
+        if(file.exists() && !file.delete()){
+            log.warn("unable to delete checkpoint {}", file.getPath());
+        }
+    }
+
+    private static int shardCount(long totalSize){
+        return (int) ((totalSize + SwarmConstants.DEFAULT_SHARD_SIZE - 1) / SwarmConstants.DEFAULT_SHARD_SIZE);
+    }
+}
@@ -5,11 +5,16 @@ import com.jay.swarm.common.network.handler.PacketEncoder;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.EventExecutorGroup;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -20,20 +25,44 @@ import java.util.List;
  * @author Jay
  * @date 2021/12/09 15:15
  */
-public class BaseChannelInitializer extends ChannelInitializer<NioSocketChannel> {
+public class BaseChannelInitializer extends ChannelInitializer<SocketChannel> {
 
     private List<ChannelHandler> handlers = new ArrayList<>();
 
+    /**
+     * 处理器使用的执行器组，不在其中的处理器在EventLoop中执行
+     */
+    private final Map<ChannelHandler, EventExecutorGroup> executorGroups = new HashMap<>();
+
+    /**
+     * 放在pipeline最后的处理器，处理其他处理器没有处理的报文
+     */
+    private ChannelHandler tail;
+
+    /**
+     * 合并flush，连续多少次flush后强制写出，0表示不合并
+     */
+    private int flushConsolidation;
+
     @Override
-    protected void initChannel(NioSocketChannel nioSocketChannel) throws Exception {
-        ChannelPipeline pipeline = nioSocketChannel.pipeline();
+    protected void initChannel(SocketChannel socketChannel) throws Exception {
+        ChannelPipeline pipeline = socketChannel.pipeline();
+        // 放在最前面，合并所有处理器的flush，一批请求的回复用一次系统调用写出
+        if(flushConsolidation > 0){
+            pipeline.addLast(new FlushConsolidationHandler(flushConsolidation, true));
+        }
         // decoder & encoder
         pipeline.addLast(new PacketDecoder());
         pipeline.addLast(new PacketEncoder());
+        // 文件分片无法零拷贝时，由ChunkedWriteHandler分块写出
+        pipeline.addLast(new ChunkedWriteHandler());
 
         // other handlers
         for(ChannelHandler handler : handlers){
-            pipeline.addLast(handler);
+            pipeline.addLast(executorGroups.get(handler), handler);
+        }
+        if(tail != null){
+            pipeline.addLast(tail);
         }
     }
 
@@ -43,6 +72,36 @@ public class BaseChannelInitializer extends ChannelInitializer<NioSocketChannel>
         }
     }
 
+    /**
+     * 添加在执行器组中执行的处理器
+     * 同一个channel的事件总是由组中同一个执行器按顺序处理，处理器中的阻塞操作不会占用EventLoop
+     * @param group 执行器组
+     * @param handler 处理器
+     */
+    public void addHandler(EventExecutorGroup group, ChannelHandler handler){
+        if(handler != null){
+            handlers.add(handler);
+            executorGroups.put(handler, group);
+        }
+    }
+
+    /**
+     * 设置pipeline最后的处理器，之后添加的处理器仍然在它之前
+     * @param tail 处理器
+     */
+    public void setTail(ChannelHandler tail){
+        this.tail = tail;
+    }
+
+    /**
+     * 开启flush合并
+     * 读事件处理期间的flush推迟到channelReadComplete，其他线程发起的flush推迟到下一个EventLoop任务
+     * @param explicitFlushAfterFlushes 连续多少次flush后强制写出，0表示不合并
+     */
+    public void setFlushConsolidation(int explicitFlushAfterFlushes){
+        this.flushConsolidation = explicitFlushAfterFlushes;
+    }
+
     public void addHandlers(Collection<ChannelHandler> handlers){
         if(handlers != null && !handlers.isEmpty()){
             this.handlers.addAll(handlers);
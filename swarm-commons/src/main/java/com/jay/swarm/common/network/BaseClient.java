@@ -1,26 +1,36 @@
 package com.jay.swarm.common.network;
 
+import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.config.NetworkConfig;
 import com.jay.swarm.common.network.entity.NetworkPacket;
 import com.jay.swarm.common.network.handler.BaseClientHandler;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.Future;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>
  *  基础客户端
+ *
+ *  请求流水线：发送请求时只write，在EventLoop任务队列末尾安排一次flush，
+ *  同一周期内发往同一连接的请求由这一次flush一起写出，不等待前一个请求的回复。
  * </p>
  *
  * @author Jay
@@ -31,15 +41,30 @@ public class BaseClient {
 
     private final BaseChannelInitializer channelInitializer = new BaseChannelInitializer();
     /**
-     * channelMap，保留向StorageNode的连接
+     * 连接池，key：host:port
+     */
+    private final Map<String, ChannelPool> pools = new ConcurrentHashMap<>(256);
+
+    /**
+     * 连接池维护周期，毫秒
+     */
+    private static final long POOL_MAINTAIN_PERIOD = 5000;
+
+    /**
+     * 连接上是否已经安排了flush，只在EventLoop中访问
      */
-    private final static Map<String, Channel> CHANNEL_MAP = new ConcurrentHashMap<>(256);
+    private static final AttributeKey<Boolean> FLUSH_SCHEDULED = AttributeKey.valueOf("swarm.client.flushScheduled");
+
+    private final EventLoopGroup group;
 
-    private final EventLoopGroup group = new NioEventLoopGroup();
     /**
-     * 当前连接的channel
+     * 网络调优配置
+     */
+    private final NetworkConfig networkConfig;
+    /**
+     * 所有连接共用的Bootstrap，每个连接池复制后设置目标地址
      */
-    private Channel currentChannel;
+    private final Bootstrap bootstrap;
     /**
      * 等待队列
      */
@@ -48,7 +73,30 @@ public class BaseClient {
     private final AtomicInteger idProvider = new AtomicInteger(1);
 
 
+    /**
+     * channel的内存分配器
+     */
+    private final ByteBufAllocator allocator;
+
     public BaseClient() {
+        this(null);
+    }
+
+    public BaseClient(Config config) {
+        this.networkConfig = NetworkConfig.load(config);
+        this.allocator = PooledAllocatorFactory.create(config);
+        this.group = TransportFactory.eventLoopGroup(networkConfig, networkConfig.getClientThreads());
+        // 回复报文由pipeline最后的BaseClientHandler交给等待队列，只添加一次
+        this.channelInitializer.setTail(new BaseClientHandler(responseWaitSet));
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(TransportFactory.channelClass(networkConfig))
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .handler(channelInitializer);
+        TransportFactory.configure(bootstrap, networkConfig);
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.ADVANCED);
+        group.scheduleAtFixedRate(() -> pools.values().forEach(ChannelPool::maintain),
+                POOL_MAINTAIN_PERIOD, POOL_MAINTAIN_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     public void addHandler(ChannelHandler handler){
@@ -60,81 +108,224 @@ public class BaseClient {
     }
 
     /**
-     * 建立连接，并缓存channel
+     * 建立连接，阻塞直到连接建立
      * @param host host
      * @param port port
      * @return Channel
      * @throws ConnectException 连接失败异常
      */
     public Channel connect(String host, int port) throws ConnectException {
-        try{
-            String key = host + ":" + port;
-            // CHANNEL_MAP中找到channel
-            Channel channel = CHANNEL_MAP.get(key);
-            // 连接不存在 或 无法使用
-            if(channel == null || !channel.isActive()){
-                Bootstrap bootstrap = new Bootstrap()
-                        .group(group)
-                        .channel(NioSocketChannel.class)
-                        .handler(channelInitializer)
-                        .remoteAddress(new InetSocketAddress(host, port));
-                ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.ADVANCED);
-                addHandler(new BaseClientHandler(responseWaitSet));
-                // 建立连接
-                ChannelFuture channelFuture = bootstrap.connect().sync();
-                channel = channelFuture.channel();
-                CHANNEL_MAP.put(key, channel);
-            }
-            return channel;
-        } catch (Exception e) {
-            // 关闭线程组
-            group.shutdownGracefully();
-            if(log.isDebugEnabled()){
-                log.debug("connection refused {}", host + ":" + port);
-            }
-            throw new ConnectException("connection refused by " + host + ":" + port);
-        }
+        return connect(host, port, 0);
     }
 
     /**
-     * 发送报文
+     * 获取到目标的第stripe条连接，阻塞直到连接建立
+     * 条带上传时，同一个目标会使用连接池中的多条连接并行发送，stripe超过最大连接数时循环使用
+     * @param host host
+     * @param port port
+     * @param stripe 连接序号，0表示默认连接
+     * @return Channel
+     * @throws ConnectException 连接失败异常
+     */
+    public Channel connect(String host, int port, int stripe) throws ConnectException {
+        return pool(host, port).channel(stripe);
+    }
+
+    /**
+     * 异步获取到目标的第stripe条连接，不阻塞调用线程
+     * @param host host
+     * @param port port
+     * @param stripe 连接序号，0表示默认连接
+     * @return CompletableFuture，连接失败时以ConnectException异常完成
+     */
+    public CompletableFuture<Channel> connectAsync(String host, int port, int stripe) {
+        return pool(host, port).channelAsync(stripe);
+    }
+
+    /**
+     * 获取目标地址的连接池
+     */
+    private ChannelPool pool(String host, int port){
+        return pools.computeIfAbsent(host + ":" + port, key -> new ChannelPool(key,
+                bootstrap.clone().remoteAddress(new InetSocketAddress(host, port)),
+                networkConfig.getPoolMinConnections(), networkConfig.getPoolMaxConnections(),
+                networkConfig.getConnectTimeout()));
+    }
+
+    /**
+     * 发送报文，使用默认期限client.request.timeout
+     * 从连接池中选择未完成请求最少的连接，没有可用连接时异步建立连接，不阻塞调用线程
      * @param host 目标地址
      * @param port 目标端口
      * @param packet 报文
-     * @return CompletableFuture
-     * @throws ConnectException 连接异常
+     * @return CompletableFuture，连接失败时以ConnectException异常完成，超过期限时以TimeoutException异常完成
      */
-    public CompletableFuture<Object> sendAsync(String host, int port, NetworkPacket packet) throws ConnectException {
-        // 建立连接
-        Channel channel = connect(host, port);
+    public CompletableFuture<Object> sendAsync(String host, int port, NetworkPacket packet) {
+        return sendAsync(host, port, packet, networkConfig.getRequestTimeout());
+    }
+
+    /**
+     * 发送有期限的报文
+     * 期限从调用时开始计算，包括建立连接的时间，报文首部携带发送时剩余的时间
+     * @param host 目标地址
+     * @param port 目标端口
+     * @param packet 报文
+     * @param timeoutMillis 期限，毫秒，0表示没有期限（如等待整个文件发送完成的下载请求）
+     * @return CompletableFuture，连接失败时以ConnectException异常完成
+     */
+    public CompletableFuture<Object> sendAsync(String host, int port, NetworkPacket packet, long timeoutMillis) {
         CompletableFuture<Object> result = new CompletableFuture<>();
-        packet.setId(idProvider.getAndIncrement());
+        int id = idProvider.getAndIncrement();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        packet.setId(id);
         // 缓存future
-        responseWaitSet.addWaiter(packet.getId(), result);
-        // 发送报文
-        channel.writeAndFlush(packet);
+        responseWaitSet.addWaiter(id, result, timeoutMillis);
+        pool(host, port).acquire().whenComplete((channel, error) -> {
+            if(error != null){
+                responseWaitSet.fail(id, error);
+                return;
+            }
+            // 建立连接期间已经超时
+            if(result.isDone()){
+                return;
+            }
+            responseWaitSet.bind(id, channel);
+            ChannelPool.track(channel, result);
+            packet.setTimeout(remaining(timeoutMillis, deadline));
+            // 发送报文
+            write(channel, packet).addListener(future -> onWritten(id, future));
+        });
         return result;
     }
 
-    public void shutdown(){
-        // 关闭当前连接
-        if(currentChannel != null){
-            currentChannel.close();
+    /**
+     * 写出请求报文
+     * 开启流水线时，写操作在EventLoop中执行，第一个写操作在任务队列末尾加入flush任务，
+     * 在flush任务之前入队的写操作都由这一次flush发出
+     * @param channel 连接
+     * @param msg 报文
+     * @return ChannelFuture
+     */
+    private ChannelFuture write(Channel channel, Object msg){
+        if(!networkConfig.isClientPipelining()){
+            return channel.writeAndFlush(msg);
+        }
+        ChannelPromise promise = channel.newPromise();
+        EventLoop eventLoop = channel.eventLoop();
+        if(eventLoop.inEventLoop()){
+            pipelinedWrite(channel, msg, promise);
+        }else{
+            eventLoop.execute(() -> pipelinedWrite(channel, msg, promise));
+        }
+        return promise;
+    }
+
+    private static void pipelinedWrite(Channel channel, Object msg, ChannelPromise promise){
+        channel.write(msg, promise);
+        Attribute<Boolean> scheduled = channel.attr(FLUSH_SCHEDULED);
+        if(!Boolean.TRUE.equals(scheduled.get())){
+            scheduled.set(true);
+            channel.eventLoop().execute(() -> {
+                scheduled.set(false);
+                channel.flush();
+            });
+        }
+    }
+
+    /**
+     * 写出失败的请求不会有回复，立即失败
+     */
+    private void onWritten(int id, Future<? super Void> future){
+        if(!future.isSuccess()){
+            responseWaitSet.fail(id, future.cause());
         }
-        // 关闭CHANNEL_MAP中的连接
-        CHANNEL_MAP.values().forEach(ChannelOutboundInvoker::close);
+    }
+
+    /**
+     * 报文首部中的剩余时间
+     * @return 毫秒，没有期限时为0，已经到期时为1，由接收方丢弃
+     */
+    private static int remaining(long timeoutMillis, long deadline){
+        if(timeoutMillis <= 0){
+            return 0;
+        }
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, remaining));
+    }
+
+    public NetworkConfig getNetworkConfig() {
+        return networkConfig;
+    }
+
+    public void shutdown(){
+        // 关闭连接池中的连接
+        pools.values().forEach(ChannelPool::close);
+        pools.clear();
         // 关闭线程组
         group.shutdownGracefully();
     }
 
     public CompletableFuture<Object> sendAsync(String host, int port, short type, ByteBuf data) throws ConnectException {
-        Channel channel = connect(host, port);
+        return sendAsync(connect(host, port), type, data);
+    }
+
+    /**
+     * 通过指定的channel发送报文
+     * @param channel 已建立的连接
+     * @param type 报文类型
+     * @param data 数据部分
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Object> sendAsync(Channel channel, short type, ByteBuf data) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        int id = idProvider.getAndIncrement();
+        int timeout = networkConfig.getRequestTimeout();
+        responseWaitSet.addWaiter(id, result, timeout);
+        responseWaitSet.bind(id, channel);
+        ChannelPool.track(channel, result);
+        ByteBuf header = NetworkPacket.header(channel.alloc(), id, type, data.readableBytes(), timeout);
+        ByteBuf packet = NetworkPacket.combine(channel.alloc(), header, data);
+        write(channel, packet).addListener(future -> onWritten(id, future));
+        return result;
+    }
+
+    /**
+     * 发送文件分片报文
+     * 报文首部和前缀单独写出，文件数据零拷贝发送
+     * @param host 目标地址
+     * @param port 目标端口
+     * @param type 报文类型
+     * @param prefix 数据前缀
+     * @param file 文件
+     * @param position 分片位置
+     * @param count 分片长度
+     * @return CompletableFuture
+     * @throws IOException 连接异常或文件打开失败
+     */
+    public CompletableFuture<Object> sendFileAsync(String host, int port, short type, ByteBuf prefix, File file, long position, long count) throws IOException {
+        return sendFileAsync(connect(host, port), type, prefix, file, position, count);
+    }
+
+    /**
+     * 通过指定的channel发送文件分片报文
+     * @param channel 已建立的连接
+     * @param type 报文类型
+     * @param prefix 数据前缀
+     * @param file 文件
+     * @param position 分片位置
+     * @param count 分片长度
+     * @return CompletableFuture
+     * @throws IOException 文件打开失败
+     */
+    public CompletableFuture<Object> sendFileAsync(Channel channel, short type, ByteBuf prefix, File file, long position, long count) throws IOException {
         CompletableFuture<Object> result = new CompletableFuture<>();
         int id = idProvider.getAndIncrement();
-        responseWaitSet.addWaiter(id, result);
-        ByteBuf header = NetworkPacket.header(id, type, data.readableBytes());
-        ByteBuf packet = NetworkPacket.combine(header, data);
-        channel.writeAndFlush(packet);
+        int timeout = networkConfig.getRequestTimeout();
+        responseWaitSet.addWaiter(id, result, timeout);
+        responseWaitSet.bind(id, channel);
+        ChannelPool.track(channel, result);
+        FileShardWriter.write(channel, id, type, timeout, prefix, file, position, count)
+                .addListener(future -> onWritten(id, future));
         return result;
     }
 }
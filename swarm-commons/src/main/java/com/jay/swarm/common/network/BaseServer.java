@@ -1,11 +1,14 @@
 package com.jay.swarm.common.network;
 
+import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.config.NetworkConfig;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
 import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.EventExecutorGroup;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Collection;
@@ -20,16 +23,49 @@ import java.util.Collection;
  */
 @Slf4j
 public class BaseServer {
-    private final NioEventLoopGroup boss = new NioEventLoopGroup(1);
+    private final EventLoopGroup boss;
 
-    private final NioEventLoopGroup worker = new NioEventLoopGroup();
+    private final EventLoopGroup worker;
+
+    /**
+     * 网络调优配置
+     */
+    private final NetworkConfig networkConfig;
 
     private final BaseChannelInitializer channelInitializer = new BaseChannelInitializer();
 
+    /**
+     * channel的内存分配器
+     */
+    private final ByteBufAllocator allocator;
+
+    public BaseServer() {
+        this(null);
+    }
+
+    public BaseServer(Config config) {
+        this.networkConfig = NetworkConfig.load(config);
+        this.allocator = PooledAllocatorFactory.create(config);
+        // 每个监听channel由一个boss线程处理
+        this.boss = TransportFactory.eventLoopGroup(networkConfig, Math.max(networkConfig.getBossThreads(), TransportFactory.acceptors(networkConfig)));
+        this.worker = TransportFactory.eventLoopGroup(networkConfig, networkConfig.getWorkerThreads());
+        // 处理器中的writeAndFlush合并，客户端流水线发来的一批请求的回复一起写出
+        this.channelInitializer.setFlushConsolidation(networkConfig.getFlushConsolidation());
+    }
+
     public void addHandler(ChannelHandler handler){
         channelInitializer.addHandler(handler);
     }
 
+    /**
+     * 添加在执行器组中执行的处理器
+     * @param group 执行器组
+     * @param handler 处理器
+     */
+    public void addHandler(EventExecutorGroup group, ChannelHandler handler){
+        channelInitializer.addHandler(group, handler);
+    }
+
     public void addHandlers(Collection<ChannelHandler> handlers){
         channelInitializer.addHandlers(handlers);
     }
@@ -37,14 +73,29 @@ public class BaseServer {
     public void bind(int port){
         try{
             ServerBootstrap serverBootstrap = new ServerBootstrap().group(boss, worker)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(TransportFactory.serverChannelClass(networkConfig))
+                    .option(ChannelOption.ALLOCATOR, allocator)
+                    .childOption(ChannelOption.ALLOCATOR, allocator)
                     .childHandler(channelInitializer);
+            TransportFactory.configure(serverBootstrap, networkConfig);
             // 内存泄漏检测
             ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.ADVANCED);
-            ChannelFuture channelFuture = serverBootstrap.bind(port).sync();
-            log.info("server started");
+            // 开启SO_REUSEPORT时同一端口绑定多次，由内核分配连接
+            int acceptors = TransportFactory.acceptors(networkConfig);
+            for(int i = 0; i < acceptors; i++){
+                serverBootstrap.bind(port).sync();
+            }
+            log.info("server started, transport: {}, acceptors: {}, {}", TransportFactory.name(networkConfig), acceptors, networkConfig);
         } catch (InterruptedException e) {
             log.error("server start failed ", e);
         }
     }
+
+    /**
+     * 关闭监听和所有连接
+     */
+    public void shutdown(){
+        boss.shutdownGracefully();
+        worker.shutdownGracefully();
+    }
 }
@@ -0,0 +1,244 @@
+package com.jay.swarm.common.network;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.util.AttributeKey;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *  到一个目标地址的连接池
+ *  请求选择未完成请求最少的连接，所有连接都有未完成请求时，在不超过最大连接数的前提下异步建立新连接，
+ *  当前请求仍然使用负载最小的已有连接，不等待新连接。
+ *  没有可用连接时，请求等待正在建立的连接，连接建立不阻塞调用线程。
+ *
+ *  关闭的连接从池中移除；维护任务定期移除失效连接、补足最小连接数，
+ *  并关闭空闲超过IDLE_TIMEOUT的多余连接。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/13 10:20
+ */
+@Slf4j
+class ChannelPool {
+    /**
+     * 连接上未完成的请求数
+     */
+    private static final AttributeKey<AtomicInteger> OUTSTANDING = AttributeKey.valueOf("swarm.pool.outstanding");
+    /**
+     * 连接最后一次发送请求的时间
+     */
+    private static final AttributeKey<AtomicLong> LAST_USED = AttributeKey.valueOf("swarm.pool.lastUsed");
+
+    /**
+     * 多余连接的空闲时间上限，毫秒
+     */
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private final String address;
+    private final Bootstrap bootstrap;
+    private final int minConnections;
+    private final int maxConnections;
+    private final long connectTimeout;
+
+    private final CopyOnWriteArrayList<Channel> channels = new CopyOnWriteArrayList<>();
+    /**
+     * 正在建立的连接数
+     */
+    private final AtomicInteger connecting = new AtomicInteger();
+    /**
+     * 最近一次发起的连接，没有可用连接的请求等待它
+     */
+    private volatile CompletableFuture<Channel> pendingConnect;
+    private volatile boolean closed;
+    /**
+     * 最后一次获取连接的时间，长期不用的目标不再补足最小连接数
+     */
+    private volatile long lastAcquire = System.currentTimeMillis();
+
+    ChannelPool(String address, Bootstrap bootstrap, int minConnections, int maxConnections, long connectTimeout) {
+        this.address = address;
+        this.bootstrap = bootstrap;
+        this.minConnections = minConnections;
+        this.maxConnections = Math.max(minConnections, maxConnections);
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * 获取负载最小的连接
+     * @return 已有连接时立即完成，否则在新连接建立后完成，连接失败时以ConnectException异常完成
+     */
+    CompletableFuture<Channel> acquire(){
+        lastAcquire = System.currentTimeMillis();
+        Channel best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (Channel channel : channels) {
+            if(!channel.isActive()){
+                channels.remove(channel);
+                continue;
+            }
+            int load = channel.attr(OUTSTANDING).get().get();
+            if(load < bestLoad){
+                best = channel;
+                bestLoad = load;
+            }
+        }
+        if(best == null){
+            CompletableFuture<Channel> pending = pendingConnect;
+            if(pending != null && !pending.isDone()){
+                return pending;
+            }
+            reserve(Integer.MAX_VALUE);
+            return connect();
+        }
+        // 所有连接都在处理请求，扩容
+        if(bestLoad > 0 && reserve(maxConnections)){
+            connect();
+        }
+        return CompletableFuture.completedFuture(best);
+    }
+
+    /**
+     * 获取第index条连接，连接数不足时建立新连接，不阻塞调用线程
+     * 条带传输需要固定的多条连接，index超过最大连接数时循环使用
+     * @param index 连接序号
+     * @return 连接建立后完成，连接失败时以ConnectException异常完成
+     */
+    CompletableFuture<Channel> channelAsync(int index){
+        // 连接列表随时被连接关闭和维护任务修改，大小和元素从同一个快照中读取
+        Object[] snapshot = channels.toArray();
+        if(snapshot.length > index){
+            return CompletableFuture.completedFuture((Channel) snapshot[index]);
+        }
+        if(reserve(maxConnections)){
+            return connect().thenCompose(channel -> channelAsync(index));
+        }
+        if(snapshot.length == 0){
+            return acquire();
+        }
+        return CompletableFuture.completedFuture((Channel) snapshot[index % snapshot.length]);
+    }
+
+    /**
+     * 获取第index条连接，阻塞直到连接建立
+     * 最多依次建立index + 1条连接，每条不超过连接超时时间
+     * @param index 连接序号
+     * @return Channel
+     * @throws ConnectException 连接失败
+     */
+    Channel channel(int index) throws ConnectException {
+        try{
+            return channelAsync(index).get(connectTimeout * (index + 1), TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new ConnectException("connection to " + address + " interrupted");
+        }catch (ExecutionException | TimeoutException e){
+            throw new ConnectException("connection refused by " + address);
+        }
+    }
+
+    /**
+     * 占用一个连接名额
+     * @param limit 连接数上限
+     * @return 连接数未达到上限时返回true
+     */
+    private boolean reserve(int limit){
+        while(true){
+            int current = connecting.get();
+            if(channels.size() + current >= limit){
+                return false;
+            }
+            if(connecting.compareAndSet(current, current + 1)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 异步建立连接，调用前需要reserve
+     */
+    private CompletableFuture<Channel> connect(){
+        CompletableFuture<Channel> future = new CompletableFuture<>();
+        pendingConnect = future;
+        bootstrap.connect().addListener((ChannelFuture channelFuture) -> {
+            if(channelFuture.isSuccess()){
+                Channel channel = channelFuture.channel();
+                channel.attr(OUTSTANDING).set(new AtomicInteger());
+                channel.attr(LAST_USED).set(new AtomicLong(System.currentTimeMillis()));
+                channels.add(channel);
+                connecting.decrementAndGet();
+                // 连接关闭后从池中移除
+                channel.closeFuture().addListener(f -> channels.remove(channel));
+                if(closed){
+                    channel.close();
+                }
+                future.complete(channel);
+            }else{
+                connecting.decrementAndGet();
+                if(log.isDebugEnabled()){
+                    log.debug("connection refused {}", address, channelFuture.cause());
+                }
+                future.completeExceptionally(new ConnectException("connection refused by " + address));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 记录连接上的请求，请求完成后减少未完成请求数
+     * @param channel 连接
+     * @param future 请求的future
+     */
+    static void track(Channel channel, CompletableFuture<Object> future){
+        AtomicInteger outstanding = channel.attr(OUTSTANDING).get();
+        if(outstanding == null){
+            return;
+        }
+        outstanding.incrementAndGet();
+        channel.attr(LAST_USED).get().set(System.currentTimeMillis());
+        future.whenComplete((result, error) -> outstanding.decrementAndGet());
+    }
+
+    /**
+     * 维护连接池：移除失效连接，补足最小连接数，关闭空闲的多余连接
+     */
+    void maintain(){
+        if(closed){
+            return;
+        }
+        channels.removeIf(channel -> !channel.isActive());
+        long now = System.currentTimeMillis();
+        for (Channel channel : channels) {
+            if(channels.size() <= minConnections){
+                break;
+            }
+            boolean idle = channel.attr(OUTSTANDING).get().get() == 0
+                    && now - channel.attr(LAST_USED).get().get() > IDLE_TIMEOUT;
+            if(idle && channels.remove(channel)){
+                channel.close();
+            }
+        }
+        // 目标长期没有请求时（如已下线的存储节点）不再重连
+        while(now - lastAcquire <= IDLE_TIMEOUT && reserve(minConnections)){
+            connect();
+        }
+    }
+
+    void close(){
+        closed = true;
+        for (Channel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+    }
+}
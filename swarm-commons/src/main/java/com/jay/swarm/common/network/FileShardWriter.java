@@ -0,0 +1,112 @@
+package com.jay.swarm.common.network;
+
+import com.jay.swarm.common.network.entity.NetworkPacket;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.compression.ZlibEncoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ *  文件分片零拷贝写出工具
+ *  报文首部和分片前缀单独写出，文件数据部分以FileRegion方式交给内核(sendfile)直接写入socket，
+ *  不经过用户态的缓冲区拷贝。
+ *  当channel上有SSL或压缩处理器时，数据必须经过用户态处理，此时退化为ChunkedNioFile分块读取。
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/27 14:05
+ */
+public class FileShardWriter {
+
+    /**
+     * ChunkedNioFile每次读取的块大小
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * 写出一个文件分片报文
+     * 首部、前缀、文件数据在同一个EventLoop任务中写出，避免与其他线程的报文交错
+     * @param channel channel
+     * @param id 报文ID
+     * @param type 报文类型
+     * @param prefix 数据部分前缀，比如文件ID
+     * @param file 文件
+     * @param position 分片在文件中的位置
+     * @param count 分片长度
+     * @return ChannelFuture 文件数据写出结果
+     * @throws IOException IOException
+     */
+    public static ChannelFuture write(Channel channel, int id, short type, ByteBuf prefix, File file, long position, long count) throws IOException {
+        return write(channel, id, type, 0, prefix, file, position, count);
+    }
+
+    /**
+     * 写出一个带期限的文件分片报文
+     * @param channel channel
+     * @param id 报文ID
+     * @param type 报文类型
+     * @param timeout 剩余等待时间，毫秒，0表示没有期限
+     * @param prefix 数据部分前缀
+     * @param file 文件
+     * @param position 分片在文件中的位置
+     * @param count 分片长度
+     * @return ChannelFuture 文件数据写出结果
+     * @throws IOException IOException
+     */
+    public static ChannelFuture write(Channel channel, int id, short type, int timeout, ByteBuf prefix, File file, long position, long count) throws IOException {
+        ByteBuf header = NetworkPacket.header(channel.alloc(), id, type, (int)(prefix.readableBytes() + count), timeout);
+        ByteBuf head = NetworkPacket.combine(channel.alloc(), header, prefix);
+        Object body = fileBody(channel, file, position, count);
+        ChannelPromise promise = channel.newPromise();
+        if(channel.eventLoop().inEventLoop()){
+            channel.write(head);
+            channel.writeAndFlush(body, promise);
+        }else{
+            channel.eventLoop().execute(()->{
+                channel.write(head);
+                channel.writeAndFlush(body, promise);
+            });
+        }
+        return promise;
+    }
+
+    /**
+     * 生成文件数据部分
+     * @param channel channel
+     * @param file 文件
+     * @param position 起始位置
+     * @param count 长度
+     * @return FileRegion 或 ChunkedNioFile
+     * @throws IOException IOException
+     */
+    public static Object fileBody(Channel channel, File file, long position, long count) throws IOException {
+        if(zeroCopySupported(channel)){
+            // DefaultFileRegion在传输时才打开文件，释放时关闭
+            return new DefaultFileRegion(file, position, count);
+        }
+        // SSL或压缩时无法使用sendfile，使用分块读取
+        FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+        return new ChunkedNioFile(fileChannel, position, count, CHUNK_SIZE);
+    }
+
+    /**
+     * 判断channel是否能够使用FileRegion零拷贝
+     * @param channel channel
+     * @return boolean
+     */
+    public static boolean zeroCopySupported(Channel channel){
+        ChannelPipeline pipeline = channel.pipeline();
+        return pipeline.get(SslHandler.class) == null && pipeline.get(ZlibEncoder.class) == null;
+    }
+}
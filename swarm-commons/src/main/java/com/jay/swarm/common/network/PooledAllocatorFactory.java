@@ -0,0 +1,94 @@
+package com.jay.swarm.common.network;
+
+import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.util.StringUtils;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>
+ *  池化内存分配器
+ *  BaseServer和BaseClient的channel使用该分配器，报文首部、分片前缀、拷贝模式的分片数据
+ *  都从channel的分配器申请直接内存，写出后归还内存池，持续上传时不产生大量短命的堆内缓冲。
+ *
+ *  分配器在进程内只创建一次，同一进程中的BaseServer和BaseClient共用同一组arena和chunk，
+ *  后创建的组件使用第一次创建时的配置。
+ *
+ *  配置项（未配置时使用Netty默认值）：
+ *  allocator.direct.arenas  直接内存arena数量
+ *  allocator.heap.arenas    堆内存arena数量
+ *  allocator.page.size      页大小，2的幂
+ *  allocator.max.order      chunk大小 = 页大小 << max.order
+ *  allocator.pooled         设置为false时使用非池化分配器，用于对比测试，默认true
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/31 10:20
+ */
+@Slf4j
+public class PooledAllocatorFactory {
+
+    /**
+     * 进程内共用的分配器
+     */
+    private static volatile ByteBufAllocator shared;
+
+    private PooledAllocatorFactory(){
+
+    }
+
+    /**
+     * 获取进程内共用的池化分配器，第一次调用时按配置创建
+     * @param config 配置，为null且还没有创建分配器时返回默认分配器
+     * @return ByteBufAllocator
+     */
+    public static ByteBufAllocator create(Config config){
+        ByteBufAllocator allocator = shared;
+        if(allocator != null){
+            return allocator;
+        }
+        if(config == null){
+            return PooledByteBufAllocator.DEFAULT;
+        }
+        synchronized (PooledAllocatorFactory.class){
+            if(shared == null){
+                shared = newAllocator(config);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * 按配置创建池化分配器
+     */
+    private static ByteBufAllocator newAllocator(Config config){
+        if("false".equals(config.get("allocator.pooled"))){
+            log.info("unpooled allocator");
+            return UnpooledByteBufAllocator.DEFAULT;
+        }
+        int directArenas = intValue(config, "allocator.direct.arenas", PooledByteBufAllocator.defaultNumDirectArena());
+        int heapArenas = intValue(config, "allocator.heap.arenas", PooledByteBufAllocator.defaultNumHeapArena());
+        int pageSize = intValue(config, "allocator.page.size", PooledByteBufAllocator.defaultPageSize());
+        int maxOrder = intValue(config, "allocator.max.order", PooledByteBufAllocator.defaultMaxOrder());
+        try{
+            PooledByteBufAllocator allocator = new PooledByteBufAllocator(true, heapArenas, directArenas, pageSize, maxOrder,
+                    PooledByteBufAllocator.defaultSmallCacheSize(), PooledByteBufAllocator.defaultNormalCacheSize(),
+                    PooledByteBufAllocator.defaultUseCacheForAllThreads());
+            log.info("pooled allocator, direct arenas: {}, heap arenas: {}, chunk size: {}", directArenas, heapArenas, pageSize << maxOrder);
+            return allocator;
+        }catch (IllegalArgumentException e){
+            log.warn("invalid allocator config, using default allocator", e);
+            return PooledByteBufAllocator.DEFAULT;
+        }
+    }
+
+    private static int intValue(Config config, String key, int defaultValue){
+        String value = config.get(key);
+        if(StringUtils.isEmpty(value) || !value.matches("^[0-9]+$")){
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+}
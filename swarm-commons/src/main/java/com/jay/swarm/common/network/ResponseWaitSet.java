@@ -1,16 +1,32 @@
 package com.jay.swarm.common.network;
 
-import com.jay.swarm.common.network.entity.NetworkPacket;
+import io.netty.channel.Channel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * <p>
  *  Response等待队列
  *  客户端发送请求后，这些未完成的请求的CompletableFuture会存在该队列中
+ *
+ *  有期限的请求在HashedWheelTimer中登记超时任务，到期后移出队列并以TimeoutException完成，
+ *  收到回复时取消超时任务。时间轮的添加和取消都是O(1)，所有客户端共用一个时间轮线程。
+ *  连接关闭时，该连接上所有未完成的请求以IOException完成，调用者不会一直等待。
+ *
+ *  报文ID由idProvider顺序生成，等待者放在以 id & mask 为下标的环形数组中，
+ *  添加和移除都是对槽位的CAS，不需要把ID装箱成Integer，也没有ConcurrentHashMap的节点分配。
+ *  槽位被更早的、还没有完成的请求占用时（未完成请求超过环的大小，或长时间没有回复的请求），
+ *  等待者放入溢出表。槽位中的等待者ID与要完成的ID不同时，再查找溢出表。
  * </p>
  *
  * @author Jay
@@ -19,18 +35,176 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class ResponseWaitSet {
     /**
-     * key: id, value: future
+     * 超时时间轮，精度10ms
+     */
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer(
+            new DefaultThreadFactory("response-timeout", true), 10, TimeUnit.MILLISECONDS);
+
+    /**
+     * 环形数组大小，2的幂
+     */
+    private static final int RING_SIZE = 4096;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /**
+     * 槽位：id & RING_MASK
      */
-    private final Map<Integer, CompletableFuture<Object>> waitSet = new ConcurrentHashMap<>(256);
+    private final AtomicReferenceArray<Waiter> ring = new AtomicReferenceArray<>(RING_SIZE);
 
-    public void addWaiter(Integer packetId, CompletableFuture<Object> future){
-        waitSet.put(packetId, future);
+    /**
+     * 溢出表，key: id, value: 等待者
+     */
+    private final Map<Integer, Waiter> overflow = new ConcurrentHashMap<>();
+
+    public void addWaiter(int packetId, CompletableFuture<Object> future){
+        addWaiter(packetId, future, 0);
     }
 
-    public void complete(Integer packetId, Object object){
-        CompletableFuture<Object> remove = waitSet.remove(packetId);
+    /**
+     * 添加有期限的请求
+     * @param packetId 报文ID
+     * @param future future
+     * @param timeoutMillis 期限，毫秒，小于等于0表示没有期限
+     */
+    public void addWaiter(int packetId, CompletableFuture<Object> future, long timeoutMillis){
+        Waiter waiter = new Waiter(packetId, future);
+        if(!ring.compareAndSet(packetId & RING_MASK, null, waiter)){
+            overflow.put(packetId, waiter);
+        }
+        if(timeoutMillis > 0){
+            waiter.timeout = TIMER.newTimeout(t -> {
+                // 已经收到回复的请求不会被移除
+                if(remove(waiter)){
+                    future.completeExceptionally(new TimeoutException("request " + packetId + " timeout after " + timeoutMillis + "ms"));
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 记录请求使用的连接，连接关闭时请求失败
+     * @param packetId 报文ID
+     * @param channel 连接
+     */
+    public void bind(int packetId, Channel channel){
+        Waiter waiter = find(packetId);
+        if(waiter != null){
+            waiter.channel = channel;
+        }
+    }
+
+    public void complete(int packetId, Object object){
+        Waiter remove = take(packetId);
         if(remove != null){
-            remove.complete(object);
+            remove.cancelTimeout();
+            remove.future.complete(object);
+        }
+    }
+
+    /**
+     * 请求失败
+     * @param packetId 报文ID
+     * @param cause 原因
+     */
+    public void fail(int packetId, Throwable cause){
+        Waiter remove = take(packetId);
+        if(remove != null){
+            remove.cancelTimeout();
+            remove.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 连接关闭，该连接上所有未完成的请求失败
+     * @param channel 连接
+     */
+    public void failChannel(Channel channel){
+        IOException cause = null;
+        for(int i = 0; i < RING_SIZE; i++){
+            Waiter waiter = ring.get(i);
+            if(waiter != null && waiter.channel == channel && ring.compareAndSet(i, waiter, null)){
+                cause = failClosed(waiter, cause, channel);
+            }
+        }
+        for (Waiter waiter : overflow.values()) {
+            if(waiter.channel == channel && overflow.remove(waiter.id, waiter)){
+                cause = failClosed(waiter, cause, channel);
+            }
+        }
+        if(cause != null && log.isDebugEnabled()){
+            log.debug("outstanding requests failed, {}", cause.getMessage());
+        }
+    }
+
+    /**
+     * 移除没有发送成功的请求
+     * @param packetId 报文ID
+     * @return 被移除的future，不存在时返回null
+     */
+    public CompletableFuture<Object> remove(int packetId){
+        Waiter remove = take(packetId);
+        if(remove == null){
+            return null;
+        }
+        remove.cancelTimeout();
+        return remove.future;
+    }
+
+    private static IOException failClosed(Waiter waiter, IOException cause, Channel channel){
+        IOException result = cause != null ? cause : new IOException("connection closed: " + channel.remoteAddress());
+        waiter.cancelTimeout();
+        waiter.future.completeExceptionally(result);
+        return result;
+    }
+
+    /**
+     * 查找等待者，不移除
+     */
+    private Waiter find(int packetId){
+        Waiter waiter = ring.get(packetId & RING_MASK);
+        if(waiter != null && waiter.id == packetId){
+            return waiter;
+        }
+        return overflow.isEmpty() ? null : overflow.get(packetId);
+    }
+
+    /**
+     * 移除并返回等待者
+     * @return 不存在或已经被移除时返回null
+     */
+    private Waiter take(int packetId){
+        int slot = packetId & RING_MASK;
+        Waiter waiter = ring.get(slot);
+        if(waiter != null && waiter.id == packetId){
+            return ring.compareAndSet(slot, waiter, null) ? waiter : null;
+        }
+        return overflow.isEmpty() ? null : overflow.remove(packetId);
+    }
+
+    /**
+     * 移除指定的等待者
+     * @return 等待者还在队列中时返回true
+     */
+    private boolean remove(Waiter waiter){
+        return ring.compareAndSet(waiter.id & RING_MASK, waiter, null) || overflow.remove(waiter.id, waiter);
+    }
+
+    private static final class Waiter {
+        private final int id;
+        private final CompletableFuture<Object> future;
+        private volatile Channel channel;
+        private volatile Timeout timeout;
+
+        Waiter(int id, CompletableFuture<Object> future) {
+            this.id = id;
+            this.future = future;
+        }
+
+        void cancelTimeout(){
+            Timeout t = timeout;
+            if(t != null){
+                t.cancel();
+            }
         }
     }
 }
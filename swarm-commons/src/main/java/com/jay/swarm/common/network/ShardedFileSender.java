@@ -1,25 +1,54 @@
 package com.jay.swarm.common.network;
 
+import com.jay.swarm.common.config.NetworkConfig;
 import com.jay.swarm.common.constants.SwarmConstants;
 import com.jay.swarm.common.network.callback.FileTransferCallback;
 import com.jay.swarm.common.network.entity.NetworkPacket;
 import com.jay.swarm.common.network.entity.PacketTypes;
+import com.jay.swarm.common.util.Crc32c;
 import com.jay.swarm.common.util.StringUtils;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.ConnectException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>
  *  文件分片发送器
  *  将文件分片后发送
+ *
+ *  向存储节点发送时使用滑动窗口做流量控制：
+ *  窗口大小即为同时在途（已发送、未收到TRANSFER_RESPONSE）的分片数量，
+ *  每收到一个分片回复归还一个额度；channel不可写时暂停发送，直到出站缓冲区写出。
+ *  以此保证大文件传输时出站缓冲区占用的内存有上限。
+ *
+ *  每个分片携带它在文件中的位置，接收方定位写入，因此分片可以通过多条连接（条带）并行发送。
+ *  每个分片还携带数据的CRC32C，接收方校验失败时回复TRANSFER_RETRY，只重传该分片。
+ *  零拷贝模式下，每个分片在进入发送窗口前读取一次计算CRC32C，随后由FileRegion发送，此时分片的页面刚被读入页缓存，
+ *  sendfile不会再次读盘；窗口已满时，下一个分片的校验与在途分片的传输同时进行。不在发送前整体预读文件。
+ *  重传在独立的线程中进行，回复回调所在的EventLoop不读取文件。
  * </p>
  *
  * @author Jay
@@ -33,42 +62,376 @@ public class ShardedFileSender {
 
     private final FileTransferCallback callback;
 
+    /**
+     * 零拷贝模式，文件数据由内核直接写入socket，不在用户态分配缓冲和拷贝
+     */
+    private final boolean zeroCopy;
+
+    /**
+     * 发送窗口，最大在途分片数
+     */
+    private final int window;
+
+    /**
+     * 条带数，向同一个目标并行发送分片的连接数
+     */
+    private final int stripes;
+
+    /**
+     * 等待分片回复和出站缓冲区写出的超时时间，毫秒，0表示没有期限
+     * 与请求期限一致，取自client.request.timeout
+     */
+    private final long ackTimeout;
+
+    /**
+     * 重传线程，重传需要读取文件，不能在EventLoop中进行
+     */
+    private static final ExecutorService RETRY_EXECUTOR = Executors.newCachedThreadPool(new DefaultThreadFactory("shard-retry", true));
+
     public ShardedFileSender(Channel channel, FileTransferCallback callback) {
+        this(channel, callback, true);
+    }
+
+    public ShardedFileSender(Channel channel, FileTransferCallback callback, boolean zeroCopy) {
         this.channel = channel;
         this.callback = callback;
         this.client = null;
+        this.zeroCopy = zeroCopy;
+        this.window = SwarmConstants.DEFAULT_TRANSFER_WINDOW;
+        this.stripes = 1;
+        this.ackTimeout = NetworkConfig.load(null).getRequestTimeout();
     }
 
     public ShardedFileSender(BaseClient client, FileTransferCallback callback) {
+        this(client, callback, true, SwarmConstants.DEFAULT_TRANSFER_WINDOW);
+    }
+
+    public ShardedFileSender(BaseClient client, FileTransferCallback callback, boolean zeroCopy, int window) {
+        this(client, callback, zeroCopy, window, 1);
+    }
+
+    /**
+     * 条带发送，分片轮流分配到多条连接上并行发送
+     * @param client 客户端
+     * @param callback 回调
+     * @param zeroCopy 零拷贝
+     * @param window 每条连接的发送窗口
+     * @param stripes 连接数
+     */
+    public ShardedFileSender(BaseClient client, FileTransferCallback callback, boolean zeroCopy, int window, int stripes) {
+        if(window <= 0 || stripes <= 0){
+            throw new IllegalArgumentException("transfer window and stripes must be positive");
+        }
         this.client = client;
         this.callback = callback;
         this.channel = null;
+        this.zeroCopy = zeroCopy;
+        this.window = window;
+        this.stripes = stripes;
+        this.ackTimeout = client.getNetworkConfig().getRequestTimeout();
     }
 
-    public void send(File file,  String fileId){
+    public void send(File file,  String fileId) throws IOException {
         send(null, 0, file, fileId);
     }
 
-    public void send(String host, int port, File file, String fileId){
-        long size = file.length();
+    /**
+     * 发送文件，方法返回时所有分片都已被目标确认
+     * @param host 目标地址
+     * @param port 目标端口
+     * @param file 文件
+     * @param fileId 文件ID
+     * @throws IOException 发送失败或目标返回错误
+     */
+    public void send(String host, int port, File file, String fileId) throws IOException {
+        send(host, port, file, fileId, new BitSet());
+    }
+
+    /**
+     * 从断点继续发送文件，跳过目标已经写入的分片
+     * @param host 目标地址
+     * @param port 目标端口
+     * @param file 文件
+     * @param fileId 文件ID
+     * @param completedShards 目标已写入的分片，下标为分片序号
+     * @throws IOException 发送失败或目标返回错误
+     */
+    public void send(String host, int port, File file, String fileId, BitSet completedShards) throws IOException {
+        if(client != null && !StringUtils.isEmpty(host)){
+            sendWindowed(host, port, file, fileId, completedShards);
+            return;
+        }
+        send(file, fileId, 0, file.length());
+    }
+
+    /**
+     * 通过channel发送文件的一个区间[offset, offset + length)
+     * @param file 文件
+     * @param fileId 文件ID
+     * @param offset 区间起始位置
+     * @param length 区间长度
+     * @throws IOException IOException
+     */
+    public void send(File file, String fileId, long offset, long length) throws IOException {
+        if(channel == null){
+            return;
+        }
+        long end = offset + length;
+        long position = offset;
         try(FileInputStream inputStream = new FileInputStream(file); FileChannel fileChannel = inputStream.getChannel()){
-            int shardIndex = 0;
-            while(size > 0){
-                ByteBuffer data = ByteBuffer.allocate(SwarmConstants.DEFAULT_SHARD_SIZE + fileId.length());
-                data.put(fileId.getBytes(SwarmConstants.DEFAULT_CHARSET));
-                int length = fileChannel.read(data);
-                data.flip();
-                ByteBuf dataBuf = Unpooled.wrappedBuffer(data);
-                if(client != null && !StringUtils.isEmpty(host)){
-                    client.sendAsync(host, port, PacketTypes.TRANSFER_FILE_BODY, dataBuf);
-                }else if(channel != null){
-                    ByteBuf packet = NetworkPacket.buildPacketOfType(PacketTypes.TRANSFER_FILE_BODY, dataBuf);
+            while(position < end){
+                long shardLength = Math.min(SwarmConstants.DEFAULT_SHARD_SIZE, end - position);
+                // 在等待channel可写之前计算校验，与出站缓冲区中分片的写出同时进行
+                int crc = zeroCopy ? Crc32c.checksum(fileChannel, position, shardLength) : 0;
+                awaitWritable(channel);
+                if(zeroCopy){
+                    FileShardWriter.write(channel, 0, PacketTypes.TRANSFER_FILE_BODY, prefix(channel.alloc(), fileId, position, crc), file, position, shardLength);
+                }else{
+                    ByteBuf packet = NetworkPacket.buildPacketOfType(PacketTypes.TRANSFER_FILE_BODY, copyShard(channel.alloc(), fileChannel, fileId, position, shardLength));
                     channel.writeAndFlush(packet);
                 }
-                size -= length;
+                position += shardLength;
+            }
+        }
+    }
+
+    /**
+     * 窗口方式发送分片
+     * @param host 目标地址
+     * @param port 目标端口
+     * @param file 文件
+     * @param fileId 文件ID
+     * @param completedShards 跳过的分片
+     * @throws IOException IOException
+     */
+    private void sendWindowed(String host, int port, File file, String fileId, BitSet completedShards) throws IOException {
+        // 同时建立条带连接
+        List<CompletableFuture<Channel>> connecting = new ArrayList<>(stripes);
+        for(int i = 0; i < stripes; i++){
+            connecting.add(client.connectAsync(host, port, i));
+        }
+        Channel[] channels = new Channel[stripes];
+        for(int i = 0; i < stripes; i++){
+            try{
+                channels[i] = connecting.get(i).get();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("connection to " + host + ":" + port + " interrupted");
+            }catch (ExecutionException e){
+                throw new ConnectException("connection refused by " + host + ":" + port);
+            }
+        }
+        int totalCredits = window * stripes;
+        try(FileInputStream inputStream = new FileInputStream(file); FileChannel fileChannel = inputStream.getChannel()){
+            WindowedTransfer transfer = new WindowedTransfer(file, fileId, fileChannel, totalCredits);
+            long size = transfer.size;
+            long position = 0;
+            int shardIndex = 0;
+            while(position < size && transfer.error.get() == null){
+                long length = Math.min(SwarmConstants.DEFAULT_SHARD_SIZE, size - position);
+                if(completedShards.get((int) (position / SwarmConstants.DEFAULT_SHARD_SIZE))){
+                    transfer.acked.addAndGet(length);
+                    position += length;
+                    continue;
+                }
+                // 分片进入窗口前计算校验，窗口满时与在途分片的传输重叠，读入的页面随后由sendfile发送
+                if(zeroCopy){
+                    transfer.computeChecksum(position, length);
+                }
+                // 获取发送额度，窗口满时等待分片回复
+                acquire(transfer.credits, 1);
+                // 分片轮流分配到各条连接
+                Channel target = channels[shardIndex++ % stripes];
+                // channel出站缓冲区已满，等待写出
+                awaitWritable(target);
+                transfer.sendShard(target, position, length, 0);
+                position += length;
+            }
+            // 等待窗口中剩余的分片回复
+            acquire(transfer.credits, totalCredits);
+            if(transfer.error.get() != null){
+                throw new IOException("file shard sending error: " + transfer.error.get());
+            }
+        }
+    }
+
+    /**
+     * 一次窗口发送的状态
+     */
+    private class WindowedTransfer {
+        private final File file;
+        private final String fileId;
+        private final long size;
+        private final FileChannel fileChannel;
+        private final Semaphore credits;
+        private final AtomicReference<String> error = new AtomicReference<>();
+        private final AtomicLong acked = new AtomicLong(0);
+        /**
+         * 零拷贝模式下已发送分片的CRC32C，下标为分片序号，重传时直接使用
+         */
+        private final int[] checksums;
+
+        WindowedTransfer(File file, String fileId, FileChannel fileChannel, int credits) {
+            this.file = file;
+            this.fileId = fileId;
+            this.size = file.length();
+            this.fileChannel = fileChannel;
+            this.credits = new Semaphore(credits);
+            this.checksums = zeroCopy ? new int[(int) ((size + SwarmConstants.DEFAULT_SHARD_SIZE - 1) / SwarmConstants.DEFAULT_SHARD_SIZE)] : null;
+        }
+
+        /**
+         * 读取分片计算CRC32C，在分片第一次发送前调用
+         */
+        void computeChecksum(long position, long length) throws IOException {
+            checksums[(int) (position / SwarmConstants.DEFAULT_SHARD_SIZE)] = Crc32c.checksum(fileChannel, position, length);
+        }
+
+        /**
+         * 发送一个分片，分片在收到回复前一直占用一个窗口额度
+         * 目标回复TRANSFER_RETRY时，在重传线程中通过同一条连接重发该分片，不归还额度
+         * @param target 连接
+         * @param position 分片位置
+         * @param length 分片长度
+         * @param attempt 已重传次数
+         * @throws IOException IOException
+         */
+        void sendShard(Channel target, long position, long length, int attempt) throws IOException {
+            CompletableFuture<Object> ack;
+            if(zeroCopy){
+                int crc = checksums[(int) (position / SwarmConstants.DEFAULT_SHARD_SIZE)];
+                ack = client.sendFileAsync(target, PacketTypes.TRANSFER_FILE_BODY, prefix(target.alloc(), fileId, position, crc), file, position, length);
+            }else{
+                ack = client.sendAsync(target, PacketTypes.TRANSFER_FILE_BODY, copyShard(target.alloc(), fileChannel, fileId, position, length));
+            }
+            ack.whenComplete((response, throwable) -> {
+                NetworkPacket packet = (NetworkPacket) response;
+                if(throwable == null && packet.getType() == PacketTypes.TRANSFER_RETRY){
+                    packet.release();
+                    RETRY_EXECUTOR.execute(() -> {
+                        if(!retry(target, position, length, attempt)){
+                            credits.release();
+                        }
+                    });
+                    return;
+                }
+                onAck(length, packet, throwable);
+                credits.release();
+            });
+        }
+
+        /**
+         * 处理分片回复
+         */
+        private void onAck(long length, NetworkPacket response, Throwable throwable){
+            if(throwable != null){
+                error.compareAndSet(null, throwable.getMessage());
+                return;
+            }
+            if(response.getType() != PacketTypes.TRANSFER_RESPONSE){
+                error.compareAndSet(null, new String(response.getContent(), SwarmConstants.DEFAULT_CHARSET));
+                return;
+            }
+            response.release();
+            long current = acked.addAndGet(length);
+            float progress = new BigDecimal(current).multiply(new BigDecimal(100))
+                    .divide(new BigDecimal(size), 2, RoundingMode.HALF_DOWN)
+                    .floatValue();
+            callback.onProgress(fileId, size, current, progress);
+        }
+
+        /**
+         * 重传校验失败的分片
+         * @return 是否已重新发送
+         */
+        private boolean retry(Channel target, long position, long length, int attempt){
+            if(attempt >= SwarmConstants.MAX_SHARD_RETRY || error.get() != null){
+                error.compareAndSet(null, "shard at " + position + " corrupted after " + attempt + " retries");
+                return false;
+            }
+            log.warn("shard checksum mismatch at target, resending, fileId: {}, position: {}", fileId, position);
+            try{
+                sendShard(target, position, length, attempt + 1);
+                return true;
+            }catch (IOException e){
+                error.compareAndSet(null, e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    private void acquire(Semaphore credits, int permits) throws IOException {
+        try{
+            if(ackTimeout <= 0){
+                credits.acquire(permits);
+            }else if(!credits.tryAcquire(permits, ackTimeout, TimeUnit.MILLISECONDS)){
+                throw new IOException("file shard sending timeout, no response from target");
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("file shard sending interrupted");
+        }
+    }
+
+    /**
+     * channel不可写时，等待出站缓冲区写出
+     * EventLoop线程中不能阻塞，直接返回
+     * @param target channel
+     * @throws IOException 超时未写出或写出失败（如连接已断开）
+     */
+    private void awaitWritable(Channel target) throws IOException {
+        if(target.isWritable() || !target.isActive() || target.eventLoop().inEventLoop()){
+            return;
+        }
+        // 空报文的写出结果在之前所有数据写入socket后才完成
+        ChannelFuture flushed = target.writeAndFlush(Unpooled.EMPTY_BUFFER);
+        if(ackTimeout <= 0){
+            flushed.awaitUninterruptibly();
+        }else if(!flushed.awaitUninterruptibly(ackTimeout)){
+            throw new IOException("file shard sending timeout, outbound buffer not flushed in " + ackTimeout + "ms");
+        }
+        if(!flushed.isSuccess()){
+            throw new IOException("file shard sending error: " + flushed.cause().getMessage(), flushed.cause());
+        }
+    }
+
+    /**
+     * 分片前缀：文件ID + 分片在文件中的位置 + 分片数据的CRC32C
+     */
+    private ByteBuf prefix(ByteBufAllocator allocator, String fileId, long position, int crc){
+        byte[] idBytes = fileId.getBytes(SwarmConstants.DEFAULT_CHARSET);
+        ByteBuf prefix = allocator.directBuffer(idBytes.length + 12);
+        prefix.writeBytes(idBytes);
+        prefix.writeLong(position);
+        prefix.writeInt(crc);
+        return prefix;
+    }
+
+    /**
+     * 拷贝模式，从channel的分配器申请直接内存，读取分片
+     */
+    private ByteBuf copyShard(ByteBufAllocator allocator, FileChannel fileChannel, String fileId, long position, long length) throws IOException {
+        byte[] idBytes = fileId.getBytes(SwarmConstants.DEFAULT_CHARSET);
+        int prefixLength = idBytes.length + 12;
+        ByteBuf data = allocator.directBuffer((int) length + prefixLength);
+        try{
+            data.writeBytes(idBytes);
+            data.writeLong(position);
+            // CRC32C占位，读取数据后填入
+            data.writeInt(0);
+            long read = 0;
+            while(read < length){
+                int count = data.writeBytes(fileChannel, position + read, (int) (length - read));
+                if(count < 0){
+                    break;
+                }
+                read += count;
             }
+            data.setInt(prefixLength - 4, Crc32c.checksum(data.nioBuffer(prefixLength, data.writerIndex() - prefixLength)));
+            return data;
         }catch (IOException e){
-            log.error("file shard sending error: ", e);
+            data.release();
+            throw e;
         }
     }
 }
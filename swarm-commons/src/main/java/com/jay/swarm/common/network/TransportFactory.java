@@ -0,0 +1,132 @@
+package com.jay.swarm.common.network;
+
+import com.jay.swarm.common.config.NetworkConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * <p>
+ *  网络传输层选择
+ *  Linux上native epoll可用时使用EpollEventLoopGroup和Epoll channel，否则使用NIO。
+ *  epoll是边缘触发，每次事件的系统调用更少，DefaultFileRegion直接使用sendfile发送。
+ *
+ *  不设置TCP_CORK：常开时请求-回复的小报文要等到200ms超时才发出，分片的header和数据已经在同一次flush中写出，不需要cork合并。
+ *  开启SO_REUSEPORT时同一端口绑定多个监听channel，每个由一个boss线程处理。
+ *  相关配置项见NetworkConfig。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/12 10:15
+ */
+public class TransportFactory {
+
+    private TransportFactory(){
+
+    }
+
+    /**
+     * 是否使用epoll
+     * @param config 网络配置
+     * @return native epoll可用且没有被配置关闭
+     */
+    public static boolean useEpoll(NetworkConfig config){
+        return config.isEpollEnabled() && Epoll.isAvailable();
+    }
+
+    /**
+     * 创建EventLoopGroup
+     * @param config 网络配置
+     * @param threads 线程数，0表示Netty默认值
+     * @return EventLoopGroup
+     */
+    public static EventLoopGroup eventLoopGroup(NetworkConfig config, int threads){
+        return useEpoll(config) ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    /**
+     * 服务端channel类型
+     */
+    public static Class<? extends ServerChannel> serverChannelClass(NetworkConfig config){
+        return useEpoll(config) ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * 客户端channel类型
+     */
+    public static Class<? extends SocketChannel> channelClass(NetworkConfig config){
+        return useEpoll(config) ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * 在同一端口上绑定的监听channel数
+     * 只有epoll下开启SO_REUSEPORT时大于1，内核把新连接分散到各个监听channel
+     * @param config 网络配置
+     * @return 监听channel数
+     */
+    public static int acceptors(NetworkConfig config){
+        return useEpoll(config) && config.isReusePort() ? config.getAcceptors() : 1;
+    }
+
+    /**
+     * 设置服务端的channel选项
+     * @param bootstrap ServerBootstrap
+     * @param config 网络配置
+     */
+    public static void configure(ServerBootstrap bootstrap, NetworkConfig config){
+        bootstrap.option(ChannelOption.SO_BACKLOG, config.getBacklog());
+        // 监听socket的接收缓冲会被accept的连接继承，窗口扩大选项在握手时协商
+        if(config.getReceiveBufferSize() > 0){
+            bootstrap.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if(config.getSendBufferSize() > 0){
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+        bootstrap.childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay());
+        bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark(config));
+        if(useEpoll(config) && config.isReusePort()){
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+    }
+
+    /**
+     * 设置客户端的channel选项
+     * @param bootstrap Bootstrap
+     * @param config 网络配置
+     */
+    public static void configure(Bootstrap bootstrap, NetworkConfig config){
+        if(config.getReceiveBufferSize() > 0){
+            bootstrap.option(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if(config.getSendBufferSize() > 0){
+            bootstrap.option(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+        bootstrap.option(ChannelOption.TCP_NODELAY, config.isTcpNoDelay());
+        bootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark(config));
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getConnectTimeout());
+    }
+
+    /**
+     * 传输层名称，用于日志
+     */
+    public static String name(NetworkConfig config){
+        return useEpoll(config) ? "epoll" : "nio";
+    }
+
+    private static WriteBufferWaterMark waterMark(NetworkConfig config){
+        return new WriteBufferWaterMark(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark());
+    }
+}
@@ -1,38 +1,47 @@
 package com.jay.swarm.common.network.entity;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.CompositeByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.util.Recycler;
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * <p>
  * Swarm-oss网络通信基础报文。
  *
- * 0    1    2    3    4    5    6    7    8    9    10   11   12
- * +----+----+----+----+----+----+----+----+----+----+----+----+
- * | m_number|       length      |  type   |      id           |
- * +---------+-------------------+---------+-------------------+
- * |                                                           |
- * |                    data                                   |
- * |                                                           |
- * |                                                           |
- * +-----------------------------------------------------------+
+ * 0    1    2    3    4    5    6    7    8    9    10   11   12   13   14   15   16
+ * +----+----+----+----+----+----+----+----+----+----+----+----+----+----+----+----+
+ * | m_number|       length      |  type   |      id           |     timeout       |
+ * +---------+-------------------+---------+-------------------+-------------------+
+ * |                                                                               |
+ * |                    data                                                       |
+ * |                                                                               |
+ * |                                                                               |
+ * +-------------------------------------------------------------------------------+
  *
  * m_number：魔数，2字节，5df5，用于识别报文。
- * length：报文总长度，首部12字节 + data长度。
+ * length：报文总长度，首部16字节 + data长度。
  * type：报文类型，2字节。
  * id：报文ID，4字节。
+ * timeout：请求剩余的等待时间，毫秒，4字节，0表示没有期限。
+ *          使用剩余时间而不是绝对时间，不要求节点间时钟同步。接收方从收到报文开始计时，
+ *          超过期限还没有处理的请求发送方已经放弃等待，可以直接丢弃。
  * data：数据部分，序列化后的数据或者是文件数据
+ *
+ * 解码得到的报文对象来自Recycler对象池，处理完后调用recycle()可以归还对象池，
+ * 不调用recycle()的报文对象由GC回收，不影响正确性。
  * </p>
  *
  * @author Jay
  * @date 2021/12/8
  **/
-@Builder
 @Getter
 @ToString
 @Slf4j
@@ -41,9 +50,47 @@ public class NetworkPacket {
     private short type;
     private byte[] content;
     private int id;
+    private int timeout;
     private ByteBuf header;
     private ByteBuf data;
 
+    /**
+     * 解码时间，System.nanoTime()
+     */
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private long receiveTime;
+
+    /**
+     * 对象池句柄，builder创建的报文为null
+     */
+    @Getter(AccessLevel.NONE)
+    @ToString.Exclude
+    private final Recycler.Handle<NetworkPacket> handle;
+
+    private static final Recycler<NetworkPacket> RECYCLER = new Recycler<NetworkPacket>() {
+        @Override
+        protected NetworkPacket newObject(Handle<NetworkPacket> handle) {
+            return new NetworkPacket(handle);
+        }
+    };
+
+    @Builder
+    private NetworkPacket(int length, short type, byte[] content, int id, int timeout, ByteBuf header, ByteBuf data) {
+        this.length = length;
+        this.type = type;
+        this.content = content;
+        this.id = id;
+        this.timeout = timeout;
+        this.header = header;
+        this.data = data;
+        this.handle = null;
+    }
+
+    private NetworkPacket(Recycler.Handle<NetworkPacket> handle) {
+        this.handle = handle;
+    }
+
     /**
      * 首部Magic Number
      */
@@ -51,7 +98,7 @@ public class NetworkPacket {
     /**
      * 首部长度
      */
-    public static final int HEADER_LENGTH = 12;
+    public static final int HEADER_LENGTH = 16;
 
     /**
      * 报文最大长度 = 首部长度 + 最大文件块大小 (128M)
@@ -69,6 +116,7 @@ public class NetworkPacket {
         buffer.writeInt(packet.getLength());
         buffer.writeShort(packet.getType());
         buffer.writeInt(packet.getId());
+        buffer.writeInt(packet.getTimeout());
         // 有content数组
         if(packet.content != null){
             buffer.writeBytes(packet.content);
@@ -81,18 +129,45 @@ public class NetworkPacket {
     }
 
     /**
-     * 生成HEADER
+     * 生成HEADER，使用默认的池化分配器
      * @param id id
      * @param type 类型
      * @param dataLength 数据长度
      * @return ByteBuf
      */
     public static ByteBuf header(int id, short type, int dataLength){
-        ByteBuf header = Unpooled.buffer();
+        return header(ByteBufAllocator.DEFAULT, id, type, dataLength);
+    }
+
+    /**
+     * 生成HEADER
+     * 有channel时使用channel.alloc()，首部从内存池申请直接内存
+     * @param allocator 分配器
+     * @param id id
+     * @param type 类型
+     * @param dataLength 数据长度
+     * @return ByteBuf
+     */
+    public static ByteBuf header(ByteBufAllocator allocator, int id, short type, int dataLength){
+        return header(allocator, id, type, dataLength, 0);
+    }
+
+    /**
+     * 生成带期限的HEADER
+     * @param allocator 分配器
+     * @param id id
+     * @param type 类型
+     * @param dataLength 数据长度
+     * @param timeout 剩余等待时间，毫秒，0表示没有期限
+     * @return ByteBuf
+     */
+    public static ByteBuf header(ByteBufAllocator allocator, int id, short type, int dataLength, int timeout){
+        ByteBuf header = allocator.directBuffer(HEADER_LENGTH);
         header.writeShort(MAGIC_NUMBER);
         header.writeInt(HEADER_LENGTH + dataLength);
         header.writeShort(type);
         header.writeInt(id);
+        header.writeInt(timeout);
         return header;
     }
 
@@ -103,7 +178,18 @@ public class NetworkPacket {
      * @return ByteBuf
      */
     public static ByteBuf combine(ByteBuf header, ByteBuf data){
-        CompositeByteBuf compositeBuffer = Unpooled.compositeBuffer();
+        return combine(ByteBufAllocator.DEFAULT, header, data);
+    }
+
+    /**
+     * 合并HEADER和DATA
+     * @param allocator 分配器
+     * @param header header
+     * @param data data
+     * @return ByteBuf
+     */
+    public static ByteBuf combine(ByteBufAllocator allocator, ByteBuf header, ByteBuf data){
+        CompositeByteBuf compositeBuffer = allocator.compositeDirectBuffer(2);
         compositeBuffer.addComponent(true, header);
         compositeBuffer.addComponent(true, data);
         return compositeBuffer;
@@ -132,6 +218,8 @@ public class NetworkPacket {
         short type = header.readShort();
         // 读取ID
         int id = header.readInt();
+        // 读取期限
+        int timeout = header.readInt();
 
         // 总长度-头部长度 = 数据部分长度
         int contentLength = length - HEADER_LENGTH;
@@ -139,23 +227,30 @@ public class NetworkPacket {
         if(contentLength > data.readableBytes()){
             throw new RuntimeException("packet format error");
         }
-        return builder().length(length)
-                .type(type)
-                .id(id)
-                .data(data)
-                .header(header)
-                .build();
+        // 从对象池获取报文对象
+        NetworkPacket packet = RECYCLER.get();
+        packet.length = length;
+        packet.type = type;
+        packet.id = id;
+        packet.timeout = timeout;
+        packet.receiveTime = System.nanoTime();
+        packet.data = data;
+        packet.header = header;
+        return packet;
     }
 
+    /**
+     * 获取数据部分的byte[]拷贝，并释放data
+     * 只需要反序列化时，使用Serializer.deserialize(getData(), clazz)可以避免拷贝
+     * @return byte[]
+     */
     public byte[] getContent(){
-        if(content == null){
-            if(data.isDirect()){
-                content = new byte[data.readableBytes()];
-                data.readBytes(content);
-                data.release();
-            }else{
-                content = data.array();
-            }
+        if(content == null && data != null){
+            // 池化的堆内存ByteBuf，array()是整个内存块，同样需要拷贝
+            content = new byte[data.readableBytes()];
+            data.readBytes(content);
+            data.release();
+            data = null;
         }
         return content;
     }
@@ -175,6 +270,19 @@ public class NetworkPacket {
         this.id = id;
     }
 
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * 请求是否已经超过发送方的期限
+     * 只对解码得到的报文有意义
+     * @return boolean
+     */
+    public boolean isExpired(){
+        return timeout > 0 && System.nanoTime() - receiveTime > TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
     public void setLength(int length) {
         this.length = length;
     }
@@ -186,8 +294,32 @@ public class NetworkPacket {
                 .build();
     }
 
+    /**
+     * 释放数据部分，重复调用无影响
+     */
     public void release(){
-        data.release();
+        if(data != null){
+            data.release();
+            data = null;
+        }
+    }
+
+    /**
+     * 释放数据部分，解码得到的报文对象归还对象池
+     * 调用后不能再使用该报文
+     */
+    public void recycle(){
+        release();
+        if(handle != null){
+            length = 0;
+            type = 0;
+            content = null;
+            id = 0;
+            timeout = 0;
+            receiveTime = 0;
+            header = null;
+            handle.recycle(this);
+        }
     }
 
 
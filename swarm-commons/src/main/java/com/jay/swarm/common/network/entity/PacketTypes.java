@@ -58,9 +58,54 @@ public class PacketTypes {
      */
     public static final short UPDATE_FILE_META_STORAGE = (short)12;
 
+    /**
+     * 分段下载请求
+     * 请求存储节点发送文件的一个区间，数据以TRANSFER_FILE_BODY分片发送，发送完成后回复SUCCESS
+     */
+    public static final short DOWNLOAD_RANGE_REQUEST = (short)13;
+
+    /**
+     * 区间读取请求
+     * 存储节点将文件区间数据直接放在SUCCESS回复的数据部分
+     */
+    public static final short READ_RANGE_REQUEST = (short)14;
+
+    /**
+     * 分片重传请求
+     * 接收方发现分片CRC32C校验失败，用该报文代替TRANSFER_RESPONSE回复，发送方只重发这一个分片
+     */
+    public static final short TRANSFER_RETRY = (short)15;
+
+    /**
+     * 断点查询
+     * 发送TRANSFER_FILE_HEAD后查询接收方已经写入的分片，回复TransferCheckpoint
+     */
+    public static final short RESUME_QUERY = (short)16;
+
+    /**
+     * 列出桶中的对象，请求ListObjectsRequest，回复ListObjectsResponse
+     */
+    public static final short LIST_OBJECTS = (short)17;
+
+    /**
+     * 批量上传请求，请求BatchUploadRequest，回复SUCCESS + BatchUploadResponse
+     */
+    public static final short BATCH_UPLOAD_REQUEST = (short)18;
+
+    /**
+     * 批量查询下载信息，请求BatchDownloadRequest，回复SUCCESS + BatchDownloadResponse
+     */
+    public static final short BATCH_DOWNLOAD_REQUEST = (short)19;
+
 
     public static final short SUCCESS = (short)20;
     public static final short FAIL = (short)21;
     public static final short ERROR = (short)22;
 
+    /**
+     * 批量更新文件元数据中的存储节点，请求BatchFileMetaStorage，全部处理完后回复SUCCESS + BatchFileMetaStorageResponse
+     * 存储节点合并一段时间内的UPDATE_FILE_META_STORAGE，用该报文一次发送
+     */
+    public static final short BATCH_UPDATE_FILE_META_STORAGE = (short)23;
+
 }
@@ -2,6 +2,7 @@ package com.jay.swarm.common.network.handler;
 
 import com.jay.swarm.common.network.ResponseWaitSet;
 import com.jay.swarm.common.network.entity.NetworkPacket;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -22,6 +23,16 @@ public class BaseClientHandler extends SimpleChannelInboundHandler<NetworkPacket
         this.responseWaitSet = responseWaitSet;
     }
 
+    /**
+     * 连接关闭时，该连接上未完成的请求失败
+     * 在handlerAdded中注册，不依赖前面的处理器传递channelInactive事件
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        Channel channel = ctx.channel();
+        channel.closeFuture().addListener(future -> responseWaitSet.failChannel(channel));
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, NetworkPacket packet) {
         if(packet != null){
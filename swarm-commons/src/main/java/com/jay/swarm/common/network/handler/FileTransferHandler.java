@@ -1,15 +1,25 @@
 package com.jay.swarm.common.network.handler;
 
+import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.TransferCheckpoint;
 import com.jay.swarm.common.fs.FileAppender;
 import com.jay.swarm.common.fs.FileInfo;
 import com.jay.swarm.common.fs.FileInfoCache;
+import com.jay.swarm.common.util.FileUtil;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * <p>
@@ -25,11 +35,29 @@ public class FileTransferHandler {
     /**
      * 文件拼接器Map
      * key：文件ID
+     * 同一个文件的分片可能从多个连接（不同的EventLoop）到达
      */
-    private final Map<String, FileAppender> appenderMap = new HashMap<>(256);
+    private final Map<String, FileAppender> appenderMap = new ConcurrentHashMap<>(256);
+
+    /**
+     * 传输的连接
+     * key：文件ID，value：发送过该文件HEAD或分片、还没有关闭的连接。
+     * 条带发送时一个文件的分片来自多条连接，所有连接都关闭后才认为发送方已经离开
+     */
+    private final Map<String, Set<Channel>> transferChannels = new ConcurrentHashMap<>(256);
+
+    /**
+     * 连接上参与过的传输，连接关闭时据此释放
+     */
+    private static final AttributeKey<Set<String>> CHANNEL_TRANSFERS = AttributeKey.valueOf("swarm.transfer.files");
 
     private final FileInfoCache fileInfoCache;
 
+    /**
+     * 收到的分片数据字节数，用于计算节点的接收速度
+     */
+    private final LongAdder receivedBytes = new LongAdder();
+
     public FileTransferHandler(){
         this.fileInfoCache = null;
     }
@@ -45,6 +73,11 @@ public class FileTransferHandler {
      * @throws IOException IOException
      */
     public void handleTransferHead(FileInfo fileInfo, String path) throws IOException {
+        // 连接中断后重新传输，释放之前遗留的appender，新的appender从断点文件恢复
+        FileAppender orphan = appenderMap.remove(fileInfo.getFileId());
+        if(orphan != null){
+            orphan.release();
+        }
         // 创建appender
         FileAppender fileAppender = new FileAppender(fileInfo.getFileId(), path, fileInfo.getMd5(), fileInfo.getTotalSize());
         appenderMap.put(fileInfo.getFileId(), fileAppender);
@@ -64,19 +97,199 @@ public class FileTransferHandler {
         appender.append(content);
     }
 
-    public void handleTransferBody(String fileId, ByteBuf data) throws IOException {
+    /**
+     * 处理文件分片
+     * @param fileId 文件ID
+     * @param position 分片在文件中的位置
+     * @param data 分片数据
+     * @throws IOException IOException
+     */
+    public void handleTransferBody(String fileId, long position, ByteBuf data) throws IOException {
         // 添加分片到文件拼接器
         FileAppender appender = appenderMap.get(fileId);
         if(appender == null){
             throw new FileNotFoundException("no file appender found");
         }
-        appender.append(data);
+        receivedBytes.add(data.readableBytes());
+        appender.append(position, data);
+    }
+
+    /**
+     * 处理带CRC32C校验的文件分片
+     * @param fileId 文件ID
+     * @param position 分片在文件中的位置
+     * @param crc 分片数据的CRC32C
+     * @param data 分片数据
+     * @return 校验是否通过，不通过时分片没有写入，需要发送方重传
+     * @throws IOException IOException
+     */
+    public boolean handleTransferBody(String fileId, long position, int crc, ByteBuf data) throws IOException {
+        FileAppender appender = appenderMap.get(fileId);
+        if(appender == null){
+            throw new FileNotFoundException("no file appender found");
+        }
+        receivedBytes.add(data.readableBytes());
+        return appender.append(position, crc, data);
+    }
+
+    /**
+     * 记录连接参与了文件的传输
+     * 收到HEAD和分片时调用，连接关闭后由channelClosed释放没有其他连接的传输
+     * @param channel 连接
+     * @param fileId 文件ID
+     */
+    public void bindChannel(Channel channel, String fileId){
+        Attribute<Set<String>> attribute = channel.attr(CHANNEL_TRANSFERS);
+        Set<String> files = attribute.get();
+        if(files == null){
+            attribute.setIfAbsent(ConcurrentHashMap.newKeySet());
+            files = attribute.get();
+        }
+        if(files.add(fileId)){
+            transferChannels.computeIfAbsent(fileId, k -> ConcurrentHashMap.newKeySet()).add(channel);
+        }
+    }
+
+    /**
+     * 连接关闭，该连接参与的传输如果没有其他连接，放弃传输，断点保留
+     * @param channel 关闭的连接
+     */
+    public void channelClosed(Channel channel){
+        Set<String> files = channel.attr(CHANNEL_TRANSFERS).getAndSet(null);
+        if(files == null){
+            return;
+        }
+        for (String fileId : files) {
+            boolean[] orphaned = new boolean[1];
+            transferChannels.computeIfPresent(fileId, (k, channels) -> {
+                channels.remove(channel);
+                orphaned[0] = channels.isEmpty();
+                return orphaned[0] ? null : channels;
+            });
+            if(orphaned[0] && appenderMap.containsKey(fileId)){
+                log.info("all connections of transfer closed, release file appender, fileId: {}", fileId);
+                handleTransferAbort(fileId);
+            }
+        }
+    }
+
+    /**
+     * 传输结束或放弃后，解除文件与连接的关联，同一个文件再次传输时重新记录
+     */
+    private void unbindChannels(String fileId){
+        Set<Channel> channels = transferChannels.remove(fileId);
+        if(channels == null){
+            return;
+        }
+        for (Channel channel : channels) {
+            Set<String> files = channel.attr(CHANNEL_TRANSFERS).get();
+            if(files != null){
+                files.remove(fileId);
+            }
+        }
+    }
+
+    /**
+     * 释放超过idleMillis没有收到数据的传输，断点保留
+     * 发送方停止发送但连接没有关闭时（如连接池中的连接），appender不会因连接关闭被释放
+     * @param idleMillis 空闲时间，毫秒
+     * @return 释放的传输数
+     */
+    public int abortIdleTransfers(long idleMillis){
+        long now = System.currentTimeMillis();
+        int aborted = 0;
+        for (Map.Entry<String, FileAppender> entry : appenderMap.entrySet()) {
+            if(now - entry.getValue().getLastActiveTime() > idleMillis && appenderMap.remove(entry.getKey(), entry.getValue())){
+                log.info("transfer idle for more than {} ms, release file appender, fileId: {}", idleMillis, entry.getKey());
+                entry.getValue().release();
+                unbindChannels(entry.getKey());
+                aborted++;
+            }
+        }
+        return aborted;
+    }
+
+    /**
+     * 正在接收的文件数
+     * @return 已收到HEAD、还没有收到END的文件数
+     */
+    public int activeTransfers(){
+        return appenderMap.size();
+    }
+
+    /**
+     * 收到的分片数据总字节数
+     * @return 字节数
+     */
+    public long receivedBytes(){
+        return receivedBytes.sum();
+    }
+
+    /**
+     * 查询传输断点
+     * @param fileId 文件ID
+     * @return 已经写入的分片
+     * @throws FileNotFoundException 没有收到该文件的HEAD
+     */
+    public TransferCheckpoint handleResumeQuery(String fileId) throws FileNotFoundException {
+        FileAppender appender = appenderMap.get(fileId);
+        if(appender == null){
+            throw new FileNotFoundException("no file appender found");
+        }
+        return TransferCheckpoint.builder().fileId(fileId)
+                .shardSize(SwarmConstants.DEFAULT_SHARD_SIZE)
+                .completedShards(appender.completedShards().toLongArray())
+                .build();
+    }
+
+    /**
+     * 已经写入的分片
+     * @param fileId 文件ID
+     * @return BitSet，没有正在进行的传输时为空
+     */
+    public BitSet completedShards(String fileId){
+        FileAppender appender = appenderMap.get(fileId);
+        return appender == null ? new BitSet() : appender.completedShards();
+    }
+
+    /**
+     * 查询区间内校验失败、等待重传的分片
+     * @param fileId 文件ID
+     * @param from 起始位置
+     * @param to 结束位置
+     * @return key：分片位置，value：分片长度
+     */
+    public Map<Long, Integer> corruptedShards(String fileId, long from, long to){
+        FileAppender appender = appenderMap.get(fileId);
+        if(appender == null){
+            return Collections.emptyMap();
+        }
+        return appender.corruptedShards(from, to);
     }
 
 
     public void handleTransferEnd(String fileId){
         // 拼接器complete
         FileAppender appender = appenderMap.remove(fileId);
+        unbindChannels(fileId);
         appender.complete();
+        // 保存校验过的md5，节点重启后不需要重新计算
+        if(fileInfoCache != null){
+            FileInfo fileInfo = fileInfoCache.getFileInfo(fileId);
+            FileUtil.saveMd5(fileInfoCache.getPath(fileId), fileInfo.getMd5());
+        }
+    }
+
+    /**
+     * 放弃传输，释放文件拼接器
+     * 断点文件保留，下次传输时继续
+     * @param fileId 文件ID
+     */
+    public void handleTransferAbort(String fileId){
+        unbindChannels(fileId);
+        FileAppender appender = appenderMap.remove(fileId);
+        if(appender != null){
+            appender.release();
+        }
     }
 }
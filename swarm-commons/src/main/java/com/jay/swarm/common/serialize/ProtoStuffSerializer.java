@@ -1,10 +1,13 @@
 package com.jay.swarm.common.serialize;
 
+import io.netty.buffer.ByteBuf;
+import io.protostuff.ByteBufferInput;
 import io.protostuff.LinkedBuffer;
 import io.protostuff.ProtostuffIOUtil;
 import io.protostuff.Schema;
 import io.protostuff.runtime.RuntimeSchema;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -43,6 +46,21 @@ public class ProtoStuffSerializer implements Serializer{
         return result;
     }
 
+    @Override
+    public <T> T deserialize(ByteBuf buffer, Class<T> clazz){
+        Schema<T> schema = getSchema(clazz);
+        T result = schema.newMessage();
+        // 与ProtostuffIOUtil相同，嵌套消息按group编码
+        ByteBufferInput input = new ByteBufferInput(buffer.nioBuffer(), true);
+        try{
+            schema.mergeFrom(input, result);
+            input.checkLastTagWas(0);
+        }catch (IOException e){
+            throw new RuntimeException("deserialize error", e);
+        }
+        return result;
+    }
+
     @SuppressWarnings("unchecked")
     private <T> Schema<T> getSchema(Class<T> clazz){
         Schema<T> schema = (Schema<T>) SCHEMA_CACHE.get(clazz);
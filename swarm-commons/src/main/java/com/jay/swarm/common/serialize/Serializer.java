@@ -1,5 +1,7 @@
 package com.jay.swarm.common.serialize;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  * <p>
  *
@@ -13,4 +15,14 @@ public interface Serializer {
     <T> byte[] serialize(T object, Class<T> clazz);
 
     <T> T deserialize(byte[] bytes, Class<T> clazz);
+
+    /**
+     * 直接从报文的ByteBuf反序列化，不拷贝出byte[]
+     * 不改变buffer的readerIndex，也不释放buffer
+     * @param buffer 数据
+     * @param clazz 类型
+     * @param <T> 类型
+     * @return 对象
+     */
+    <T> T deserialize(ByteBuf buffer, Class<T> clazz);
 }
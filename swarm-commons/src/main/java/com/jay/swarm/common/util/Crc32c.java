@@ -0,0 +1,175 @@
+package com.jay.swarm.common.util;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+/**
+ * <p>
+ *  CRC32C校验
+ *  JDK9以上使用java.util.zip.CRC32C（有硬件指令加速），
+ *  JDK8没有该类，使用查表法计算，两者结果相同。
+ * </p>
+ *
+ * @author Jay
+ * @date 2021/12/30 10:12
+ */
+public final class Crc32c implements Checksum {
+    /**
+     * CRC32C多项式（反转）
+     */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[] TABLE = new int[256];
+
+    /**
+     * java.util.zip.CRC32C的构造器和update(ByteBuffer)，不存在时为null
+     */
+    private static final MethodHandle CONSTRUCTOR;
+    private static final MethodHandle UPDATE;
+
+    /**
+     * 从文件读取数据计算校验时的缓冲大小
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    static {
+        for(int i = 0; i < 256; i++){
+            int crc = i;
+            for(int j = 0; j < 8; j++){
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try{
+            Class<?> clazz = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(clazz, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(clazz, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        }catch (ReflectiveOperationException ignored){
+            // JDK8，使用查表法
+        }
+        CONSTRUCTOR = constructor;
+        UPDATE = update;
+    }
+
+    /**
+     * JDK实现，为null时使用查表法
+     */
+    private final Checksum delegate;
+
+    private int crc = 0xFFFFFFFF;
+
+    public Crc32c(){
+        Checksum checksum = null;
+        if(CONSTRUCTOR != null){
+            try{
+                checksum = (Checksum) CONSTRUCTOR.invokeExact();
+            }catch (Throwable e){
+                throw new IllegalStateException("crc32c error", e);
+            }
+        }
+        this.delegate = checksum;
+    }
+
+    @Override
+    public void update(int b) {
+        if(delegate != null){
+            delegate.update(b);
+            return;
+        }
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        if(delegate != null){
+            delegate.update(b, off, len);
+            return;
+        }
+        for(int i = off; i < off + len; i++){
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b[i]) & 0xFF];
+        }
+    }
+
+    /**
+     * 更新buffer剩余部分，buffer的position移动到limit
+     * @param buffer ByteBuffer
+     */
+    public void update(ByteBuffer buffer){
+        if(delegate != null){
+            try{
+                UPDATE.invokeExact(delegate, buffer);
+            }catch (Throwable e){
+                throw new IllegalStateException("crc32c error", e);
+            }
+            return;
+        }
+        while(buffer.hasRemaining()){
+            crc = (crc >>> 8) ^ TABLE[(crc ^ buffer.get()) & 0xFF];
+        }
+    }
+
+    @Override
+    public long getValue() {
+        if(delegate != null){
+            return delegate.getValue();
+        }
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        if(delegate != null){
+            delegate.reset();
+        }
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * 计算buffer剩余部分的CRC32C，不改变buffer的position
+     * @param buffer ByteBuffer
+     * @return crc
+     */
+    public static int checksum(ByteBuffer buffer){
+        Crc32c crc32c = new Crc32c();
+        crc32c.update(buffer.duplicate());
+        return (int) crc32c.getValue();
+    }
+
+    /**
+     * 计算文件区间[position, position + length)的CRC32C
+     * @param fileChannel 文件
+     * @param position 起始位置
+     * @param length 长度
+     * @return crc
+     * @throws IOException 读取失败或文件长度不足
+     */
+    public static int checksum(FileChannel fileChannel, long position, long length) throws IOException {
+        Crc32c crc32c = new Crc32c();
+        ByteBuffer buffer = READ_BUFFER.get();
+        long end = position + length;
+        while(position < end){
+            buffer.clear();
+            buffer.limit((int) Math.min(READ_BUFFER_SIZE, end - position));
+            int read = fileChannel.read(buffer, position);
+            if(read < 0){
+                throw new IOException("unexpected end of file");
+            }
+            buffer.flip();
+            crc32c.update(buffer);
+            position += read;
+        }
+        return (int) crc32c.getValue();
+    }
+}
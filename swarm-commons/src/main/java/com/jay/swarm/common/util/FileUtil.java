@@ -13,6 +13,11 @@ import java.io.*;
  * @date 2021/12/13
  **/
 public class FileUtil {
+    /**
+     * 文件md5记录文件的后缀
+     */
+    private static final String MD5_SUFFIX = ".md5";
+
     public static byte[] md5(String path){
         try(FileInputStream inputStream = new FileInputStream(new File(path))){
             return DigestUtils.md5(inputStream);
@@ -21,4 +26,44 @@ public class FileUtil {
             return null;
         }
     }
+
+    /**
+     * 保存文件的md5，避免以后重新计算
+     * @param path 文件路径
+     * @param md5 md5
+     */
+    public static void saveMd5(String path, byte[] md5){
+        try(FileOutputStream outputStream = new FileOutputStream(path + MD5_SUFFIX)){
+            outputStream.write(md5);
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 读取保存的md5
+     * @param path 文件路径
+     * @return md5，没有保存过返回null
+     */
+    public static byte[] loadMd5(String path){
+        File file = new File(path + MD5_SUFFIX);
+        if(!file.exists() || file.length() != 16){
+            return null;
+        }
+        try(FileInputStream inputStream = new FileInputStream(file)){
+            byte[] md5 = new byte[16];
+            int read = 0;
+            while(read < md5.length){
+                int length = inputStream.read(md5, read, md5.length - read);
+                if(length < 0){
+                    return null;
+                }
+                read += length;
+            }
+            return md5;
+        }catch (IOException e){
+            e.printStackTrace();
+            return null;
+        }
+    }
 }
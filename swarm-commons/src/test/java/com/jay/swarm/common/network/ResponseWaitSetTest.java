@@ -0,0 +1,244 @@
+package com.jay.swarm.common.network;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>
+ *  ResponseWaitSet测试
+ *  槽位冲突、溢出表、超时与回复的竞争、连接关闭
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 19:10
+ */
+public class ResponseWaitSetTest {
+    /**
+     * 与ResponseWaitSet的环大小一致
+     */
+    private static final int RING_SIZE = 4096;
+
+    @Test
+    public void completeById() throws Exception {
+        ResponseWaitSet waitSet = new ResponseWaitSet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        waitSet.addWaiter(1, future);
+        // 不存在的ID不影响等待者
+        waitSet.complete(2, "other");
+        assertFalse(future.isDone());
+        waitSet.complete(1, "response");
+        assertEquals("response", future.get());
+        // 重复的回复被忽略
+        waitSet.complete(1, "again");
+        assertEquals("response", future.get());
+    }
+
+    @Test
+    public void slotCollisionGoesToOverflow() throws Exception {
+        ResponseWaitSet waitSet = new ResponseWaitSet();
+        CompletableFuture<Object> older = new CompletableFuture<>();
+        CompletableFuture<Object> newer = new CompletableFuture<>();
+        CompletableFuture<Object> newest = new CompletableFuture<>();
+        int id = 5;
+        waitSet.addWaiter(id, older);
+        waitSet.addWaiter(id + RING_SIZE, newer);
+        waitSet.addWaiter(id + 2 * RING_SIZE, newest);
+
+        // 槽位中的ID不同，在溢出表中查找
+        waitSet.complete(id + RING_SIZE, "newer");
+        assertEquals("newer", newer.get());
+        assertFalse(older.isDone());
+        assertFalse(newest.isDone());
+
+        waitSet.complete(id, "older");
+        assertEquals("older", older.get());
+        // 槽位空出后，溢出表中的等待者仍然可以完成
+        waitSet.complete(id + 2 * RING_SIZE, "newest");
+        assertEquals("newest", newest.get());
+        // 槽位可以重新使用
+        CompletableFuture<Object> reused = new CompletableFuture<>();
+        waitSet.addWaiter(id + 3 * RING_SIZE, reused);
+        waitSet.complete(id + 3 * RING_SIZE, "reused");
+        assertEquals("reused", reused.get());
+    }
+
+    @Test
+    public void moreOutstandingThanRing() throws Exception {
+        ResponseWaitSet waitSet = new ResponseWaitSet();
+        int count = RING_SIZE * 2 + 100;
+        List<CompletableFuture<Object>> futures = new ArrayList<>(count);
+        List<Integer> ids = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            waitSet.addWaiter(i, future);
+            futures.add(future);
+            ids.add(i);
+        }
+        // 回复乱序到达
+        Collections.shuffle(ids);
+        for (Integer id : ids) {
+            waitSet.complete(id, id);
+        }
+        for(int i = 0; i < count; i++){
+            assertEquals(i, futures.get(i).get());
+        }
+    }
+
+    @Test
+    public void timeoutRemovesWaiter() throws Exception {
+        ResponseWaitSet waitSet = new ResponseWaitSet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        waitSet.addWaiter(7, future, 50);
+        try{
+            future.get(5, TimeUnit.SECONDS);
+            fail("request did not time out");
+        }catch (ExecutionException e){
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // 超时后到达的回复被忽略
+        waitSet.complete(7, "late");
+        assertTrue(future.isCompletedExceptionally());
+        assertNull(waitSet.remove(7));
+
+        // 超时的等待者已经移出槽位，同一个槽位可以直接使用
+        CompletableFuture<Object> next = new CompletableFuture<>();
+        waitSet.addWaiter(7 + RING_SIZE, next, 5000);
+        waitSet.complete(7 + RING_SIZE, "next");
+        assertEquals("next", next.get());
+    }
+
+    @Test
+    public void timeoutRacesWithResponse() throws Exception {
+        ResponseWaitSet waitSet = new ResponseWaitSet();
+        int count = RING_SIZE + 1000;
+        List<CompletableFuture<Object>> futures = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            waitSet.addWaiter(i, future, 20);
+            futures.add(future);
+        }
+        // 回复和超时同时发生，每个请求只以其中一种结果完成
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try{
+            CountDownLatch start = new CountDownLatch(1);
+            for(int t = 0; t < 4; t++){
+                int offset = t;
+                executor.execute(() -> {
+                    try{
+                        start.await();
+                    }catch (InterruptedException e){
+                        return;
+                    }
+                    for(int i = offset; i < count; i += 4){
+                        waitSet.complete(i, i);
+                    }
+                });
+            }
+            Thread.sleep(15);
+            start.countDown();
+        }finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        int completed = 0, timeout = 0;
+        for(int i = 0; i < count; i++){
+            try{
+                assertEquals(i, futures.get(i).get(5, TimeUnit.SECONDS));
+                completed++;
+            }catch (ExecutionException e){
+                assertTrue(e.getCause() instanceof TimeoutException);
+                timeout++;
+            }
+            assertNull(waitSet.remove(i));
+        }
+        assertEquals(count, completed + timeout);
+    }
+
+    @Test
+    public void failChannelOnlyFailsItsRequests() throws Exception {
+        ResponseWaitSet waitSet = new ResponseWaitSet();
+        EmbeddedChannel closed = new EmbeddedChannel();
+        EmbeddedChannel open = new EmbeddedChannel();
+        CompletableFuture<Object> inRing = new CompletableFuture<>();
+        CompletableFuture<Object> inOverflow = new CompletableFuture<>();
+        CompletableFuture<Object> other = new CompletableFuture<>();
+        waitSet.addWaiter(1, inRing);
+        waitSet.addWaiter(1 + RING_SIZE, inOverflow);
+        waitSet.addWaiter(2, other);
+        waitSet.bind(1, closed);
+        waitSet.bind(1 + RING_SIZE, closed);
+        waitSet.bind(2, open);
+
+        waitSet.failChannel(closed);
+        for (CompletableFuture<Object> future : Arrays.asList(inRing, inOverflow)) {
+            try{
+                future.get();
+                fail("request on closed channel completed");
+            }catch (ExecutionException e){
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertFalse(other.isDone());
+        waitSet.complete(2, "response");
+        assertEquals("response", other.get());
+        closed.finishAndReleaseAll();
+        open.finishAndReleaseAll();
+    }
+
+    @Test
+    public void concurrentRemoveWinsOnce() throws Exception {
+        ResponseWaitSet waitSet = new ResponseWaitSet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try{
+            for(int round = 0; round < 200; round++){
+                // 一半的ID落在溢出表中
+                int id = round % 2 == 0 ? round : round + RING_SIZE;
+                CompletableFuture<Object> occupant = new CompletableFuture<>();
+                if(id >= RING_SIZE){
+                    waitSet.addWaiter(id - RING_SIZE, occupant);
+                }
+                waitSet.addWaiter(id, new CompletableFuture<>());
+                AtomicInteger winners = new AtomicInteger();
+                CountDownLatch start = new CountDownLatch(1);
+                CountDownLatch done = new CountDownLatch(8);
+                for(int t = 0; t < 8; t++){
+                    executor.execute(() -> {
+                        try{
+                            start.await();
+                            if(waitSet.remove(id) != null){
+                                winners.incrementAndGet();
+                            }
+                        }catch (InterruptedException ignored){
+                        }finally {
+                            done.countDown();
+                        }
+                    });
+                }
+                start.countDown();
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                assertEquals(1, winners.get());
+                if(id >= RING_SIZE){
+                    assertNotNull(waitSet.remove(id - RING_SIZE));
+                }
+            }
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.jay.swarm.common.network.handler;
+
+import com.jay.swarm.common.fs.FileInfo;
+import com.jay.swarm.common.fs.ShardCheckpoint;
+import com.jay.swarm.common.util.Crc32c;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>
+ *  FileTransferHandler测试
+ *  连接关闭和空闲超时后释放文件拼接器，断点保留
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/18 10:20
+ */
+public class FileTransferHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void releaseWhenAllChannelsClosed() throws Exception {
+        FileTransferHandler handler = new FileTransferHandler();
+        String fileId = UUID.randomUUID().toString();
+        File file = new File(folder.getRoot(), fileId);
+        handler.handleTransferHead(fileInfo(fileId), file.getPath());
+        EmbeddedChannel head = new EmbeddedChannel();
+        EmbeddedChannel stripe = new EmbeddedChannel();
+        handler.bindChannel(head, fileId);
+        handler.bindChannel(stripe, fileId);
+        ByteBuf shard = Unpooled.wrappedBuffer(new byte[64]);
+        assertTrue(handler.handleTransferBody(fileId, 0, Crc32c.checksum(shard.nioBuffer()), shard));
+
+        // 条带连接仍在发送
+        handler.channelClosed(head);
+        assertEquals(1, handler.activeTransfers());
+
+        handler.channelClosed(stripe);
+        assertEquals(0, handler.activeTransfers());
+        assertTrue(new File(file.getPath() + ShardCheckpoint.SUFFIX).exists());
+
+        // 断点续传时重新创建
+        handler.handleTransferHead(fileInfo(fileId), file.getPath());
+        assertEquals(1, handler.completedShards(fileId).cardinality());
+        handler.handleTransferAbort(fileId);
+        head.finishAndReleaseAll();
+        stripe.finishAndReleaseAll();
+    }
+
+    @Test
+    public void channelRebindsAfterTransferEnds() throws Exception {
+        FileTransferHandler handler = new FileTransferHandler();
+        String fileId = UUID.randomUUID().toString();
+        String path = new File(folder.getRoot(), fileId).getPath();
+        EmbeddedChannel channel = new EmbeddedChannel();
+        handler.handleTransferHead(fileInfo(fileId), path);
+        handler.bindChannel(channel, fileId);
+        handler.handleTransferAbort(fileId);
+
+        // 同一条连接再次传输同一个文件
+        handler.handleTransferHead(fileInfo(fileId), path);
+        handler.bindChannel(channel, fileId);
+        handler.channelClosed(channel);
+        assertEquals(0, handler.activeTransfers());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void abortIdleTransfers() throws Exception {
+        FileTransferHandler handler = new FileTransferHandler();
+        String fileId = UUID.randomUUID().toString();
+        handler.handleTransferHead(fileInfo(fileId), new File(folder.getRoot(), fileId).getPath());
+        assertEquals(0, handler.abortIdleTransfers(60 * 1000));
+        assertEquals(1, handler.activeTransfers());
+        Thread.sleep(20);
+        assertEquals(1, handler.abortIdleTransfers(10));
+        assertEquals(0, handler.activeTransfers());
+    }
+
+    private static FileInfo fileInfo(String fileId){
+        return FileInfo.builder().fileId(fileId).totalSize(64).md5(new byte[16]).shardCount(1).build();
+    }
+}
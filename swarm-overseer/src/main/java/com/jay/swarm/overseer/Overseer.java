@@ -51,7 +51,7 @@ public class Overseer {
         this.serializer = new ProtoStuffSerializer();
         metaDataManager = new MetaDataManager();
         storageManager = new StorageManager(config);
-        overseerServer = new BaseServer();
+        overseerServer = new BaseServer(config);
         persistence = new Persistence(metaDataManager, config, serializer);
     }
 
@@ -6,6 +6,7 @@ import com.jay.swarm.common.network.entity.NetworkPacket;
 import com.jay.swarm.common.network.entity.PacketTypes;
 import com.jay.swarm.common.serialize.Serializer;
 import com.jay.swarm.common.util.StringUtils;
+import com.jay.swarm.overseer.meta.BucketIndex;
 import com.jay.swarm.overseer.meta.MetaDataManager;
 import com.jay.swarm.overseer.storage.StorageManager;
 import com.jay.swarm.overseer.storage.StorageNodeSelector;
@@ -14,6 +15,7 @@ import lombok.extern.slf4j.Slf4j;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -30,6 +32,11 @@ public class MetaDataHandler {
     private final Serializer serializer;
     private final StorageNodeSelector storageNodeSelector;
 
+    /**
+     * 对象列表每页的默认条数和最大条数
+     */
+    private static final int DEFAULT_MAX_KEYS = 1000;
+
     public MetaDataHandler(MetaDataManager metaDataManager, StorageManager storageManager,  Serializer serializer, StorageNodeSelector storageNodeSelector) {
         this.metaDataManager = metaDataManager;
         this.serializer = serializer;
@@ -40,103 +47,240 @@ public class MetaDataHandler {
     /**
      * 处理文件上传的元数据
      * @param packet NetworkPacket
-     * @return NetworkPacket response
+     * @return NetworkPacket response，元数据写入日志后完成
      */
-    public NetworkPacket handleUploadRequest(NetworkPacket packet){
+    public CompletableFuture<NetworkPacket> handleUploadRequest(NetworkPacket packet){
+        int packetId = packet.getId();
         try{
-            // 反序列化解析出上传请求
-            byte[] content = packet.getContent();
-            FileUploadRequest request = serializer.deserialize(content, FileUploadRequest.class);
-            /*
-                参数校验
-            */
-            if(StringUtils.isEmpty(request.getFilename())){
-                throw new IllegalArgumentException("upload request error: empty file name");
-            }
-            if(request.getMd5() == null || request.getMd5().length == 0){
-                throw new IllegalArgumentException("upload request error: missing md5");
-            }
-            if(request.getSize() <= 0){
-                throw new IllegalArgumentException("upload request error: invalid file size");
-            }
-            // 生成文件ID
-            String fileId = UUID.randomUUID().toString();
-            // 生成元数据
-            MetaData metaData = MetaData.builder()
-                    .size(request.getSize())
-                    .filename(request.getFilename())
-                    .key(fileId)
-                    .uploadTime(System.currentTimeMillis())
-                    .backupCount(request.getBackupCount())
-                    .storages(new ArrayList<>())
-                    .md5(request.getMd5())
-                    .build();
-            // 记录元数据
-            metaDataManager.putMetaData(metaData);
-            // 选择存储节点
-            List<StorageInfo> storages = storageNodeSelector.select(metaData);
-
-            // 生成上传response，包括生成的文件ID、选择的存储节点
-            FileUploadResponse response = FileUploadResponse.builder()
-                    .fileId(fileId).storageNodes(storages)
-                    .build();
-
-            // 封装response报文
-            byte[] serializedResp = serializer.serialize(response, FileUploadResponse.class);
-            NetworkPacket responsePacket = NetworkPacket.buildPacketOfType(PacketTypes.UPLOAD_RESPONSE, serializedResp);
-            responsePacket.setId(packet.getId());
-
-            return responsePacket;
+            FileUploadRequest request = serializer.deserialize(packet.getData(), FileUploadRequest.class);
+            // 元数据写入日志后才回复，回复后的元数据不会因为宕机丢失
+            return allocateUpload(request).thenApply(response -> {
+                // 封装response报文
+                byte[] serializedResp = serializer.serialize(response, FileUploadResponse.class);
+                NetworkPacket responsePacket = NetworkPacket.buildPacketOfType(PacketTypes.UPLOAD_RESPONSE, serializedResp);
+                responsePacket.setId(packetId);
+                return responsePacket;
+            }).exceptionally(e -> errorResponse(packetId, "upload request error: meta-data journal failed"));
         }catch (Exception e){
             log.info("upload request error: {}", e.getMessage());
             if(log.isDebugEnabled()){
                 log.debug("upload request error", e);
             }
             // 封装异常报文
-            NetworkPacket errorResponse = NetworkPacket.buildPacketOfType(PacketTypes.ERROR,
-                    e.getMessage().getBytes(SwarmConstants.DEFAULT_CHARSET));
-            errorResponse.setId(packet.getId());
-            return errorResponse;
+            return CompletableFuture.completedFuture(errorResponse(packetId, e.getMessage()));
         }
 
     }
 
     /**
-     * 处理文件上传到存储节点后，存储节点更新元数据请求
+     * 处理批量上传请求
+     * 所有文件的元数据在同一批日志提交中写入，全部写入后一次回复
      * @param packet NetworkPacket
-     * @return NetworkPacket response
+     * @return NetworkPacket response，元数据写入日志后完成
      */
-    public NetworkPacket updateFileMeta(NetworkPacket packet){
+    public CompletableFuture<NetworkPacket> handleBatchUploadRequest(NetworkPacket packet){
+        int packetId = packet.getId();
         try{
-            // 反序列化出存储元数据
-            byte[] content = packet.getContent();
-            FileMetaStorage fileMetaStorage = serializer.deserialize(content, FileMetaStorage.class);
-            // 获取文件meta
-            MetaData metaData = metaDataManager.getMetaData(fileMetaStorage.getFileId());
-            // 文件不存在
-            if(metaData == null){
-                throw new RuntimeException("file doesn't exist");
+            BatchUploadRequest batch = serializer.deserialize(packet.getData(), BatchUploadRequest.class);
+            List<FileUploadRequest> requests = batch.getRequests();
+            if(requests == null || requests.isEmpty() || requests.size() > SwarmConstants.MAX_BATCH_SIZE){
+                throw new IllegalArgumentException("batch upload request error: batch size must be between 1 and " + SwarmConstants.MAX_BATCH_SIZE);
             }
-            // 寻找存储节点信息
-            StorageInfo storageInfo = storageManager.getStorageInfo(fileMetaStorage.getStorageId());
-            // 存储节点未注册，视为不受信任的报文
-            if(storageInfo == null){
-                throw new RuntimeException("update request not trusted, storage node has not registered.");
+            List<CompletableFuture<FileUploadResponse>> futures = new ArrayList<>(requests.size());
+            for (FileUploadRequest request : requests) {
+                CompletableFuture<FileUploadResponse> future;
+                try{
+                    future = allocateUpload(request)
+                            .exceptionally(e -> FileUploadResponse.builder().error("meta-data journal failed").build());
+                }catch (Exception e){
+                    // 单个文件的错误不影响其他文件
+                    future = CompletableFuture.completedFuture(FileUploadResponse.builder().error(String.valueOf(e.getMessage())).build());
+                }
+                futures.add(future);
             }
-            // 更新存储节点已使用的空间
-            storageInfo.setUsedStorage(storageInfo.getFreeStorage() + metaData.getSize());
-            // 元数据中添加该存储节点
-            metaData.getStorages().add(fileMetaStorage.getStorageId());
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                List<FileUploadResponse> responses = new ArrayList<>(futures.size());
+                for (CompletableFuture<FileUploadResponse> future : futures) {
+                    responses.add(future.join());
+                }
+                BatchUploadResponse response = BatchUploadResponse.builder().responses(responses).build();
+                NetworkPacket responsePacket = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, serializer.serialize(response, BatchUploadResponse.class));
+                responsePacket.setId(packetId);
+                return responsePacket;
+            });
+        }catch (Exception e){
+            log.info("batch upload request error: {}", e.getMessage());
+            return CompletableFuture.completedFuture(errorResponse(packetId, String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * 为上传请求生成文件ID、记录元数据、选择存储节点
+     * @param request 上传请求
+     * @return 元数据写入日志后完成
+     * @throws IllegalArgumentException 请求参数错误
+     */
+    private CompletableFuture<FileUploadResponse> allocateUpload(FileUploadRequest request){
+        /*
+            参数校验
+        */
+        if(StringUtils.isEmpty(request.getFilename())){
+            throw new IllegalArgumentException("upload request error: empty file name");
+        }
+        if(request.getMd5() == null || request.getMd5().length == 0){
+            throw new IllegalArgumentException("upload request error: missing md5");
+        }
+        if(request.getSize() <= 0){
+            throw new IllegalArgumentException("upload request error: invalid file size");
+        }
+        // 生成文件ID
+        String fileId = UUID.randomUUID().toString();
+        // 生成元数据
+        MetaData metaData = MetaData.builder()
+                .size(request.getSize())
+                .filename(request.getFilename())
+                .key(fileId)
+                .uploadTime(System.currentTimeMillis())
+                .backupCount(request.getBackupCount())
+                .storages(new ArrayList<>())
+                .md5(request.getMd5())
+                .bucket(StringUtils.isEmpty(request.getBucket()) ? null : request.getBucket())
+                .build();
+        // 记录元数据
+        CompletableFuture<Void> logged = metaDataManager.putMetaData(metaData);
+        // 选择存储节点
+        List<StorageInfo> storages = storageNodeSelector.select(metaData);
+
+        // 生成上传response，包括生成的文件ID、选择的存储节点
+        FileUploadResponse response = FileUploadResponse.builder()
+                .fileId(fileId).storageNodes(storages)
+                .build();
+        return logged.thenApply(v -> response);
+    }
+
+    /**
+     * 处理文件上传到存储节点后，存储节点更新元数据请求
+     * @param packet NetworkPacket
+     * @return NetworkPacket response，修改写入日志后完成
+     */
+    public CompletableFuture<NetworkPacket> updateFileMeta(NetworkPacket packet){
+        int packetId = packet.getId();
+        try{
+            // 反序列化出存储元数据
+            FileMetaStorage fileMetaStorage = serializer.deserialize(packet.getData(), FileMetaStorage.class);
+            CompletableFuture<Void> logged = addStorage(fileMetaStorage);
 
             NetworkPacket response = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, new byte[0]);
-            response.setId(packet.getId());
-            return response;
+            response.setId(packetId);
+            return logged.thenApply(v -> response)
+                    .exceptionally(e -> errorResponse(packetId, "update meta error: meta-data journal failed"));
         }catch (Exception e){
             e.printStackTrace();
-            NetworkPacket response = NetworkPacket.buildPacketOfType(PacketTypes.ERROR,
-                    e.getMessage().getBytes(SwarmConstants.DEFAULT_CHARSET));
-            response.setId(packet.getId());
-            return response;
+            return CompletableFuture.completedFuture(errorResponse(packetId, e.getMessage()));
         }
     }
+
+    /**
+     * 处理存储节点合并发送的元数据更新
+     * 每个条目单独处理，无效的条目（文件不存在等）不影响同一批的其他条目，回复中的结果与条目一一对应
+     * @param packet NetworkPacket
+     * @return NetworkPacket response，所有修改写入日志后完成
+     */
+    public CompletableFuture<NetworkPacket> updateFileMetaBatch(NetworkPacket packet){
+        int packetId = packet.getId();
+        try{
+            BatchFileMetaStorage batch = serializer.deserialize(packet.getData(), BatchFileMetaStorage.class);
+            List<FileMetaStorage> storages = batch.getStorages();
+            if(storages == null || storages.isEmpty() || storages.size() > SwarmConstants.MAX_BATCH_SIZE){
+                throw new IllegalArgumentException("batch update meta error: batch size must be between 1 and " + SwarmConstants.MAX_BATCH_SIZE);
+            }
+            List<CompletableFuture<FileMetaStorageResult>> futures = new ArrayList<>(storages.size());
+            for (FileMetaStorage fileMetaStorage : storages) {
+                String fileId = fileMetaStorage.getFileId();
+                CompletableFuture<FileMetaStorageResult> future;
+                try{
+                    future = addStorage(fileMetaStorage)
+                            .thenApply(v -> FileMetaStorageResult.builder().fileId(fileId).build())
+                            .exceptionally(e -> FileMetaStorageResult.builder().fileId(fileId).error("update meta error: meta-data journal failed").build());
+                }catch (Exception e){
+                    log.warn("update meta error, file: {}, storage: {}, {}", fileId, fileMetaStorage.getStorageId(), e.getMessage());
+                    future = CompletableFuture.completedFuture(FileMetaStorageResult.builder().fileId(fileId).error(String.valueOf(e.getMessage())).build());
+                }
+                futures.add(future);
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                List<FileMetaStorageResult> results = new ArrayList<>(futures.size());
+                for (CompletableFuture<FileMetaStorageResult> future : futures) {
+                    results.add(future.join());
+                }
+                BatchFileMetaStorageResponse response = BatchFileMetaStorageResponse.builder().results(results).build();
+                NetworkPacket responsePacket = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, serializer.serialize(response, BatchFileMetaStorageResponse.class));
+                responsePacket.setId(packetId);
+                return responsePacket;
+            });
+        }catch (Exception e){
+            log.info("batch update meta error: {}", e.getMessage());
+            return CompletableFuture.completedFuture(errorResponse(packetId, String.valueOf(e.getMessage())));
+        }
+    }
+
+    /**
+     * 元数据中添加存储节点
+     * 不修改存储节点的已用空间：选择器记录了两次心跳之间分配的文件大小，下一次心跳上报实际值
+     * @param fileMetaStorage 文件ID和存储节点ID
+     * @return 修改写入日志后完成
+     */
+    private CompletableFuture<Void> addStorage(FileMetaStorage fileMetaStorage){
+        // 获取文件meta
+        MetaData metaData = metaDataManager.getMetaData(fileMetaStorage.getFileId());
+        // 文件不存在
+        if(metaData == null){
+            throw new RuntimeException("file doesn't exist");
+        }
+        // 寻找存储节点信息
+        StorageInfo storageInfo = storageManager.getStorageInfo(fileMetaStorage.getStorageId());
+        // 存储节点未注册，视为不受信任的报文
+        if(storageInfo == null){
+            throw new RuntimeException("update request not trusted, storage node has not registered.");
+        }
+        // 元数据中添加该存储节点
+        return metaDataManager.addStorage(metaData, fileMetaStorage.getStorageId());
+    }
+
+    /**
+     * 列出桶中的对象
+     * @param packet NetworkPacket
+     * @return NetworkPacket response
+     */
+    public NetworkPacket handleListObjects(NetworkPacket packet){
+        int packetId = packet.getId();
+        try{
+            ListObjectsRequest request = serializer.deserialize(packet.getData(), ListObjectsRequest.class);
+            if(StringUtils.isEmpty(request.getBucket())){
+                throw new IllegalArgumentException("list objects error: empty bucket");
+            }
+            int maxKeys = request.getMaxKeys() <= 0 ? DEFAULT_MAX_KEYS : Math.min(request.getMaxKeys(), DEFAULT_MAX_KEYS);
+            BucketIndex bucketIndex = metaDataManager.getBucketIndex(request.getBucket());
+            ListObjectsResponse response;
+            if(bucketIndex == null){
+                // 桶中没有对象
+                response = ListObjectsResponse.builder().bucket(request.getBucket()).build();
+            }else{
+                response = bucketIndex.list(request.getPrefix(), request.getDelimiter(), maxKeys, request.getContinuationToken());
+            }
+            NetworkPacket responsePacket = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, serializer.serialize(response, ListObjectsResponse.class));
+            responsePacket.setId(packetId);
+            return responsePacket;
+        }catch (Exception e){
+            log.info("list objects error: {}", e.getMessage());
+            return errorResponse(packetId, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private NetworkPacket errorResponse(int packetId, String message){
+        NetworkPacket response = NetworkPacket.buildPacketOfType(PacketTypes.ERROR,
+                message.getBytes(SwarmConstants.DEFAULT_CHARSET));
+        response.setId(packetId);
+        return response;
+    }
 }
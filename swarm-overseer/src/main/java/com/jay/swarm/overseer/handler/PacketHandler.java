@@ -1,6 +1,8 @@
 package com.jay.swarm.overseer.handler;
 
 import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.BatchDownloadRequest;
+import com.jay.swarm.common.entity.BatchDownloadResponse;
 import com.jay.swarm.common.entity.DownloadResponse;
 import com.jay.swarm.common.entity.MetaData;
 import com.jay.swarm.common.entity.StorageInfo;
@@ -15,7 +17,9 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -78,6 +82,13 @@ public class PacketHandler extends SimpleChannelInboundHandler<NetworkPacket> {
     protected void channelRead0(ChannelHandlerContext ctx, NetworkPacket packet) {
         short packetType = packet.getType();
         try{
+            // 超过发送方期限的请求，发送方已经放弃等待，不再处理
+            if(packet.isExpired()){
+                if(log.isDebugEnabled()){
+                    log.debug("drop expired request, type: {}, id: {}", packetType, packet.getId());
+                }
+                return;
+            }
             NetworkPacket response = null;
             // 根据报文类型做不同处理，最终得到一个Response packet
             switch(packetType){
@@ -85,12 +96,20 @@ public class PacketHandler extends SimpleChannelInboundHandler<NetworkPacket> {
                 case PacketTypes.STORAGE_REGISTER: response = storageHandler.handleStorageRegister(packet, ctx.channel());break;
                 // 存储节点心跳
                 case PacketTypes.HEART_BEAT: response = storageHandler.handleStorageHeartBeat(packet, ctx.channel()); break;
-                // 上传请求
-                case PacketTypes.UPLOAD_REQUEST: response = metaDataHandler.handleUploadRequest(packet); break;
-                // 更新meta
-                case PacketTypes.UPDATE_FILE_META_STORAGE: response = metaDataHandler.updateFileMeta(packet); break;
+                // 上传请求，元数据写入日志后回复
+                case PacketTypes.UPLOAD_REQUEST: replyAsync(ctx, metaDataHandler.handleUploadRequest(packet)); break;
+                // 更新meta，写入日志后回复
+                case PacketTypes.UPDATE_FILE_META_STORAGE: replyAsync(ctx, metaDataHandler.updateFileMeta(packet)); break;
+                // 批量上传请求，元数据写入日志后回复
+                case PacketTypes.BATCH_UPLOAD_REQUEST: replyAsync(ctx, metaDataHandler.handleBatchUploadRequest(packet)); break;
+                // 存储节点合并发送的更新meta，写入日志后回复
+                case PacketTypes.BATCH_UPDATE_FILE_META_STORAGE: replyAsync(ctx, metaDataHandler.updateFileMetaBatch(packet)); break;
                 // 下载请求
                 case PacketTypes.DOWNLOAD_REQUEST: response = handleDownloadRequest(packet);break;
+                // 批量下载请求
+                case PacketTypes.BATCH_DOWNLOAD_REQUEST: response = handleBatchDownloadRequest(packet); break;
+                // 列出桶中的对象
+                case PacketTypes.LIST_OBJECTS: response = metaDataHandler.handleListObjects(packet); break;
                 default:break;
             }
             if(response != null){
@@ -99,49 +118,99 @@ public class PacketHandler extends SimpleChannelInboundHandler<NetworkPacket> {
             }
         }catch (Exception e){
             e.printStackTrace();
-            packet.release();
+        }finally {
+            // 请求已经处理完，报文对象归还对象池
+            packet.recycle();
         }
     }
 
+    /**
+     * 异步回复，不阻塞EventLoop等待日志提交
+     * @param ctx 上下文
+     * @param response 回复
+     */
+    private void replyAsync(ChannelHandlerContext ctx, CompletableFuture<NetworkPacket> response){
+        response.thenAccept(packet -> ctx.channel().writeAndFlush(packet));
+    }
+
     private NetworkPacket handleDownloadRequest(NetworkPacket packet){
         try{
-            byte[] content = packet.getContent();
-            String fileId = new String(content, SwarmConstants.DEFAULT_CHARSET);
-            // 获取文件元数据
-            MetaData metaData = metaDataManager.getMetaData(fileId);
-            // 文件不存在
-            if(metaData == null){
-                throw new RuntimeException("file " + fileId + " doesn't exist");
-            }
-            // 文件存储的节点集合
-            List<String> storages = metaData.getStorages();
+            String fileId = packet.getData().toString(SwarmConstants.DEFAULT_CHARSET);
+            DownloadResponse response = downloadResponse(fileId);
+            NetworkPacket respPacket = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, serializer.serialize(response, DownloadResponse.class));
+            respPacket.setId(packet.getId());
+            return respPacket;
+        }catch (Exception e){
+            NetworkPacket errorResponse = NetworkPacket.buildPacketOfType(PacketTypes.ERROR, e.getMessage().getBytes(SwarmConstants.DEFAULT_CHARSET));
+            errorResponse.setId(packet.getId());
+            return errorResponse;
+        }
+    }
 
-            if(storages == null || storages.isEmpty()){
-                throw new RuntimeException("no storage node contains file " + fileId);
+    /**
+     * 批量查询下载信息，单个文件的错误放在对应回复的error中
+     * @param packet NetworkPacket
+     * @return NetworkPacket response
+     */
+    private NetworkPacket handleBatchDownloadRequest(NetworkPacket packet){
+        try{
+            BatchDownloadRequest request = serializer.deserialize(packet.getData(), BatchDownloadRequest.class);
+            List<String> fileIds = request.getFileIds();
+            if(fileIds == null || fileIds.isEmpty() || fileIds.size() > SwarmConstants.MAX_BATCH_SIZE){
+                throw new IllegalArgumentException("batch size must be between 1 and " + SwarmConstants.MAX_BATCH_SIZE);
             }
-
-            // 筛选出存活节点的信息
-            List<StorageInfo> aliveNodes = storageManager.getAliveNodes(storages);
-
-            if(aliveNodes == null || aliveNodes.isEmpty()){
-                throw new RuntimeException("no alive storage node contains file " + fileId);
+            List<DownloadResponse> responses = new ArrayList<>(fileIds.size());
+            for (String fileId : fileIds) {
+                try{
+                    responses.add(downloadResponse(fileId));
+                }catch (Exception e){
+                    responses.add(DownloadResponse.builder().fileId(fileId).error(e.getMessage()).build());
+                }
             }
-
-            DownloadResponse response = DownloadResponse.builder()
-                    .md5(metaData.getMd5())
-                    .size(metaData.getSize())
-                    .fileId(fileId)
-                    .filename(metaData.getFilename())
-                    .storages(aliveNodes)
-                    .build();
-
-            NetworkPacket respPacket = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, serializer.serialize(response, DownloadResponse.class));
+            BatchDownloadResponse response = BatchDownloadResponse.builder().responses(responses).build();
+            NetworkPacket respPacket = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, serializer.serialize(response, BatchDownloadResponse.class));
             respPacket.setId(packet.getId());
             return respPacket;
         }catch (Exception e){
-            NetworkPacket errorResponse = NetworkPacket.buildPacketOfType(PacketTypes.ERROR, e.getMessage().getBytes(SwarmConstants.DEFAULT_CHARSET));
+            NetworkPacket errorResponse = NetworkPacket.buildPacketOfType(PacketTypes.ERROR, String.valueOf(e.getMessage()).getBytes(SwarmConstants.DEFAULT_CHARSET));
             errorResponse.setId(packet.getId());
             return errorResponse;
         }
     }
+
+    /**
+     * 查询文件的下载信息
+     * @param fileId 文件ID
+     * @return DownloadResponse
+     * @throws RuntimeException 文件不存在或没有存活的存储节点
+     */
+    private DownloadResponse downloadResponse(String fileId){
+        // 获取文件元数据
+        MetaData metaData = metaDataManager.getMetaData(fileId);
+        // 文件不存在
+        if(metaData == null){
+            throw new RuntimeException("file " + fileId + " doesn't exist");
+        }
+        // 文件存储的节点集合
+        List<String> storages = metaData.getStorages();
+
+        if(storages == null || storages.isEmpty()){
+            throw new RuntimeException("no storage node contains file " + fileId);
+        }
+
+        // 筛选出存活节点的信息
+        List<StorageInfo> aliveNodes = storageManager.getAliveNodes(storages);
+
+        if(aliveNodes == null || aliveNodes.isEmpty()){
+            throw new RuntimeException("no alive storage node contains file " + fileId);
+        }
+
+        return DownloadResponse.builder()
+                .md5(metaData.getMd5())
+                .size(metaData.getSize())
+                .fileId(fileId)
+                .filename(metaData.getFilename())
+                .storages(aliveNodes)
+                .build();
+    }
 }
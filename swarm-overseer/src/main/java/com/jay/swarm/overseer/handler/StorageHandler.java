@@ -31,12 +31,11 @@ public class StorageHandler {
 
     public NetworkPacket handleStorageRegister(NetworkPacket packet, Channel channel){
         try{
-            byte[] content = packet.getContent();
-            if(content == null){
+            if(packet.getData() == null){
                 throw new RuntimeException("no content found in register packet");
             }
             // 反序列化报文content
-            StorageInfo storageInfo = serializer.deserialize(content, StorageInfo.class);
+            StorageInfo storageInfo = serializer.deserialize(packet.getData(), StorageInfo.class);
             InetSocketAddress address = (InetSocketAddress) channel.remoteAddress();
             storageInfo.setHost(address.getHostString());
             // 没有ID，第一次注册
@@ -64,11 +63,10 @@ public class StorageHandler {
 
     public NetworkPacket handleStorageHeartBeat(NetworkPacket packet, Channel channel){
         try{
-            byte[] content = packet.getContent();
-            if(content == null){
+            if(packet.getData() == null){
                 throw new RuntimeException("no content found in heart beat packet");
             }
-            StorageInfo storageInfo = serializer.deserialize(content, StorageInfo.class);
+            StorageInfo storageInfo = serializer.deserialize(packet.getData(), StorageInfo.class);
             InetSocketAddress remoteAddress = (InetSocketAddress) channel.remoteAddress();
             storageInfo.setHost(remoteAddress.getHostString());
 
@@ -0,0 +1,206 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.ListObjectsResponse;
+import com.jay.swarm.common.entity.ObjectSummary;
+import com.jay.swarm.common.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *  桶的对象索引
+ *  key：对象在桶中的key（上传时的文件名），value：文件ID和大小。
+ *  ConcurrentSkipListMap按key排序，查找、添加都是O(log n)，
+ *  按key顺序遍历和前缀范围查询只访问结果中的条目，与整个元数据缓存的大小无关。
+ *  同一个key再次上传时指向新的文件ID，与对象存储的覆盖语义一致。
+ *
+ *  对象数和总大小随修改维护，统计不需要遍历（ConcurrentSkipListMap.size()需要遍历）。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/08 10:30
+ */
+public class BucketIndex {
+    private final String bucketId;
+    private final ConcurrentSkipListMap<String, Entry> objects = new ConcurrentSkipListMap<>();
+    private final AtomicLong objectCount = new AtomicLong();
+    private final AtomicLong totalSize = new AtomicLong();
+
+    public BucketIndex(String bucketId) {
+        this.bucketId = bucketId;
+    }
+
+    /**
+     * 添加或覆盖对象
+     * @param key 对象key
+     * @param fileId 文件ID
+     * @param size 文件大小
+     */
+    public void put(String key, String fileId, long size){
+        Entry entry = new Entry(fileId, size);
+        Entry old = objects.put(key, entry);
+        if(old == null){
+            objectCount.incrementAndGet();
+            totalSize.addAndGet(size);
+        }else{
+            totalSize.addAndGet(size - old.size);
+        }
+    }
+
+    /**
+     * 对象是否存在
+     * @param key 对象key
+     * @return boolean
+     */
+    public boolean contains(String key){
+        return objects.containsKey(key);
+    }
+
+    /**
+     * 获取对象
+     * @param key 对象key
+     * @return Entry，不存在时返回null
+     */
+    public Entry get(String key){
+        return objects.get(key);
+    }
+
+    /**
+     * 按key顺序的视图
+     * @return 有序视图
+     */
+    public NavigableMap<String, Entry> view(){
+        return objects;
+    }
+
+    /**
+     * 列出一页对象
+     * 从起始key开始按顺序遍历跳表，遇到公共前缀时直接跳到该前缀之后，
+     * 每页只访问返回的条目，不会生成整个桶的列表。
+     * @param prefix 前缀，可以为null
+     * @param delimiter 分隔符，可以为null
+     * @param maxKeys 对象和公共前缀的最大条数
+     * @param continuationToken 上一页的token，可以为null
+     * @return ListObjectsResponse
+     */
+    public ListObjectsResponse list(String prefix, String delimiter, int maxKeys, String continuationToken){
+        String safePrefix = prefix == null ? "" : prefix;
+        boolean useDelimiter = !StringUtils.isEmpty(delimiter);
+        // token是下一页的起始key（包含），第一页从prefix开始
+        String start = safePrefix;
+        if(continuationToken != null){
+            String decoded = decodeToken(continuationToken);
+            if(decoded.compareTo(start) > 0){
+                start = decoded;
+            }
+        }
+        List<ObjectSummary> summaries = new ArrayList<>();
+        List<String> commonPrefixes = new ArrayList<>();
+        String next = null;
+        Map.Entry<String, Entry> entry = ceiling(start);
+        while(entry != null && entry.getKey().startsWith(safePrefix)){
+            String key = entry.getKey();
+            int index = useDelimiter ? key.indexOf(delimiter, safePrefix.length()) : -1;
+            String resumeFrom;
+            if(index >= 0){
+                // 公共前缀，跳过该前缀下的所有key
+                String commonPrefix = key.substring(0, index + delimiter.length());
+                if(summaries.size() + commonPrefixes.size() == maxKeys){
+                    next = commonPrefix;
+                    break;
+                }
+                commonPrefixes.add(commonPrefix);
+                resumeFrom = successor(commonPrefix);
+            }else{
+                if(summaries.size() + commonPrefixes.size() == maxKeys){
+                    next = key;
+                    break;
+                }
+                summaries.add(ObjectSummary.builder().key(key).fileId(entry.getValue().fileId).size(entry.getValue().size).build());
+                // key之后最小的字符串
+                resumeFrom = key + '\u0000';
+            }
+            entry = resumeFrom == null ? null : ceiling(resumeFrom);
+        }
+        return ListObjectsResponse.builder()
+                .bucket(bucketId)
+                .objects(summaries)
+                .commonPrefixes(commonPrefixes)
+                .truncated(next != null)
+                .nextContinuationToken(next == null ? null : Base64.getUrlEncoder().encodeToString(next.getBytes(SwarmConstants.DEFAULT_CHARSET)))
+                .build();
+    }
+
+    /**
+     * 解码token，Base64的错误信息（如 Illegal base64 character 21）对客户端没有意义，统一替换
+     * @throws IllegalArgumentException token不是本索引生成的
+     */
+    private static String decodeToken(String continuationToken){
+        try{
+            return new String(Base64.getUrlDecoder().decode(continuationToken), SwarmConstants.DEFAULT_CHARSET);
+        }catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("list objects error: invalid continuation token");
+        }
+    }
+
+    /**
+     * 大于等于fromKey的第一个条目
+     */
+    private Map.Entry<String, Entry> ceiling(String fromKey){
+        return objects.ceilingEntry(fromKey);
+    }
+
+    /**
+     * 所有以prefix开头的字符串之后最小的字符串
+     * @return 不存在时返回null
+     */
+    private static String successor(String prefix){
+        for(int i = prefix.length() - 1; i >= 0; i--){
+            char c = prefix.charAt(i);
+            if(c != Character.MAX_VALUE){
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    public String getBucketId() {
+        return bucketId;
+    }
+
+    public long getObjectCount(){
+        return objectCount.get();
+    }
+
+    public long getTotalSize(){
+        return totalSize.get();
+    }
+
+    /**
+     * 索引条目，不可变
+     */
+    public static final class Entry {
+        private final String fileId;
+        private final long size;
+
+        Entry(String fileId, long size) {
+            this.fileId = fileId;
+            this.size = size;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
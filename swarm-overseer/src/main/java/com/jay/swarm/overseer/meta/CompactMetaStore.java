@@ -0,0 +1,374 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.MetaData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ *  紧凑的元数据存储
+ *  每个MetaData对象连同UUID字符串、文件名String、md5数组和存储节点ArrayList<String>，
+ *  每条元数据有几百字节的对象头和引用开销。这里把元数据拆成按列存放的基本类型数组：
+ *  文件ID存为两个long，md5放在连续的byte数组中，存储节点ID和桶ID映射为int编号，文件名存为UTF-8字节。
+ *
+ *  条目按添加顺序编号，列数组按块分配，扩容只分配新块，已有条目的编号不变。
+ *  哈希表使用开放寻址的int数组，保存条目编号+1，扩容时只重建哈希表。
+ *  快照按编号遍历条目，遍历期间哈希表扩容不会导致条目遗漏。
+ *
+ *  只接受UUID文件ID和16字节md5的元数据，其他元数据由MetaDataManager以对象形式保存。
+ *  get返回新创建的MetaData副本，修改元数据必须通过put和addStorage。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/07 09:40
+ */
+public class CompactMetaStore {
+    /**
+     * 每块条目数
+     */
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int MD5_LENGTH = 16;
+
+    private static final int[] NO_STORAGE = new int[0];
+
+    /**
+     * 列数组块
+     */
+    private Chunk[] chunks = new Chunk[16];
+    /**
+     * 条目数
+     */
+    private int count;
+    /**
+     * 开放寻址哈希表，值为条目编号+1，0表示空
+     */
+    private int[] table = new int[1024];
+
+    /**
+     * 存储节点ID、桶ID和编号的映射，存储节点和桶的数量很少
+     */
+    private final ConcurrentHashMap<String, Integer> internIds = new ConcurrentHashMap<>();
+    /**
+     * 编号到字符串，写时复制，读不加锁
+     */
+    private volatile String[] internNames = new String[0];
+
+    /**
+     * 不属于任何桶
+     */
+    private static final int NO_BUCKET = -1;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private static final class Chunk {
+        private final long[] msb = new long[CHUNK_SIZE];
+        private final long[] lsb = new long[CHUNK_SIZE];
+        private final long[] size = new long[CHUNK_SIZE];
+        private final long[] uploadTime = new long[CHUNK_SIZE];
+        private final int[] backupCount = new int[CHUNK_SIZE];
+        private final byte[] md5 = new byte[CHUNK_SIZE * MD5_LENGTH];
+        private final byte[][] filename = new byte[CHUNK_SIZE][];
+        private final int[][] storages = new int[CHUNK_SIZE][];
+        private final int[] bucket = new int[CHUNK_SIZE];
+    }
+
+    /**
+     * 元数据能否放入紧凑存储
+     * @param metaData 元数据
+     * @return boolean
+     */
+    public static boolean accepts(MetaData metaData){
+        return MappedMetaStore.indexKey(metaData.getKey()) != null
+                && metaData.getMd5() != null && metaData.getMd5().length == MD5_LENGTH;
+    }
+
+    /**
+     * 添加或覆盖元数据
+     * @param metaData 元数据，必须满足accepts
+     */
+    public void put(MetaData metaData){
+        put(metaData, true);
+    }
+
+    /**
+     * 元数据不存在时添加
+     * @param metaData 元数据，必须满足accepts
+     * @return 添加成功返回true
+     */
+    public boolean putIfAbsent(MetaData metaData){
+        return put(metaData, false);
+    }
+
+    private boolean put(MetaData metaData, boolean overwrite){
+        UUID uuid = UUID.fromString(metaData.getKey());
+        int[] storages = internStorages(metaData.getStorages());
+        int bucket = metaData.getBucket() == null ? NO_BUCKET : intern(metaData.getBucket());
+        byte[] filename = metaData.getFilename() == null ? null : metaData.getFilename().getBytes(SwarmConstants.DEFAULT_CHARSET);
+        lock.writeLock().lock();
+        try{
+            int slot = slot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            int id;
+            if(table[slot] != 0){
+                if(!overwrite){
+                    return false;
+                }
+                id = table[slot] - 1;
+            }else{
+                id = allocate();
+                table[slot] = id + 1;
+            }
+            Chunk chunk = chunks[id >>> CHUNK_SHIFT];
+            int i = id & CHUNK_MASK;
+            chunk.msb[i] = uuid.getMostSignificantBits();
+            chunk.lsb[i] = uuid.getLeastSignificantBits();
+            chunk.size[i] = metaData.getSize();
+            chunk.uploadTime[i] = metaData.getUploadTime();
+            chunk.backupCount[i] = metaData.getBackupCount();
+            System.arraycopy(metaData.getMd5(), 0, chunk.md5, i * MD5_LENGTH, MD5_LENGTH);
+            chunk.filename[i] = filename;
+            chunk.storages[i] = storages;
+            chunk.bucket[i] = bucket;
+            // 负载因子超过0.6时扩容，新条目的key写入后才能重新散列
+            if(count * 5 > table.length * 3){
+                rehash();
+            }
+            return true;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 获取元数据
+     * @param fileId 文件ID
+     * @return MetaData副本，不存在时返回null
+     */
+    public MetaData get(String fileId){
+        UUID uuid = MappedMetaStore.indexKey(fileId);
+        if(uuid == null){
+            return null;
+        }
+        lock.readLock().lock();
+        try{
+            int id = table[slot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits())] - 1;
+            return id < 0 ? null : materialize(id, fileId);
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 元数据中添加存储节点
+     * @param fileId 文件ID
+     * @param storageId 存储节点ID
+     * @return 元数据不存在时返回false
+     */
+    public boolean addStorage(String fileId, String storageId){
+        UUID uuid = MappedMetaStore.indexKey(fileId);
+        if(uuid == null){
+            return false;
+        }
+        int storage = intern(storageId);
+        lock.writeLock().lock();
+        try{
+            int id = table[slot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits())] - 1;
+            if(id < 0){
+                return false;
+            }
+            Chunk chunk = chunks[id >>> CHUNK_SHIFT];
+            int i = id & CHUNK_MASK;
+            int[] storages = chunk.storages[i];
+            for (int s : storages) {
+                if(s == storage){
+                    return true;
+                }
+            }
+            // 数组不可变，读者不会看到修改到一半的数组
+            int[] updated = Arrays.copyOf(storages, storages.length + 1);
+            updated[storages.length] = storage;
+            chunk.storages[i] = updated;
+            return true;
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 条目数
+     */
+    public int size(){
+        lock.readLock().lock();
+        try{
+            return count;
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 按条目编号遍历，每批只短暂持有读锁，遍历期间的修改可能可见也可能不可见
+     * @return Iterator
+     */
+    public Iterator<MetaData> iterator(){
+        return new Iterator<MetaData>() {
+            private static final int BATCH = 1024;
+            private final List<MetaData> batch = new ArrayList<>(BATCH);
+            private int next;
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                if(position < batch.size()){
+                    return true;
+                }
+                batch.clear();
+                position = 0;
+                lock.readLock().lock();
+                try{
+                    int end = Math.min(count, next + BATCH);
+                    for(; next < end; next++){
+                        batch.add(materialize(next, null));
+                    }
+                }finally {
+                    lock.readLock().unlock();
+                }
+                return !batch.isEmpty();
+            }
+
+            @Override
+            public MetaData next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return batch.get(position++);
+            }
+        };
+    }
+
+    /**
+     * 创建条目的MetaData副本，调用者持有锁
+     */
+    private MetaData materialize(int id, String key){
+        Chunk chunk = chunks[id >>> CHUNK_SHIFT];
+        int i = id & CHUNK_MASK;
+        List<String> storages = new ArrayList<>(chunk.storages[i].length);
+        for (int storage : chunk.storages[i]) {
+            storages.add(internName(storage));
+        }
+        return MetaData.builder()
+                .key(key != null ? key : new UUID(chunk.msb[i], chunk.lsb[i]).toString())
+                .filename(chunk.filename[i] == null ? null : new String(chunk.filename[i], SwarmConstants.DEFAULT_CHARSET))
+                .size(chunk.size[i])
+                .uploadTime(chunk.uploadTime[i])
+                .backupCount(chunk.backupCount[i])
+                .md5(Arrays.copyOfRange(chunk.md5, i * MD5_LENGTH, (i + 1) * MD5_LENGTH))
+                .storages(storages)
+                .bucket(chunk.bucket[i] == NO_BUCKET ? null : internName(chunk.bucket[i]))
+                .build();
+    }
+
+    /**
+     * 分配新条目编号，调用者持有写锁
+     */
+    private int allocate(){
+        int chunkIndex = count >>> CHUNK_SHIFT;
+        if(chunkIndex == chunks.length){
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if(chunks[chunkIndex] == null){
+            chunks[chunkIndex] = new Chunk();
+        }
+        return count++;
+    }
+
+    /**
+     * 查找key所在的槽，不存在时返回应该插入的空槽
+     */
+    private int slot(long msb, long lsb){
+        int mask = table.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while(table[slot] != 0){
+            int id = table[slot] - 1;
+            Chunk chunk = chunks[id >>> CHUNK_SHIFT];
+            int i = id & CHUNK_MASK;
+            if(chunk.msb[i] == msb && chunk.lsb[i] == lsb){
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * 哈希表扩容一倍，条目编号不变
+     */
+    private void rehash(){
+        int[] old = table;
+        table = new int[old.length * 2];
+        int mask = table.length - 1;
+        for (int value : old) {
+            if(value != 0){
+                int id = value - 1;
+                Chunk chunk = chunks[id >>> CHUNK_SHIFT];
+                int i = id & CHUNK_MASK;
+                int slot = hash(chunk.msb[i], chunk.lsb[i]) & mask;
+                while(table[slot] != 0){
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = value;
+            }
+        }
+    }
+
+    private static int hash(long msb, long lsb){
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private int[] internStorages(List<String> storages){
+        if(storages == null || storages.isEmpty()){
+            return NO_STORAGE;
+        }
+        int[] ids = new int[storages.size()];
+        for(int i = 0; i < ids.length; i++){
+            ids[i] = intern(storages.get(i));
+        }
+        return ids;
+    }
+
+    /**
+     * 字符串的编号，编号只增不减
+     */
+    private int intern(String value){
+        Integer id = internIds.get(value);
+        if(id != null){
+            return id;
+        }
+        synchronized (internIds){
+            return internIds.computeIfAbsent(value, k -> {
+                String[] names = Arrays.copyOf(internNames, internNames.length + 1);
+                names[names.length - 1] = k;
+                internNames = names;
+                return names.length - 1;
+            });
+        }
+    }
+
+    private String internName(int id){
+        return internNames[id];
+    }
+}
@@ -0,0 +1,193 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.entity.MetaData;
+import com.jay.swarm.common.serialize.Serializer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * <p>
+ *  内存映射的元数据快照
+ *  快照的数据区和索引区以只读方式映射到内存，启动时不反序列化元数据，
+ *  第一次访问某个文件ID时在索引中二分查找偏移量，再解码这一条记录。
+ *
+ *  索引：按UUID排序的定长条目 msb(8) + lsb(8) + 记录偏移量(8)
+ *  记录：length(4) + 序列化的MetaData
+ *
+ *  单个MappedByteBuffer最大2GB，文件按1GB分段映射，相邻映射段重叠一条记录的最大长度，
+ *  任意从某段内开始的记录和索引条目都完整地落在该段中。
+ *  映射的页由操作系统按需加载和换出，元数据总量不受堆大小限制。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/06 10:20
+ */
+public class MappedMetaStore {
+    /**
+     * 索引条目长度：msb + lsb + offset
+     */
+    public static final int INDEX_ENTRY_LENGTH = 24;
+
+    /**
+     * 单条记录的最大长度
+     */
+    public static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * 映射段大小
+     */
+    private static final long REGION_SIZE = 1L << 30;
+
+    /**
+     * 相邻映射段的重叠长度
+     */
+    private static final long REGION_OVERLAP = MAX_RECORD_LENGTH + 8;
+
+    private final MappedByteBuffer[] regions;
+    private final long indexOffset;
+    private final long count;
+    private final Serializer serializer;
+
+    private MappedMetaStore(MappedByteBuffer[] regions, long indexOffset, long count, Serializer serializer) {
+        this.regions = regions;
+        this.indexOffset = indexOffset;
+        this.count = count;
+        this.serializer = serializer;
+    }
+
+    /**
+     * 映射快照文件
+     * @param path 快照路径
+     * @param indexOffset 索引区偏移量
+     * @param count 索引条目数
+     * @param serializer 序列化器
+     * @return MappedMetaStore
+     * @throws IOException 文件长度与索引不符
+     */
+    public static MappedMetaStore open(String path, long indexOffset, long count, Serializer serializer) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(path, "r");
+            FileChannel channel = file.getChannel()){
+            long size = channel.size();
+            if(size != indexOffset + count * INDEX_ENTRY_LENGTH){
+                throw new IOException("snapshot damaged, index size mismatch");
+            }
+            int regionCount = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+            MappedByteBuffer[] regions = new MappedByteBuffer[regionCount];
+            for(int i = 0; i < regionCount; i++){
+                long start = i * REGION_SIZE;
+                long length = Math.min(REGION_SIZE + REGION_OVERLAP, size - start);
+                // 映射在channel关闭后仍然有效
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+            return new MappedMetaStore(regions, indexOffset, count, serializer);
+        }
+    }
+
+    /**
+     * 解码文件ID的元数据
+     * @param fileId 文件ID
+     * @return MetaData，不存在时返回null
+     */
+    public MetaData get(String fileId){
+        UUID uuid = indexKey(fileId);
+        if(uuid == null){
+            return null;
+        }
+        long index = search(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return index < 0 ? null : serializer.deserialize(recordAt(index), MetaData.class);
+    }
+
+    /**
+     * 二分查找索引
+     * @return 条目下标，不存在时返回-1
+     */
+    private long search(long msb, long lsb){
+        long low = 0, high = count - 1;
+        while(low <= high){
+            long mid = (low + high) >>> 1;
+            long position = indexOffset + mid * INDEX_ENTRY_LENGTH;
+            int cmp = compare(getLong(position), getLong(position + 8), msb, lsb);
+            if(cmp < 0){
+                low = mid + 1;
+            }else if(cmp > 0){
+                high = mid - 1;
+            }else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 索引条目数
+     */
+    public long count(){
+        return count;
+    }
+
+    /**
+     * 第index个索引条目的文件ID
+     * @param index 下标
+     * @return fileId
+     */
+    public UUID keyAt(long index){
+        long position = indexOffset + index * INDEX_ENTRY_LENGTH;
+        return new UUID(getLong(position), getLong(position + 8));
+    }
+
+    /**
+     * 第index个索引条目的序列化元数据，写快照时直接拷贝，不需要解码
+     * @param index 下标
+     * @return 序列化的MetaData
+     */
+    public byte[] recordAt(long index){
+        long offset = getLong(indexOffset + index * INDEX_ENTRY_LENGTH + 16);
+        ByteBuffer region = region(offset);
+        int local = (int) (offset % REGION_SIZE);
+        int length = region.getInt(local);
+        byte[] record = new byte[length];
+        // duplicate后修改position，不影响其他线程
+        ByteBuffer slice = region.duplicate();
+        slice.position(local + 4);
+        slice.get(record);
+        return record;
+    }
+
+    private long getLong(long position){
+        return region(position).getLong((int) (position % REGION_SIZE));
+    }
+
+    private ByteBuffer region(long position){
+        return regions[(int) (position / REGION_SIZE)];
+    }
+
+    /**
+     * 可以放入索引的文件ID：标准格式的UUID字符串
+     * @param fileId 文件ID
+     * @return UUID，不能索引时返回null
+     */
+    public static UUID indexKey(String fileId){
+        if(fileId == null || fileId.length() != 36){
+            return null;
+        }
+        try{
+            UUID uuid = UUID.fromString(fileId);
+            return uuid.toString().equals(fileId) ? uuid : null;
+        }catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+
+    /**
+     * 索引条目的顺序
+     */
+    public static int compare(long msb1, long lsb1, long msb2, long lsb2){
+        int cmp = Long.compare(msb1, msb2);
+        return cmp != 0 ? cmp : Long.compare(lsb1, lsb2);
+    }
+}
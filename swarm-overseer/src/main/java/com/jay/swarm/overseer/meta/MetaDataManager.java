@@ -2,12 +2,14 @@ package com.jay.swarm.overseer.meta;
 
 import com.jay.swarm.common.entity.Bucket;
 import com.jay.swarm.common.entity.MetaData;
+import com.jay.swarm.common.util.StringUtils;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -25,55 +27,161 @@ public class MetaDataManager {
      * key：桶ID，value：桶信息
      */
     private final ConcurrentHashMap<String, Bucket> bucketCache = new ConcurrentHashMap<>(256);
+    /**
+     * 桶的对象索引
+     * key：桶ID，value：桶中对象的有序索引
+     */
+    private final ConcurrentHashMap<String, BucketIndex> bucketIndexes = new ConcurrentHashMap<>(256);
     /**
      * 元数据缓存
+     * 文件ID为UUID、md5为16字节的元数据（正常上传的文件都是）保存在紧凑存储中
+     */
+    private final CompactMetaStore compactStore = new CompactMetaStore();
+    /**
+     * 其他元数据以对象形式缓存
      * key：文件ID，value：文件元数据。
-     * 元数据可以被持久化到磁盘文件，目前准备使用序列化的方式将该Map序列化写入持久化文件.
-     * 同样使用序列化后的Map向Guardian同步元数据
      */
     private final ConcurrentHashMap<String, MetaData> metaCache = new ConcurrentHashMap<>(256);
 
+    /**
+     * 元数据追加日志，快照加载和日志重放结束后才设置，重放过程中的修改不写日志
+     */
+    private volatile MetaJournal journal;
 
     /**
-     * 获取元数据缓存的快照副本
-     * @return List
+     * 内存映射的快照，不在缓存中的元数据在第一次访问时从这里解码
      */
-    protected List<MetaData> copyOfCache(){
-        // 对元数据缓存加锁，然后复制整个缓存
-        synchronized (this){
-            Collection<MetaData> values = metaCache.values();
-            return new ArrayList<>(values);
-        }
+    private volatile MappedMetaStore store;
+
+    protected void setJournal(MetaJournal journal){
+        this.journal = journal;
+    }
+
+    protected void setStore(MappedMetaStore store){
+        this.store = store;
     }
 
+    protected MappedMetaStore getStore(){
+        return store;
+    }
+
+
     /**
-     * 获取目标ID的元数据快照
-     * @param keys 文件IDs
-     * @return List
+     * 遍历缓存中的元数据，用于写快照，未解码的元数据由快照从MappedMetaStore拷贝
+     * 遍历不阻塞修改，遍历期间的修改可能可见也可能不可见
+     * @return Iterator
      */
-    protected List<MetaData> copyOfCache(List<String> keys){
-        synchronized (metaCache){
-            return metaCache.values().stream().filter(metaData -> {
-                return keys.contains(metaData.getKey());
-            }).collect(Collectors.toList());
-        }
+    protected Iterator<MetaData> metaDataIterator(){
+        Iterator<MetaData> objects = metaCache.values().iterator();
+        Iterator<MetaData> compact = compactStore.iterator();
+        return new Iterator<MetaData>() {
+            @Override
+            public boolean hasNext() {
+                return objects.hasNext() || compact.hasNext();
+            }
+
+            @Override
+            public MetaData next() {
+                return objects.hasNext() ? objects.next() : compact.next();
+            }
+        };
     }
 
     protected List<Bucket> listBuckets(){
         return new ArrayList<>(bucketCache.values());
     }
 
-    public void putMetaData(MetaData metaData){
-        metaCache.put(metaData.getKey(), metaData);
+    protected Collection<BucketIndex> bucketIndexes(){
+        return bucketIndexes.values();
+    }
+
+    /**
+     * 获取桶的对象索引
+     * @param bucketId 桶ID
+     * @return BucketIndex，桶中没有对象时返回null
+     */
+    public BucketIndex getBucketIndex(String bucketId){
+        return bucketIndexes.get(bucketId);
+    }
+
+    /**
+     * 对象加入桶的索引，桶不存在时创建
+     * @param bucketId 桶ID
+     * @param key 对象key
+     * @param fileId 文件ID
+     * @param size 文件大小
+     */
+    protected void indexObject(String bucketId, String key, String fileId, long size){
+        bucketIndexes.computeIfAbsent(bucketId, BucketIndex::new).put(key, fileId, size);
+        bucketCache.computeIfAbsent(bucketId, id -> Bucket.builder().id(id).name(id).createTime(System.currentTimeMillis()).build());
+    }
+
+    /**
+     * 添加元数据
+     * @param metaData 元数据
+     * @return 修改写入日志后完成
+     */
+    public CompletableFuture<Void> putMetaData(MetaData metaData){
+        if(CompactMetaStore.accepts(metaData)){
+            compactStore.put(metaData);
+        }else{
+            metaCache.put(metaData.getKey(), metaData);
+        }
+        if(!StringUtils.isEmpty(metaData.getBucket()) && metaData.getFilename() != null){
+            indexObject(metaData.getBucket(), metaData.getFilename(), metaData.getKey(), metaData.getSize());
+        }
+        MetaJournal journal = this.journal;
+        return journal == null ? CompletableFuture.completedFuture(null) : journal.logPut(metaData);
+    }
+
+    /**
+     * 元数据中添加存储节点
+     * @param metaData 元数据
+     * @param storageId 存储节点ID
+     * @return 修改写入日志后完成
+     */
+    public CompletableFuture<Void> addStorage(MetaData metaData, String storageId){
+        // 紧凑存储中的元数据在存储中修改，其他元数据修改缓存的对象
+        compactStore.addStorage(metaData.getKey(), storageId);
+        // 多个存储节点可能同时上报同一个文件的副本
+        synchronized (metaData){
+            if(metaData.getStorages() == null){
+                metaData.setStorages(new ArrayList<>());
+            }
+            if(!metaData.getStorages().contains(storageId)){
+                metaData.getStorages().add(storageId);
+            }
+        }
+        MetaJournal journal = this.journal;
+        return journal == null ? CompletableFuture.completedFuture(null) : journal.logAddStorage(metaData.getKey(), storageId);
     }
 
     /**
      * 获取元数据
+     * 缓存中没有时从映射的快照解码，解码结果放入缓存
+     * 紧凑存储中的元数据返回副本，修改副本不影响存储，需要通过addStorage修改
      * @param fileId 文件ID
      * @return MetaData
      */
     public MetaData getMetaData(String fileId){
-        return metaCache.get(fileId);
+        MetaData metaData = compactStore.get(fileId);
+        if(metaData == null){
+            metaData = metaCache.get(fileId);
+        }
+        MappedMetaStore store = this.store;
+        if(metaData == null && store != null && (metaData = store.get(fileId)) != null){
+            // 并发解码或putMetaData时以先放入缓存的为准
+            if(CompactMetaStore.accepts(metaData)){
+                compactStore.putIfAbsent(metaData);
+                metaData = compactStore.get(fileId);
+            }else{
+                MetaData existing = metaCache.putIfAbsent(fileId, metaData);
+                if(existing != null){
+                    metaData = existing;
+                }
+            }
+        }
+        return metaData;
     }
 
     /**
@@ -0,0 +1,393 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.entity.FileMetaStorage;
+import com.jay.swarm.common.entity.MetaData;
+import com.jay.swarm.common.serialize.Serializer;
+import com.jay.swarm.common.util.Crc32c;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *  元数据追加日志（类似Redis的AOF）
+ *  元数据的每次修改追加一条记录：length(4) + crc32c(4) + type(1) + payload
+ *  length是type和payload的长度，crc32c是type和payload的校验。
+ *
+ *  组提交：记录由调用线程放入队列，专门的写线程取出第一条记录后，
+ *  在延迟预算内继续收集后续记录，然后一次写入、一次fsync，
+ *  再完成这一批记录的future。并发修改越多，每次fsync分摊的记录越多。
+ *
+ *  日志分段：path.1、path.2 ...，写快照前切换到新的日志段，
+ *  快照完成后，切换前的日志段都已包含在快照中，可以删除。
+ *
+ *  启动时在快照之上按顺序重放所有日志段，重放是幂等的：PUT覆盖元数据，ADD_STORAGE只添加不存在的节点。
+ *  最后一个日志段末尾不完整或校验失败的记录（写入时进程退出）被截断。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/04 10:15
+ */
+@Slf4j
+public class MetaJournal {
+    /**
+     * 添加或覆盖元数据，payload：序列化的MetaData
+     */
+    public static final byte PUT_META = 1;
+    /**
+     * 元数据添加存储节点，payload：序列化的FileMetaStorage
+     */
+    public static final byte ADD_STORAGE = 2;
+    /**
+     * 切换日志段，只在队列中使用，不写入日志
+     */
+    private static final byte ROTATE = -1;
+
+    /**
+     * 记录头：length + crc
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /**
+     * 单条记录的最大长度，超过视为日志损坏
+     */
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private final String basePath;
+    private final Serializer serializer;
+    /**
+     * 组提交的延迟预算，纳秒
+     */
+    private final long commitDelay;
+    /**
+     * 一次提交的最大记录数
+     */
+    private final int maxBatch;
+
+    /**
+     * 当前日志段，只由写线程访问（start之前由重放访问）
+     */
+    private FileChannel channel;
+    private long segment;
+
+    private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running;
+
+    public MetaJournal(String path, Serializer serializer, long commitDelayMillis, int maxBatch) throws IOException {
+        this.basePath = path;
+        File parent = new File(path).getAbsoluteFile().getParentFile();
+        if(!parent.exists() && !parent.mkdirs()){
+            throw new IOException("unable to create journal directory " + parent.getPath());
+        }
+        this.serializer = serializer;
+        this.commitDelay = TimeUnit.MILLISECONDS.toNanos(commitDelayMillis);
+        this.maxBatch = maxBatch;
+        this.writer = new Thread(this::writeLoop, "meta-journal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * 按顺序重放所有日志段，然后打开最后一个日志段用于追加
+     * 必须在start之前调用
+     * @param metaDataManager 元数据管理器
+     * @return 重放的记录数
+     * @throws IOException IOException
+     */
+    public int replay(MetaDataManager metaDataManager) throws IOException {
+        TreeMap<Long, File> segments = listSegments();
+        int count = 0;
+        for (File file : segments.values()) {
+            long validLength = 0;
+            try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+                byte[] record;
+                while((record = readRecord(input)) != null){
+                    apply(metaDataManager, record);
+                    validLength += RECORD_HEADER_LENGTH + record.length;
+                    count++;
+                }
+            }
+            if(validLength < file.length()){
+                log.warn("journal segment {} has a broken tail at {}, {} bytes", file.getName(), validLength, file.length());
+                if(file.equals(segments.lastEntry().getValue())){
+                    try(FileChannel segmentChannel = new RandomAccessFile(file, "rw").getChannel()){
+                        segmentChannel.truncate(validLength);
+                    }
+                }
+            }
+        }
+        segment = segments.isEmpty() ? 1 : Math.max(1, segments.lastKey());
+        channel = openSegment(segment);
+        return count;
+    }
+
+    /**
+     * 读取一条记录
+     * @return type + payload，文件结束或记录损坏时返回null
+     */
+    private byte[] readRecord(DataInputStream input) throws IOException {
+        try{
+            int length = input.readInt();
+            int crc = input.readInt();
+            if(length <= 0 || length > MAX_RECORD_LENGTH){
+                return null;
+            }
+            byte[] record = new byte[length];
+            input.readFully(record);
+            return Crc32c.checksum(ByteBuffer.wrap(record)) == crc ? record : null;
+        }catch (EOFException e){
+            return null;
+        }
+    }
+
+    private void apply(MetaDataManager metaDataManager, byte[] record){
+        byte type = record[0];
+        byte[] bytes = Arrays.copyOfRange(record, 1, record.length);
+        switch (type){
+            case PUT_META:
+                metaDataManager.putMetaData(serializer.deserialize(bytes, MetaData.class));
+                break;
+            case ADD_STORAGE:
+                FileMetaStorage metaStorage = serializer.deserialize(bytes, FileMetaStorage.class);
+                MetaData metaData = metaDataManager.getMetaData(metaStorage.getFileId());
+                if(metaData != null){
+                    metaDataManager.addStorage(metaData, metaStorage.getStorageId());
+                }
+                break;
+            default:
+                log.warn("unknown journal record type {}", type);
+        }
+    }
+
+    /**
+     * 启动写线程
+     */
+    public void start(){
+        running = true;
+        writer.start();
+    }
+
+    /**
+     * 记录元数据的添加或覆盖
+     * 在调用线程序列化，之后对metaData的修改不影响这条记录
+     * @param metaData 元数据
+     * @return 记录写入磁盘后完成
+     */
+    public CompletableFuture<Void> logPut(MetaData metaData){
+        return append(PUT_META, serializer.serialize(metaData, MetaData.class));
+    }
+
+    /**
+     * 记录元数据添加存储节点
+     * @param fileId 文件ID
+     * @param storageId 存储节点ID
+     * @return 记录写入磁盘后完成
+     */
+    public CompletableFuture<Void> logAddStorage(String fileId, String storageId){
+        FileMetaStorage metaStorage = FileMetaStorage.builder().fileId(fileId).storageId(storageId).build();
+        return append(ADD_STORAGE, serializer.serialize(metaStorage, FileMetaStorage.class));
+    }
+
+    /**
+     * 切换到新的日志段
+     * 在此之前入队的记录都写入旧日志段，之后的记录写入新日志段
+     * @return 旧日志段的序号，切换完成后完成
+     */
+    public CompletableFuture<Long> rotate(){
+        Record record = new Record(ROTATE, null);
+        return append(record).thenApply(v -> record.segment);
+    }
+
+    /**
+     * 删除序号不大于segment的日志段
+     * @param segment 日志段序号
+     */
+    public void deleteSegments(long segment){
+        for (File file : listSegments().headMap(segment, true).values()) {
+            if(!file.delete()){
+                log.warn("unable to delete journal segment {}", file.getPath());
+            }
+        }
+    }
+
+    private CompletableFuture<Void> append(byte type, byte[] payload){
+        return append(new Record(type, payload));
+    }
+
+    private CompletableFuture<Void> append(Record record){
+        if(!running){
+            record.future.completeExceptionally(new IOException("journal closed"));
+            return record.future;
+        }
+        queue.offer(record);
+        return record.future;
+    }
+
+    /**
+     * 写线程循环
+     */
+    private void writeLoop(){
+        List<Record> batch = new ArrayList<>();
+        try{
+            while(running || !queue.isEmpty()){
+                Record first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                }
+                // 在延迟预算内收集更多记录，一起提交
+                long deadline = System.nanoTime() + commitDelay;
+                Record next = first;
+                while(next != null){
+                    if(next.type == ROTATE){
+                        // 先提交切换前的记录
+                        commit(batch);
+                        batch.clear();
+                        switchSegment(next);
+                    }else{
+                        batch.add(next);
+                    }
+                    if(batch.size() >= maxBatch){
+                        break;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                }
+                commit(batch);
+                batch.clear();
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 一次写入、一次fsync提交一批记录
+     * @param batch 记录
+     */
+    private void commit(List<Record> batch){
+        if(batch.isEmpty()){
+            return;
+        }
+        int size = 0;
+        for (Record record : batch) {
+            size += RECORD_HEADER_LENGTH + 1 + record.payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Record record : batch) {
+            int start = buffer.position();
+            buffer.putInt(1 + record.payload.length);
+            buffer.putInt(0);
+            buffer.put(record.type);
+            buffer.put(record.payload);
+            ByteBuffer body = ByteBuffer.wrap(buffer.array(), start + RECORD_HEADER_LENGTH, 1 + record.payload.length);
+            buffer.putInt(start + 4, Crc32c.checksum(body));
+        }
+        buffer.flip();
+        try{
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            channel.force(false);
+            for (Record record : batch) {
+                record.future.complete(null);
+            }
+        }catch (IOException e){
+            log.error("journal commit failed", e);
+            for (Record record : batch) {
+                record.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 关闭当前日志段，打开下一个日志段
+     * @param record 切换请求
+     */
+    private void switchSegment(Record record){
+        try{
+            FileChannel next = openSegment(segment + 1);
+            channel.close();
+            channel = next;
+            record.segment = segment;
+            segment++;
+            record.future.complete(null);
+        }catch (IOException e){
+            log.error("journal segment rotation failed", e);
+            record.future.completeExceptionally(e);
+        }
+    }
+
+    private FileChannel openSegment(long sequence) throws IOException {
+        FileChannel segmentChannel = new RandomAccessFile(basePath + "." + sequence, "rw").getChannel();
+        segmentChannel.position(segmentChannel.size());
+        return segmentChannel;
+    }
+
+    /**
+     * 列出所有日志段
+     * 不分段的旧日志文件（path本身）作为序号0的日志段
+     * @return key：序号，value：文件
+     */
+    private TreeMap<Long, File> listSegments(){
+        File base = new File(basePath).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = base.getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && name.substring(prefix.length()).matches("^[0-9]+$"));
+        if(files != null){
+            for (File file : files) {
+                segments.put(Long.parseLong(file.getName().substring(prefix.length())), file);
+            }
+        }
+        if(base.isFile()){
+            segments.put(0L, base);
+        }
+        return segments;
+    }
+
+    /**
+     * 停止写线程，等待队列中的记录提交后关闭
+     */
+    public void close(){
+        running = false;
+        try{
+            writer.join();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        try{
+            channel.close();
+        }catch (IOException e){
+            log.error("error when closing journal", e);
+        }
+    }
+
+    private static final class Record {
+        private final byte type;
+        private final byte[] payload;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        /**
+         * 切换请求完成后，旧日志段的序号
+         */
+        private volatile long segment;
+
+        Record(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,662 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.entity.Bucket;
+import com.jay.swarm.common.entity.MetaData;
+import com.jay.swarm.common.serialize.Serializer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * <p>
+ *  元数据快照
+ *  格式：header + 预加载区 + 数据区 + 索引区
+ *  header：magic(4) + version(4) + 数据区偏移量(8) + 索引区偏移量(8) + 索引条目数(8)
+ *  预加载区：若干条 type(1) + length(4) + 数据，包括所有桶、桶的对象索引和文件ID不是UUID的元数据，启动时全部加载
+ *  桶的对象索引分块保存：桶ID + 条目数 + 若干条 [对象key + 文件ID + 大小]，只有字符串和long，加载时不需要反序列化元数据
+ *  数据区：若干条 length(4) + 序列化的MetaData
+ *  索引区：按UUID排序的 msb(8) + lsb(8) + 记录偏移量(8)
+ *  索引条目数量可能超过内存，写入时分块排序，每块写入快照旁的临时文件，最后多路归并写入索引区。
+ *
+ *  启动时只加载预加载区，数据区和索引区由MappedMetaStore映射，元数据在第一次访问时解码，
+ *  启动时间与元数据总量无关。
+ *
+ *  快照按代保存在 快照路径.代数 中，每次写入新的一代：先写临时文件，fsync后原子重命名为新一代的文件，
+ *  映射新快照后再删除旧的几代，任何时刻磁盘上最新的一代都是完整的。
+ *  不覆盖仍被映射的旧快照，Windows下被映射的文件不能被替换；旧快照的映射在回收后才解除，
+ *  删除失败的旧快照在下一次快照后重试。启动时加载最新的一代，没有时加载快照路径本身（旧版本的快照）。
+ *  快照是模糊的：遍历元数据时不阻塞写入，遍历期间的修改可能被包含，也可能不被包含，
+ *  这些修改都在快照开始前切换出的新日志段中，启动时重放日志补齐。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/05 14:30
+ */
+@Slf4j
+public class MetaSnapshot {
+    private static final int MAGIC = 0x53574D53;
+    /**
+     * 顺序读取的旧版本，全部在启动时加载
+     */
+    private static final int VERSION_SEQUENTIAL = 2;
+    private static final int VERSION = 3;
+
+    private static final int HEADER_LENGTH = 32;
+
+    private static final byte END = 0;
+    private static final byte BUCKET = 1;
+    private static final byte META = 2;
+    private static final byte BUCKET_OBJECTS = 3;
+
+    /**
+     * 桶索引每块的条目数
+     */
+    private static final int BUCKET_BLOCK_SIZE = 4096;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * 索引排序时每个内存块的条目数，写满后排序写入临时文件
+     */
+    private static final int RUN_ENTRIES = 1 << 20;
+
+    private final Serializer serializer;
+    private final int runEntries;
+
+    public MetaSnapshot(Serializer serializer) {
+        this(serializer, RUN_ENTRIES);
+    }
+
+    MetaSnapshot(Serializer serializer, int runEntries) {
+        this.serializer = serializer;
+        this.runEntries = runEntries;
+    }
+
+    /**
+     * 写入新一代快照，映射新快照后删除旧的几代
+     * 缓存中的元数据重新序列化，只存在于旧快照中、从未被访问的元数据直接拷贝序列化数据
+     * 每条元数据只在序列化时短暂锁住自身
+     * @param path 快照路径
+     * @param metaDataManager 元数据管理器
+     * @return 写入的元数据个数
+     * @throws IOException IOException
+     */
+    public long write(String path, MetaDataManager metaDataManager) throws IOException {
+        long generation = latestGeneration(path) + 1;
+        File target = generationFile(path, generation);
+        File parent = target.getAbsoluteFile().getParentFile();
+        if(!parent.exists() && !parent.mkdirs()){
+            throw new IOException("unable to create snapshot directory " + parent.getPath());
+        }
+        File temp = new File(path + TEMP_SUFFIX);
+        long indexCount;
+        long eagerCount = 0;
+        CountingOutput counter;
+        try(IndexBuilder index = new IndexBuilder(path, runEntries);
+            FileOutputStream fileOutput = new FileOutputStream(temp);
+            DataOutputStream output = new DataOutputStream(counter = new CountingOutput(new BufferedOutputStream(fileOutput, BUFFER_SIZE)))){
+            // header在最后回填
+            output.write(new byte[HEADER_LENGTH]);
+            // 预加载区
+            for (Bucket bucket : metaDataManager.listBuckets()) {
+                output.writeByte(BUCKET);
+                writeRecord(output, serializer.serialize(bucket, Bucket.class));
+            }
+            for (BucketIndex bucketIndex : metaDataManager.bucketIndexes()) {
+                writeBucketIndex(output, bucketIndex);
+            }
+            Iterator<MetaData> iterator = metaDataManager.metaDataIterator();
+            while(iterator.hasNext()){
+                MetaData metaData = iterator.next();
+                if(MappedMetaStore.indexKey(metaData.getKey()) == null){
+                    output.writeByte(META);
+                    writeRecord(output, serialize(metaData));
+                    eagerCount++;
+                }
+            }
+            output.writeByte(END);
+            long dataOffset = counter.position;
+            // 数据区，缓存中的元数据
+            iterator = metaDataManager.metaDataIterator();
+            while(iterator.hasNext()){
+                MetaData metaData = iterator.next();
+                UUID uuid = MappedMetaStore.indexKey(metaData.getKey());
+                if(uuid != null){
+                    index.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), counter.position);
+                    writeRecord(output, serialize(metaData));
+                }
+            }
+            // 数据区，旧快照中不在缓存里的元数据
+            // 不能用缓存判断：遍历缓存之后才被解码的元数据在两次遍历中都会被跳过，所以用已写入的索引判断
+            // 旧快照的索引和已写入的索引都按UUID有序，两者同时顺序遍历
+            MappedMetaStore store = metaDataManager.getStore();
+            if(store != null){
+                index.spill();
+                try(IndexBuilder.Cursor cached = index.cursor()){
+                    boolean hasCached = cached.next();
+                    for(long i = 0; i < store.count(); i++){
+                        UUID uuid = store.keyAt(i);
+                        long msb = uuid.getMostSignificantBits(), lsb = uuid.getLeastSignificantBits();
+                        int cmp = -1;
+                        while(hasCached && (cmp = MappedMetaStore.compare(cached.msb, cached.lsb, msb, lsb)) < 0){
+                            hasCached = cached.next();
+                        }
+                        if(!hasCached || cmp != 0){
+                            index.add(msb, lsb, counter.position);
+                            writeRecord(output, store.recordAt(i));
+                        }
+                    }
+                }
+            }
+            // 索引区
+            long indexOffset = counter.position;
+            try(IndexBuilder.Cursor cursor = index.cursor()){
+                while(cursor.next()){
+                    output.writeLong(cursor.msb);
+                    output.writeLong(cursor.lsb);
+                    output.writeLong(cursor.offset);
+                }
+            }
+            output.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).putLong(dataOffset).putLong(indexOffset).putLong(index.count());
+            header.flip();
+            FileChannel channel = fileOutput.getChannel();
+            while(header.hasRemaining()){
+                channel.write(header, header.position());
+            }
+            fileOutput.getFD().sync();
+            indexCount = index.count();
+        }
+        // 新一代的文件名不存在，不替换任何文件
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        // 切换到新快照的映射后，旧快照不再被访问
+        remap(target.getPath(), metaDataManager);
+        deleteOlder(path, generation);
+        return eagerCount + indexCount;
+    }
+
+    /**
+     * 第generation代快照文件
+     */
+    private static File generationFile(String path, long generation){
+        return new File(path + "." + generation);
+    }
+
+    /**
+     * 磁盘上最新一代快照的代数
+     * @param path 快照路径
+     * @return 代数，没有时为-1
+     */
+    private static long latestGeneration(String path){
+        long latest = -1;
+        for (Long generation : generations(path)) {
+            latest = Math.max(latest, generation);
+        }
+        return latest;
+    }
+
+    /**
+     * 删除generation之前的快照和旧版本的快照文件
+     * 删除失败（如Windows下仍被映射）时保留，下一次快照后重试
+     */
+    private static void deleteOlder(String path, long generation){
+        List<File> olders = new ArrayList<>();
+        olders.add(new File(path));
+        for (Long older : generations(path)) {
+            if(older < generation){
+                olders.add(generationFile(path, older));
+            }
+        }
+        for (File older : olders) {
+            if(older.exists() && !older.delete()){
+                log.warn("unable to delete old snapshot {}, retry after next snapshot", older.getPath());
+            }
+        }
+    }
+
+    /**
+     * 快照目录中 快照文件名.数字 形式的文件的代数
+     */
+    private static List<Long> generations(String path){
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + ".";
+        String[] names = base.getParentFile().list();
+        List<Long> generations = new ArrayList<>();
+        if(names == null){
+            return generations;
+        }
+        for (String name : names) {
+            if(name.startsWith(prefix) && name.substring(prefix.length()).matches("^[0-9]{1,18}$")){
+                generations.add(Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * 按key顺序分块写入桶的对象索引
+     */
+    private void writeBucketIndex(DataOutputStream output, BucketIndex bucketIndex) throws IOException {
+        Iterator<Map.Entry<String, BucketIndex.Entry>> iterator = bucketIndex.view().entrySet().iterator();
+        while(iterator.hasNext()){
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            DataOutputStream blockOutput = new DataOutputStream(block);
+            int count = 0;
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entryOutput = new DataOutputStream(entries);
+            while(count < BUCKET_BLOCK_SIZE && iterator.hasNext()){
+                Map.Entry<String, BucketIndex.Entry> entry = iterator.next();
+                entryOutput.writeUTF(entry.getKey());
+                entryOutput.writeUTF(entry.getValue().getFileId());
+                entryOutput.writeLong(entry.getValue().getSize());
+                count++;
+            }
+            blockOutput.writeUTF(bucketIndex.getBucketId());
+            blockOutput.writeInt(count);
+            entries.writeTo(blockOutput);
+            output.writeByte(BUCKET_OBJECTS);
+            writeRecord(output, block.toByteArray());
+        }
+    }
+
+    private void readBucketIndex(byte[] data, MetaDataManager metaDataManager) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        String bucketId = input.readUTF();
+        int count = input.readInt();
+        for(int i = 0; i < count; i++){
+            metaDataManager.indexObject(bucketId, input.readUTF(), input.readUTF(), input.readLong());
+        }
+    }
+
+    private byte[] serialize(MetaData metaData){
+        // 与addStorage互斥，避免序列化时storages被修改
+        synchronized (metaData){
+            return serializer.serialize(metaData, MetaData.class);
+        }
+    }
+
+    private void writeRecord(DataOutputStream output, byte[] data) throws IOException {
+        if(data.length > MappedMetaStore.MAX_RECORD_LENGTH){
+            throw new IOException("meta-data record too large: " + data.length);
+        }
+        output.writeInt(data.length);
+        output.write(data);
+    }
+
+    /**
+     * 加载快照
+     * 预加载区的桶和元数据放入缓存，其余元数据映射后按需解码
+     * @param path 快照路径
+     * @param metaDataManager 元数据管理器
+     * @return 快照中的元数据个数
+     * @throws IOException 快照不完整或读取失败
+     */
+    public long load(String path, MetaDataManager metaDataManager) throws IOException {
+        long generation = latestGeneration(path);
+        File file = generation < 0 ? new File(path) : generationFile(path, generation);
+        if(!file.exists() || file.length() == 0){
+            return 0;
+        }
+        long indexOffset, indexCount;
+        long eagerCount = 0;
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))){
+            int version;
+            if(input.readInt() != MAGIC || (version = input.readInt()) != VERSION && version != VERSION_SEQUENTIAL){
+                log.warn("unknown snapshot format {}, ignored", path);
+                return 0;
+            }
+            if(version == VERSION_SEQUENTIAL){
+                return loadSequential(input, metaDataManager);
+            }
+            input.readLong();
+            indexOffset = input.readLong();
+            indexCount = input.readLong();
+            byte type;
+            while((type = input.readByte()) != END){
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                if(type == BUCKET){
+                    metaDataManager.saveBucket(serializer.deserialize(data, Bucket.class));
+                }else if(type == BUCKET_OBJECTS){
+                    readBucketIndex(data, metaDataManager);
+                }else if(type == META){
+                    metaDataManager.putMetaData(serializer.deserialize(data, MetaData.class));
+                    eagerCount++;
+                }
+            }
+        }
+        metaDataManager.setStore(MappedMetaStore.open(file.getPath(), indexOffset, indexCount, serializer));
+        return eagerCount + indexCount;
+    }
+
+    /**
+     * 映射新写入的快照，代替旧快照的映射
+     * 预加载区的内容已经在缓存中，只读取header
+     * @param path 快照文件路径
+     * @param metaDataManager 元数据管理器
+     * @throws IOException IOException
+     */
+    private void remap(String path, MetaDataManager metaDataManager) throws IOException {
+        try(DataInputStream input = new DataInputStream(new FileInputStream(path))){
+            if(input.readInt() != MAGIC || input.readInt() != VERSION){
+                throw new IOException("unknown snapshot format " + path);
+            }
+            input.readLong();
+            long indexOffset = input.readLong();
+            long indexCount = input.readLong();
+            metaDataManager.setStore(MappedMetaStore.open(path, indexOffset, indexCount, serializer));
+        }
+    }
+
+    /**
+     * 加载顺序格式的快照：若干条 type(1) + length(4) + 序列化数据 + 结束标记 + 元数据个数(8)
+     */
+    private long loadSequential(DataInputStream input, MetaDataManager metaDataManager) throws IOException {
+        long count = 0;
+        byte type;
+        while((type = input.readByte()) != END){
+            byte[] data = new byte[input.readInt()];
+            input.readFully(data);
+            if(type == BUCKET){
+                metaDataManager.saveBucket(serializer.deserialize(data, Bucket.class));
+            }else if(type == META){
+                metaDataManager.putMetaData(serializer.deserialize(data, MetaData.class));
+                count++;
+            }
+        }
+        if(input.readLong() != count){
+            throw new IOException("snapshot damaged, meta-data count mismatch");
+        }
+        return count;
+    }
+
+    /**
+     * 记录写入位置的输出流，DataOutputStream.size()是int，超过2GB后溢出
+     */
+    private static final class CountingOutput extends FilterOutputStream {
+        private long position;
+
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            position += len;
+        }
+    }
+
+    /**
+     * 索引构建
+     * 条目在内存块中连续保存三个long：msb、lsb、offset，避免为每条元数据创建对象。
+     * 内存块写满后原地排序，写入临时文件（快照路径 + .index.序号），清空后继续使用，
+     * 内存占用固定为一个块，与元数据总量无关。读取时对所有临时文件多路归并。
+     */
+    private static final class IndexBuilder implements Closeable {
+        private final String path;
+        private final int runEntries;
+        private long[] entries = new long[3 * 1024];
+        /**
+         * 内存块中的条目数
+         */
+        private int size;
+        /**
+         * 全部条目数
+         */
+        private long count;
+        private final List<File> runs = new ArrayList<>();
+
+        IndexBuilder(String path, int runEntries) {
+            this.path = path;
+            this.runEntries = runEntries;
+        }
+
+        void add(long msb, long lsb, long offset) throws IOException {
+            if(size == runEntries){
+                spill();
+            }
+            if((size + 1) * 3 > entries.length){
+                entries = Arrays.copyOf(entries, Math.min(entries.length * 2, runEntries * 3));
+            }
+            entries[size * 3] = msb;
+            entries[size * 3 + 1] = lsb;
+            entries[size * 3 + 2] = offset;
+            size++;
+            count++;
+        }
+
+        long count(){
+            return count;
+        }
+
+        /**
+         * 排序内存块，写入新的临时文件
+         */
+        void spill() throws IOException {
+            if(size == 0){
+                return;
+            }
+            sort();
+            File run = new File(path + ".index." + runs.size());
+            try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))){
+                for(int i = 0; i < size * 3; i++){
+                    output.writeLong(entries[i]);
+                }
+            }
+            runs.add(run);
+            size = 0;
+        }
+
+        /**
+         * 按UUID顺序遍历已添加的条目
+         * 没有临时文件时直接遍历排序后的内存块，否则先写出内存块再归并所有临时文件。
+         * 遍历期间添加的条目不会出现在本次遍历中
+         */
+        Cursor cursor() throws IOException {
+            List<Source> sources = new ArrayList<>();
+            if(runs.isEmpty()){
+                sort();
+                sources.add(new MemorySource(entries, size));
+            }else{
+                spill();
+                for (File run : runs) {
+                    sources.add(new RunSource(run));
+                }
+            }
+            return new Cursor(sources);
+        }
+
+        @Override
+        public void close() {
+            for (File run : runs) {
+                if(run.exists() && !run.delete()){
+                    log.warn("unable to delete snapshot index run {}", run.getPath());
+                }
+            }
+            runs.clear();
+        }
+
+        /**
+         * 原地堆排序
+         */
+        private void sort(){
+            for(int i = size / 2 - 1; i >= 0; i--){
+                siftDown(i, size);
+            }
+            for(int end = size - 1; end > 0; end--){
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        private void siftDown(int i, int end){
+            while(true){
+                int child = 2 * i + 1;
+                if(child >= end){
+                    return;
+                }
+                if(child + 1 < end && less(child, child + 1)){
+                    child++;
+                }
+                if(!less(i, child)){
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private boolean less(int a, int b){
+            return MappedMetaStore.compare(entries[a * 3], entries[a * 3 + 1], entries[b * 3], entries[b * 3 + 1]) < 0;
+        }
+
+        private void swap(int a, int b){
+            for(int k = 0; k < 3; k++){
+                long tmp = entries[a * 3 + k];
+                entries[a * 3 + k] = entries[b * 3 + k];
+                entries[b * 3 + k] = tmp;
+            }
+        }
+
+        /**
+         * 多路归并的游标，当前条目保存在msb、lsb、offset中
+         */
+        static final class Cursor implements Closeable {
+            private final List<Source> sources;
+            private final PriorityQueue<Source> heads = new PriorityQueue<>((a, b) -> MappedMetaStore.compare(a.msb, a.lsb, b.msb, b.lsb));
+            long msb;
+            long lsb;
+            long offset;
+
+            Cursor(List<Source> sources) throws IOException {
+                this.sources = sources;
+                for (Source source : sources) {
+                    if(source.next()){
+                        heads.add(source);
+                    }
+                }
+            }
+
+            boolean next() throws IOException {
+                Source head = heads.poll();
+                if(head == null){
+                    return false;
+                }
+                msb = head.msb;
+                lsb = head.lsb;
+                offset = head.offset;
+                if(head.next()){
+                    heads.add(head);
+                }
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (Source source : sources) {
+                    source.close();
+                }
+            }
+        }
+
+        private abstract static class Source implements Closeable {
+            long msb;
+            long lsb;
+            long offset;
+
+            abstract boolean next() throws IOException;
+
+            @Override
+            public void close() throws IOException {
+
+            }
+        }
+
+        private static final class MemorySource extends Source {
+            private final long[] entries;
+            private final int limit;
+            private int position;
+
+            MemorySource(long[] entries, int limit) {
+                this.entries = entries;
+                this.limit = limit;
+            }
+
+            @Override
+            boolean next() {
+                if(position == limit){
+                    return false;
+                }
+                msb = entries[position * 3];
+                lsb = entries[position * 3 + 1];
+                offset = entries[position * 3 + 2];
+                position++;
+                return true;
+            }
+        }
+
+        private static final class RunSource extends Source {
+            /**
+             * 同时打开的临时文件可能有上千个，每个文件的缓冲区不宜太大
+             */
+            private static final int RUN_BUFFER_SIZE = 64 * 1024;
+            private final DataInputStream input;
+            private long remaining;
+
+            RunSource(File run) throws IOException {
+                this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+                this.remaining = run.length() / MappedMetaStore.INDEX_ENTRY_LENGTH;
+            }
+
+            @Override
+            boolean next() throws IOException {
+                if(remaining == 0){
+                    return false;
+                }
+                msb = input.readLong();
+                lsb = input.readLong();
+                offset = input.readLong();
+                remaining--;
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        }
+    }
+}
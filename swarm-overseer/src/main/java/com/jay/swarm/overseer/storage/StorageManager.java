@@ -9,6 +9,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -34,23 +36,41 @@ public class StorageManager {
      */
     private final ConcurrentHashMap<String, Channel> storageChannels = new ConcurrentHashMap<>(256);
 
+    /**
+     * 节点注册或心跳后的监听器
+     */
+    private final List<Consumer<StorageInfo>> storageListeners = new CopyOnWriteArrayList<>();
+
     public StorageManager(Config config) {
         this.config = config;
     }
 
     public List<StorageInfo> listAliveNodes(){
         return storages.values().stream()
-                .filter(storage -> {
-                    return System.currentTimeMillis() - storage.getLastHeartBeatTime() < SwarmConstants.DEFAULT_HEARTBEAT_PERIOD + MAX_HEART_BEAT_DELAY;
-                }).collect(Collectors.toList());
+                .filter(this::isAlive).collect(Collectors.toList());
     }
 
     public List<StorageInfo> getAliveNodes(List<String> nodeIds){
         return storages.values().stream()
-                .filter(storage -> {
-                    return System.currentTimeMillis() - storage.getLastHeartBeatTime() < SwarmConstants.DEFAULT_HEARTBEAT_PERIOD + MAX_HEART_BEAT_DELAY &&
-                            nodeIds.contains(storage.getId());
-                }).collect(Collectors.toList());
+                .filter(storage -> isAlive(storage) && nodeIds.contains(storage.getId()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 节点是否存活，最近一次心跳没有超出心跳间隔
+     * @param storage 节点信息
+     * @return boolean
+     */
+    public boolean isAlive(StorageInfo storage){
+        return System.currentTimeMillis() - storage.getLastHeartBeatTime() < SwarmConstants.DEFAULT_HEARTBEAT_PERIOD + MAX_HEART_BEAT_DELAY;
+    }
+
+    /**
+     * 添加监听器，节点注册成功或心跳更新节点信息后调用
+     * @param listener 监听器，参数是更新后的节点信息
+     */
+    public void addStorageListener(Consumer<StorageInfo> listener){
+        storageListeners.add(listener);
     }
 
     public StorageInfo getStorageInfo(String storageId){
@@ -92,6 +112,7 @@ public class StorageManager {
                 return false;
             }
         }
+        storageListeners.forEach(listener -> listener.accept(storageInfo));
         return true;
     }
 
@@ -105,6 +126,10 @@ public class StorageManager {
         existingStorage.setLastHeartBeatTime(System.currentTimeMillis());
         existingStorage.setFreeStorage(storageInfo.getFreeStorage());
         existingStorage.setUsedStorage(storageInfo.getUsedStorage());
+        existingStorage.setActiveTransfers(storageInfo.getActiveTransfers());
+        existingStorage.setIoQueueDepth(storageInfo.getIoQueueDepth());
+        existingStorage.setThroughput(storageInfo.getThroughput());
+        storageListeners.forEach(listener -> listener.accept(existingStorage));
     }
 
     /**
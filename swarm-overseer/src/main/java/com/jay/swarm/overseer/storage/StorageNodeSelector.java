@@ -5,13 +5,24 @@ import com.jay.swarm.common.entity.StorageInfo;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * <p>
  *  存储节点选择器
  *  从存储节点中一定数量的存活的、空间足够的节点
+ *
+ *  每个节点有一个综合负载分数，分数越低越优先：
+ *  空间使用率、正在接收的文件数、磁盘IO排队任务数、接收速度，后三项用 x/(x+half) 归一化到[0,1)后加权求和。
+ *  节点按分数排序保存在有序集合中，节点注册或心跳时重新计算该节点的分数，
+ *  选择时从分数最低的节点依次取出，复杂度O(k log n)，不需要遍历所有节点。
+ *
+ *  两次心跳之间，被选中的节点记录分配给它的文件数和大小，计入正在接收的文件数和已用空间后重新排序，
+ *  连续的上传请求不会集中到同一个节点。下一次心跳上报的数据已经包含这些上传，记录清零。
  * </p>
  *
  * @author Jay
@@ -19,56 +30,146 @@ import java.util.stream.Collectors;
  */
 @Slf4j
 public class StorageNodeSelector {
+    /**
+     * 各项负载的权重
+     */
+    private static final double SPACE_WEIGHT = 0.4;
+    private static final double TRANSFER_WEIGHT = 0.3;
+    private static final double QUEUE_WEIGHT = 0.2;
+    private static final double THROUGHPUT_WEIGHT = 0.1;
+
+    /**
+     * 归一化参数，负载等于该值时得分0.5
+     */
+    private static final double TRANSFER_HALF = 4;
+    private static final double QUEUE_HALF = 64;
+    private static final double THROUGHPUT_HALF = 64 * 1024 * 1024;
+
     private final StorageManager storageManager;
 
+    /**
+     * 按分数排序的节点
+     */
+    private final TreeSet<Candidate> ranking = new TreeSet<>(Comparator.comparingDouble((Candidate c) -> c.score)
+            .thenComparing(c -> c.storage.getId()));
+    /**
+     * key：节点ID
+     */
+    private final Map<String, Candidate> candidates = new HashMap<>();
+
     public StorageNodeSelector(StorageManager storageManager) {
         this.storageManager = storageManager;
+        storageManager.listAliveNodes().forEach(this::update);
+        // 节点注册或心跳后重新排序
+        storageManager.addStorageListener(this::update);
     }
 
-    public List<StorageInfo> select(MetaData metaData){
-        int backupCount = metaData.getBackupCount();
-        // 获取存活存储节点
-        List<StorageInfo> aliveNodes = storageManager.listAliveNodes();
+    /**
+     * 更新节点的负载，重新计算分数
+     * @param storage 心跳上报的节点信息
+     */
+    public synchronized void update(StorageInfo storage){
+        Candidate old = candidates.remove(storage.getId());
+        if(old != null){
+            ranking.remove(old);
+        }
+        Candidate candidate = new Candidate(storage);
+        candidates.put(storage.getId(), candidate);
+        ranking.add(candidate);
+    }
+
+    /**
+     * 选择存储节点
+     * @param metaData 文件元数据
+     * @return backupCount个节点，负载最低的在前
+     */
+    public synchronized List<StorageInfo> select(MetaData metaData){
+        int count = Math.max(1, metaData.getBackupCount());
+        long size = metaData.getSize();
+        List<Candidate> selections = new ArrayList<>(count);
+        List<Candidate> skipped = new ArrayList<>();
+        while(selections.size() < count && !ranking.isEmpty()){
+            Candidate candidate = ranking.pollFirst();
+            // 死亡节点不再放回，重新注册后再加入
+            if(!storageManager.isAlive(candidate.storage)){
+                candidates.remove(candidate.storage.getId());
+                continue;
+            }
+            if(candidate.availableSpace() < size){
+                skipped.add(candidate);
+            }else{
+                selections.add(candidate);
+            }
+        }
+        ranking.addAll(skipped);
         // 存储节点数量不足
-        if(backupCount > aliveNodes.size()){
+        if(selections.size() < count){
+            ranking.addAll(selections);
             throw new RuntimeException("no enough storage nodes for upload and backup");
         }
-        // 计算存储节点预期的平均用量百分比
-        double averagePercentage = 0.0;
-        for (StorageInfo node : aliveNodes) {
-            averagePercentage += (double)(metaData.getSize() + node.getUsedStorage()) / (node.getUsedStorage() + node.getFreeStorage());
+        List<StorageInfo> result = new ArrayList<>(count);
+        for (Candidate candidate : selections) {
+            candidate.place(size);
+            ranking.add(candidate);
+            result.add(candidate.storage);
+        }
+        if(log.isDebugEnabled()){
+            log.debug("storage nodes selected for {}: {}", metaData.getKey(), result);
         }
-        averagePercentage /= aliveNodes.size();
-        double average = averagePercentage;
+        return result;
+    }
 
-        // 第一次筛选，筛选预期容量百分比小于平均容量百分比的节点
-        List<StorageInfo> firstSelections = aliveNodes.stream().filter(storage -> {
-            double percentage = (double) (metaData.getSize() + storage.getUsedStorage()) / (storage.getUsedStorage() + storage.getFreeStorage());
-            return percentage < average;
-        }).collect(Collectors.toList());
+    private static double saturate(double value, double half){
+        return value <= 0 ? 0 : value / (value + half);
+    }
 
-        List<StorageInfo> finalSelections = new ArrayList<>(backupCount);
-        finalSelections.addAll(firstSelections);
-        // 第二次筛选，筛选出第一次外的容量足够的节点
-        if(firstSelections.size() < backupCount){
-            for(StorageInfo storageInfo : aliveNodes){
-                if(backupCount == 0) {
-                    break;
-                }
-                else if(!firstSelections.contains(storageInfo) ){
-                    finalSelections.add(storageInfo);
-                    backupCount--;
-                }
-            }
+    /**
+     * 排序中的节点，负载数据在心跳时固定，不受其他地方修改StorageInfo的影响
+     */
+    private static final class Candidate {
+        private final StorageInfo storage;
+        private final long usedStorage;
+        private final long freeStorage;
+        private final int activeTransfers;
+        private final int ioQueueDepth;
+        private final long throughput;
+        /**
+         * 上次心跳后分配给该节点的文件数和大小
+         */
+        private int placements;
+        private long placedBytes;
+        private double score;
+
+        Candidate(StorageInfo storage) {
+            this.storage = storage;
+            this.usedStorage = storage.getUsedStorage();
+            this.freeStorage = storage.getFreeStorage();
+            this.activeTransfers = storage.getActiveTransfers();
+            this.ioQueueDepth = storage.getIoQueueDepth();
+            this.throughput = storage.getThroughput();
+            this.score = score();
         }
-        else{
-            finalSelections = firstSelections;
+
+        long availableSpace(){
+            return freeStorage - placedBytes;
         }
 
-        if(finalSelections.size() < backupCount){
-            throw new RuntimeException("no enough storage nodes for upload and backup");
+        /**
+         * 分配一个文件，调用前需要从排序中移除
+         */
+        void place(long size){
+            placements++;
+            placedBytes += size;
+            score = score();
         }
 
-        return finalSelections;
+        private double score(){
+            long capacity = usedStorage + freeStorage;
+            double space = capacity <= 0 ? 1 : Math.min(1, (double) (usedStorage + placedBytes) / capacity);
+            return SPACE_WEIGHT * space
+                    + TRANSFER_WEIGHT * saturate(activeTransfers + placements, TRANSFER_HALF)
+                    + QUEUE_WEIGHT * saturate(ioQueueDepth, QUEUE_HALF)
+                    + THROUGHPUT_WEIGHT * saturate(throughput, THROUGHPUT_HALF);
+        }
     }
 }
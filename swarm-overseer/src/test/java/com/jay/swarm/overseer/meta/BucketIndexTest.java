@@ -0,0 +1,111 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.entity.ListObjectsResponse;
+import com.jay.swarm.common.entity.ObjectSummary;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>
+ *  BucketIndex分页测试
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 16:40
+ */
+public class BucketIndexTest {
+
+    @Test
+    public void emptyBucket() {
+        BucketIndex index = new BucketIndex("bucket");
+        ListObjectsResponse response = index.list(null, "/", 10, null);
+        assertEquals("bucket", response.getBucket());
+        assertTrue(response.getObjects().isEmpty());
+        assertTrue(response.getCommonPrefixes().isEmpty());
+        assertFalse(response.isTruncated());
+        assertNull(response.getNextContinuationToken());
+    }
+
+    @Test
+    public void paginatesAcrossCommonPrefixes() {
+        BucketIndex index = index("a.txt", "dir1/x", "dir1/y", "dir1/z/w", "dir2/x", "m.txt", "dir3/x", "z.txt");
+
+        List<String> keys = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do{
+            ListObjectsResponse response = index.list(null, "/", 2, token);
+            assertTrue(response.getObjects().size() + response.getCommonPrefixes().size() <= 2);
+            response.getObjects().forEach(summary -> keys.add(summary.getKey()));
+            prefixes.addAll(response.getCommonPrefixes());
+            token = response.getNextContinuationToken();
+            assertEquals(token != null, response.isTruncated());
+            pages++;
+        }while(token != null);
+
+        assertEquals(Arrays.asList("a.txt", "m.txt", "z.txt"), keys);
+        // 每个公共前缀只出现一次，前缀下的key不单独列出
+        assertEquals(Arrays.asList("dir1/", "dir2/", "dir3/"), prefixes);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    public void pageBoundaryOnCommonPrefix() {
+        BucketIndex index = index("a.txt", "b.txt", "dir/x", "dir/y", "e.txt");
+
+        ListObjectsResponse first = index.list(null, "/", 2, null);
+        assertEquals(Arrays.asList("a.txt", "b.txt"), keys(first));
+        assertTrue(first.getCommonPrefixes().isEmpty());
+        assertTrue(first.isTruncated());
+
+        // 下一页从公共前缀开始，前缀完整地出现在第二页
+        ListObjectsResponse second = index.list(null, "/", 2, first.getNextContinuationToken());
+        assertEquals(Collections.singletonList("dir/"), second.getCommonPrefixes());
+        assertEquals(Collections.singletonList("e.txt"), keys(second));
+        assertFalse(second.isTruncated());
+    }
+
+    @Test
+    public void prefixAndDelimiter() {
+        BucketIndex index = index("photos/2021/a.jpg", "photos/2022/b.jpg", "photos/c.jpg", "videos/d.mp4");
+
+        ListObjectsResponse response = index.list("photos/", "/", 10, null);
+        assertEquals(Arrays.asList("photos/2021/", "photos/2022/"), response.getCommonPrefixes());
+        assertEquals(Collections.singletonList("photos/c.jpg"), keys(response));
+        assertFalse(response.isTruncated());
+    }
+
+    @Test
+    public void malformedToken() {
+        BucketIndex index = index("a.txt");
+        try{
+            index.list(null, null, 10, "not base64!");
+            fail("malformed token accepted");
+        }catch (IllegalArgumentException e){
+            assertEquals("list objects error: invalid continuation token", e.getMessage());
+        }
+    }
+
+    private static BucketIndex index(String... keys){
+        BucketIndex index = new BucketIndex("bucket");
+        for (String key : keys) {
+            index.put(key, "file-" + key, key.length());
+        }
+        return index;
+    }
+
+    private static List<String> keys(ListObjectsResponse response){
+        List<String> keys = new ArrayList<>();
+        for (ObjectSummary summary : response.getObjects()) {
+            keys.add(summary.getKey());
+        }
+        return keys;
+    }
+}
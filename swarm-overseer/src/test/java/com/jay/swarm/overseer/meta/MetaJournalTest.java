@@ -0,0 +1,180 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.entity.MetaData;
+import com.jay.swarm.common.serialize.ProtoStuffSerializer;
+import com.jay.swarm.common.serialize.Serializer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>
+ *  MetaJournal重放测试
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 14:20
+ */
+public class MetaJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Serializer serializer = new ProtoStuffSerializer();
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = new File(folder.getRoot(), "meta-data.journal").getPath();
+    }
+
+    @Test
+    public void replayAppliesSegmentsInOrder() throws Exception {
+        String fileId = UUID.randomUUID().toString();
+        MetaJournal journal = open(new MetaDataManager());
+        journal.logPut(metaData(fileId, 100)).get();
+        // 第二个日志段覆盖第一个日志段中的元数据
+        journal.rotate().get();
+        journal.logPut(metaData(fileId, 200)).get();
+        journal.logAddStorage(fileId, "storage-1").get();
+        journal.close();
+
+        assertTrue(new File(path + ".1").isFile());
+        assertTrue(new File(path + ".2").isFile());
+
+        MetaDataManager manager = new MetaDataManager();
+        MetaJournal replayed = new MetaJournal(path, serializer, 1, 16);
+        assertEquals(3, replayed.replay(manager));
+        replayed.start();
+        replayed.close();
+
+        MetaData metaData = manager.getMetaData(fileId);
+        assertEquals(200, metaData.getSize());
+        assertEquals(Collections.singletonList("storage-1"), metaData.getStorages());
+    }
+
+    @Test
+    public void replayTruncatesTornTail() throws Exception {
+        String fileId = UUID.randomUUID().toString();
+        MetaJournal journal = open(new MetaDataManager());
+        journal.logPut(metaData(fileId, 100)).get();
+        journal.logAddStorage(fileId, "storage-1").get();
+        journal.close();
+        File segment = new File(path + ".1");
+        long validLength = segment.length();
+
+        // 写入时进程退出：记录头声明100字节，实际只写了10字节
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")){
+            file.seek(file.length());
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write(new byte[10]);
+        }
+
+        MetaDataManager manager = new MetaDataManager();
+        MetaJournal replayed = new MetaJournal(path, serializer, 1, 16);
+        assertEquals(2, replayed.replay(manager));
+        assertEquals(validLength, segment.length());
+
+        // 截断后继续追加，新记录紧接着有效记录
+        replayed.start();
+        replayed.logAddStorage(fileId, "storage-2").get();
+        replayed.close();
+
+        MetaDataManager again = new MetaDataManager();
+        MetaJournal reopened = new MetaJournal(path, serializer, 1, 16);
+        assertEquals(3, reopened.replay(again));
+        reopened.start();
+        reopened.close();
+        assertEquals(Arrays.asList("storage-1", "storage-2"), again.getMetaData(fileId).getStorages());
+    }
+
+    @Test
+    public void replayTruncatesCorruptRecord() throws Exception {
+        String first = UUID.randomUUID().toString();
+        String second = UUID.randomUUID().toString();
+        MetaJournal journal = open(new MetaDataManager());
+        journal.logPut(metaData(first, 100)).get();
+        journal.close();
+        File segment = new File(path + ".1");
+        long validLength = segment.length();
+
+        journal = open(new MetaDataManager());
+        journal.logPut(metaData(second, 200)).get();
+        journal.close();
+        assertTrue(segment.length() > validLength);
+
+        // 破坏最后一条记录的payload，校验失败
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")){
+            file.seek(file.length() - 1);
+            byte last = file.readByte();
+            file.seek(file.length() - 1);
+            file.writeByte(last ^ 0xFF);
+        }
+
+        MetaDataManager manager = new MetaDataManager();
+        MetaJournal replayed = new MetaJournal(path, serializer, 1, 16);
+        assertEquals(1, replayed.replay(manager));
+        replayed.start();
+        replayed.close();
+        assertEquals(validLength, segment.length());
+        assertNotNull(manager.getMetaData(first));
+        assertNull(manager.getMetaData(second));
+    }
+
+    @Test
+    public void replayIsIdempotentOnTopOfSnapshot() throws Exception {
+        String fileId = UUID.randomUUID().toString();
+        MetaJournal journal = open(new MetaDataManager());
+        journal.logPut(metaData(fileId, 100)).get();
+        journal.logAddStorage(fileId, "storage-1").get();
+        journal.logAddStorage(fileId, "storage-2").get();
+        journal.close();
+
+        // 快照中已经包含日志中的部分修改
+        MetaDataManager manager = new MetaDataManager();
+        MetaData snapshot = metaData(fileId, 100);
+        manager.putMetaData(snapshot);
+        manager.addStorage(manager.getMetaData(fileId), "storage-1");
+
+        MetaJournal replayed = new MetaJournal(path, serializer, 1, 16);
+        assertEquals(3, replayed.replay(manager));
+        replayed.close();
+        // 同一日志重放两次，结果不变
+        MetaJournal twice = new MetaJournal(path, serializer, 1, 16);
+        assertEquals(3, twice.replay(manager));
+        twice.close();
+
+        MetaData metaData = manager.getMetaData(fileId);
+        assertEquals(100, metaData.getSize());
+        assertEquals(Arrays.asList("storage-1", "storage-2"), metaData.getStorages());
+    }
+
+    private MetaJournal open(MetaDataManager manager) throws IOException {
+        MetaJournal journal = new MetaJournal(path, serializer, 1, 16);
+        journal.replay(manager);
+        journal.start();
+        return journal;
+    }
+
+    private static MetaData metaData(String fileId, long size){
+        byte[] md5 = new byte[16];
+        Arrays.fill(md5, (byte) size);
+        return MetaData.builder().key(fileId).filename("file-" + size)
+                .size(size).backupCount(1).md5(md5)
+                .uploadTime(System.currentTimeMillis())
+                .storages(new ArrayList<>())
+                .build();
+    }
+}
@@ -0,0 +1,151 @@
+package com.jay.swarm.overseer.meta;
+
+import com.jay.swarm.common.entity.MetaData;
+import com.jay.swarm.common.serialize.ProtoStuffSerializer;
+import com.jay.swarm.common.serialize.Serializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>
+ *  MetaSnapshot索引分块排序测试
+ *  每块只有8个条目，索引由多个临时文件归并得到
+ *  快照按代写入，旧快照在映射切换后删除
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 16:10
+ */
+public class MetaSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Serializer serializer = new ProtoStuffSerializer();
+    private final MetaSnapshot snapshot = new MetaSnapshot(serializer, 8);
+
+    @Test
+    public void indexMergedFromRuns() throws Exception {
+        String path = new File(folder.getRoot(), "meta-data.snapshot").getPath();
+        MetaDataManager manager = new MetaDataManager();
+        List<String> fileIds = putRandom(manager, 50);
+
+        assertEquals(50, snapshot.write(path, manager));
+        assertNoRuns();
+
+        MetaDataManager loaded = new MetaDataManager();
+        assertEquals(50, snapshot.load(path, loaded));
+        for (String fileId : fileIds) {
+            assertNotNull(fileId, loaded.getMetaData(fileId));
+        }
+        // 映射的索引有序，不存在的文件ID查不到
+        assertNull(loaded.getMetaData(UUID.randomUUID().toString()));
+    }
+
+    @Test
+    public void rewriteKeepsUncachedRecordsOnce() throws Exception {
+        String first = new File(folder.getRoot(), "first.snapshot").getPath();
+        String second = new File(folder.getRoot(), "second.snapshot").getPath();
+        MetaDataManager manager = new MetaDataManager();
+        List<String> fileIds = putRandom(manager, 50);
+        snapshot.write(first, manager);
+
+        MetaDataManager loaded = new MetaDataManager();
+        snapshot.load(first, loaded);
+        // 一部分元数据被解码进缓存，其余只在旧快照中
+        for(int i = 0; i < 20; i++){
+            loaded.getMetaData(fileIds.get(i));
+        }
+        List<String> added = putRandom(loaded, 30);
+
+        // 缓存中的和旧快照中的元数据各写一次
+        assertEquals(80, snapshot.write(second, loaded));
+        assertNoRuns();
+
+        MetaDataManager reloaded = new MetaDataManager();
+        assertEquals(80, snapshot.load(second, reloaded));
+        for (String fileId : fileIds) {
+            assertEquals(1000, reloaded.getMetaData(fileId).getSize());
+        }
+        for (String fileId : added) {
+            assertEquals(1000, reloaded.getMetaData(fileId).getSize());
+        }
+    }
+
+    @Test
+    public void newGenerationReplacesMappedSnapshot() throws Exception {
+        String path = new File(folder.getRoot(), "meta-data.dump").getPath();
+        MetaDataManager manager = new MetaDataManager();
+        List<String> fileIds = putRandom(manager, 10);
+        snapshot.write(path, manager);
+        assertArrayEquals(new String[]{"meta-data.dump.0"}, snapshots());
+
+        // 旧快照仍被映射时写入下一代，映射切换到新快照后删除旧快照
+        List<String> added = putRandom(manager, 5);
+        assertEquals(15, snapshot.write(path, manager));
+        assertArrayEquals(new String[]{"meta-data.dump.1"}, snapshots());
+
+        MetaDataManager loaded = new MetaDataManager();
+        assertEquals(15, snapshot.load(path, loaded));
+        for (String fileId : fileIds) {
+            assertNotNull(fileId, loaded.getMetaData(fileId));
+        }
+        for (String fileId : added) {
+            assertNotNull(fileId, loaded.getMetaData(fileId));
+        }
+    }
+
+    @Test
+    public void legacySnapshotLoadedAndReplaced() throws Exception {
+        String path = new File(folder.getRoot(), "meta-data.dump").getPath();
+        MetaDataManager manager = new MetaDataManager();
+        List<String> fileIds = putRandom(manager, 10);
+        snapshot.write(path, manager);
+        // 旧版本的快照直接保存在快照路径中
+        assertTrue(new File(path + ".0").renameTo(new File(path)));
+
+        MetaDataManager loaded = new MetaDataManager();
+        assertEquals(10, snapshot.load(path, loaded));
+        assertNotNull(loaded.getMetaData(fileIds.get(0)));
+        snapshot.write(path, loaded);
+        assertArrayEquals(new String[]{"meta-data.dump.0"}, snapshots());
+    }
+
+    private String[] snapshots(){
+        String[] names = folder.getRoot().list((dir, name) -> name.startsWith("meta-data.dump"));
+        assertNotNull(names);
+        Arrays.sort(names);
+        return names;
+    }
+
+    private void assertNoRuns(){
+        String[] names = folder.getRoot().list((dir, name) -> name.contains(".index."));
+        assertNotNull(names);
+        assertEquals(Arrays.toString(names), 0, names.length);
+    }
+
+    private static List<String> putRandom(MetaDataManager manager, int count){
+        List<String> fileIds = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            String fileId = UUID.randomUUID().toString();
+            byte[] md5 = new byte[16];
+            Arrays.fill(md5, (byte) i);
+            manager.putMetaData(MetaData.builder().key(fileId).filename("file-" + i)
+                    .size(1000).backupCount(1).md5(md5)
+                    .uploadTime(System.currentTimeMillis())
+                    .storages(new ArrayList<>())
+                    .build());
+            fileIds.add(fileId);
+        }
+        return fileIds;
+    }
+}
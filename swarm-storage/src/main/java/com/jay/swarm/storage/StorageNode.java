@@ -15,12 +15,18 @@ import com.jay.swarm.common.serialize.ProtoStuffSerializer;
 import com.jay.swarm.common.serialize.Serializer;
 import com.jay.swarm.common.util.ScheduleUtil;
 import com.jay.swarm.common.util.StringUtils;
+import com.jay.swarm.storage.handler.DiskBackpressureHandler;
 import com.jay.swarm.storage.handler.FileDownloadHandler;
 import com.jay.swarm.storage.handler.StorageNodeHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.RejectedExecutionHandlers;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
-import java.net.ConnectException;
 import java.net.Inet4Address;
 import java.net.UnknownHostException;
 import java.util.UUID;
@@ -50,9 +56,32 @@ public class StorageNode {
     private final String storagePath;
 
     private final FileLocator locator;
+    /**
+     * 传输处理器
+     */
+    private final FileTransferHandler transferHandler;
+    /**
+     * 磁盘IO执行器组
+     */
+    private final EventExecutorGroup diskExecutorGroup;
+    /**
+     * 磁盘IO执行器每个线程的排队任务数上限，超过后暂停读取
+     */
+    private final int ioPendingLimit;
+    /**
+     * 传输没有收到数据的时间超过该值后释放文件拼接器，毫秒，0表示不释放
+     */
+    private final long transferIdleTimeout;
+    /**
+     * 上次上报时的接收字节数和时间，用于计算接收速度
+     */
+    private long lastReceivedBytes;
+    private long lastReportTime = System.currentTimeMillis();
 
     private static final String DEFAULT_NODE_ID_PATH = "node_id.info";
     private static final String DEFAULT_STORAGE_PATH = "D:/storage";
+    private static final int DEFAULT_IO_PENDING_TASKS = 1024;
+    private static final long DEFAULT_TRANSFER_IDLE_TIMEOUT = 5 * 60 * 1000;
 
     public StorageNode(Config config) throws UnknownHostException {
         this.config = config;
@@ -61,14 +90,24 @@ public class StorageNode {
         this.storagePath = StringUtils.isEmpty(storagePath) ? DEFAULT_STORAGE_PATH : storagePath;
         // 生成节点ID
         this.nodeId = UUID.randomUUID().toString();
-        this.overseerClient = new BaseClient();
-        server = new BaseServer();
+        this.overseerClient = new BaseClient(config);
+        server = new BaseServer(config);
         // 默认序列化工具
         this.serializer = new ProtoStuffSerializer();
         // 文件定位器
         locator = new Md5FileLocator(this.storagePath);
         // 文件信息缓存
         fileInfoCache = new FileInfoCache(locator);
+        // 传输处理器，心跳上报正在接收的文件数和接收速度
+        transferHandler = new FileTransferHandler(fileInfoCache);
+        // 文件读写、md5校验等阻塞操作在磁盘IO执行器组中执行，EventLoop只负责编解码和分发
+        String pendingConfig = config.get("storage.io.pending");
+        ioPendingLimit = StringUtils.isEmpty(pendingConfig) || !pendingConfig.matches("^[1-9][0-9]*$") ?
+                DEFAULT_IO_PENDING_TASKS : Integer.parseInt(pendingConfig);
+        diskExecutorGroup = createDiskExecutorGroup();
+        String idleConfig = config.get("storage.transfer.idle.timeout");
+        transferIdleTimeout = StringUtils.isEmpty(idleConfig) || !idleConfig.matches("^[0-9]+$") ?
+                DEFAULT_TRANSFER_IDLE_TIMEOUT : Long.parseLong(idleConfig);
 
         // 节点地址
         host = Inet4Address.getLocalHost().getHostAddress();
@@ -100,12 +139,15 @@ public class StorageNode {
             registerNode(host, Integer.parseInt(port));
             // 开启心跳
             startHeartBeat(host, Integer.parseInt(port));
+            // 释放空闲的传输
+            startIdleTransferCheck();
             // 服务器添加存储节点处理器，开启服务器
-            // 传输处理器
-            FileTransferHandler transferHandler = new FileTransferHandler(fileInfoCache);
             // 下载处理器
             FileDownloadHandler downloadHandler = new FileDownloadHandler(fileInfoCache, serializer);
-            server.addHandler(new StorageNodeHandler(nodeId, transferHandler, downloadHandler, locator, serializer, overseerClient, fileInfoCache, config));
+            StorageNodeHandler storageNodeHandler = new StorageNodeHandler(nodeId, transferHandler, downloadHandler, locator, serializer, overseerClient, fileInfoCache, config);
+            // 磁盘IO排队过多时暂停读取
+            server.addHandler(new DiskBackpressureHandler(storageNodeHandler, ioPendingLimit));
+            server.addHandler(diskExecutorGroup, storageNodeHandler);
             server.bind(Integer.parseInt(serverPort));
             log.info("Storage Node server started, listening: {}", serverPort);
             log.info("Storage Node init finished, time used: {}ms", (System.currentTimeMillis() - initStart));
@@ -115,6 +157,23 @@ public class StorageNode {
         }
     }
 
+    /**
+     * 创建磁盘IO执行器组
+     * 任务队列不限长度，排队任务数由DiskBackpressureHandler控制：
+     * 超过storage.io.pending后关闭该连接的autoRead，由TCP流量控制让发送方减速，队列排空后恢复。
+     * storage.io.threads  线程数，默认CPU核数的两倍
+     * storage.io.pending  每个线程排队任务数超过该值时暂停读取，默认1024
+     * @return EventExecutorGroup
+     */
+    private EventExecutorGroup createDiskExecutorGroup(){
+        String threadsConfig = config.get("storage.io.threads");
+        int threads = StringUtils.isEmpty(threadsConfig) || !threadsConfig.matches("^[1-9][0-9]*$") ?
+                Runtime.getRuntime().availableProcessors() * 2 : Integer.parseInt(threadsConfig);
+        log.info("disk io executor group created, threads: {}, pause reading at {} pending tasks", threads, ioPendingLimit);
+        return new DefaultEventExecutorGroup(threads, new DefaultThreadFactory("storage-io"), Integer.MAX_VALUE,
+                RejectedExecutionHandlers.reject());
+    }
+
     /**
      * 检查存储目录，如果不存在将自动创建
      */
@@ -203,8 +262,6 @@ public class StorageNode {
             } catch (TimeoutException e) {
                 // 等待Overseer回应超时
                 log.error("heart-beat timeout", e);
-            } catch (ConnectException e) {
-                e.printStackTrace();
             }
         };
         // 提交心跳周期任务，延迟一个周期开始
@@ -212,19 +269,56 @@ public class StorageNode {
         log.info("heart-beat schedule done");
     }
 
+    /**
+     * 定期释放长时间没有收到数据的传输
+     * 连接关闭时传输已经被释放，这里处理发送方停止发送、连接仍然存活的情况。
+     * storage.transfer.idle.timeout  空闲时间，毫秒，默认5分钟，0表示不释放
+     */
+    private void startIdleTransferCheck(){
+        if(transferIdleTimeout == 0){
+            return;
+        }
+        long period = Math.max(1000, transferIdleTimeout / 2);
+        ScheduleUtil.scheduleAtFixedRate(() -> transferHandler.abortIdleTransfers(transferIdleTimeout), period, period, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * 获取节点信息，并序列化为byte
+     * 除了容量，还包括正在接收的文件数、磁盘IO排队任务数和上一个周期的接收速度，Overseer据此避开繁忙的节点
      * @return StorageInfo
      */
     private StorageInfo getStorageInfo(){
         File storageDir = new File(DEFAULT_STORAGE_PATH);
+        long freeSpace = storageDir.getFreeSpace();
+        // 接收速度
+        long now = System.currentTimeMillis();
+        long receivedBytes = transferHandler.receivedBytes();
+        long throughput = now > lastReportTime ? (receivedBytes - lastReceivedBytes) * 1000 / (now - lastReportTime) : 0;
+        lastReceivedBytes = receivedBytes;
+        lastReportTime = now;
         return StorageInfo.builder().host(host)
                 .port(port)
-                .usedStorage(storageDir.getTotalSpace())
-                .freeStorage(storageDir.getFreeSpace())
+                .usedStorage(storageDir.getTotalSpace() - freeSpace)
+                .freeStorage(freeSpace)
+                .activeTransfers(transferHandler.activeTransfers())
+                .ioQueueDepth(ioQueueDepth())
+                .throughput(throughput)
                 .build();
     }
 
+    /**
+     * 磁盘IO执行器组中排队的任务数
+     */
+    private int ioQueueDepth(){
+        int pending = 0;
+        for (EventExecutor executor : diskExecutorGroup) {
+            if(executor instanceof SingleThreadEventExecutor){
+                pending += ((SingleThreadEventExecutor) executor).pendingTasks();
+            }
+        }
+        return pending;
+    }
+
     private String getStorageNodeId() throws Exception{
         File file = new File(DEFAULT_NODE_ID_PATH);
         if(!file.exists() || file.isDirectory()){
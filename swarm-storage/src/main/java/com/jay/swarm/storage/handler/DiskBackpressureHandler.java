@@ -0,0 +1,68 @@
+package com.jay.swarm.storage.handler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>
+ *  磁盘IO背压
+ *  在EventLoop中执行，放在磁盘IO执行器组中的处理器之前。
+ *  报文交给磁盘IO执行器后，如果该channel所在执行器的排队任务数超过上限，关闭channel的autoRead，
+ *  EventLoop不再读取这个连接，数据留在内核缓冲区中，由TCP流量控制让发送方减速。
+ *  同时向该执行器提交一个恢复任务，排在它前面的任务全部执行完（队列排空）后重新打开autoRead。
+ *
+ *  EventLoop不会因为执行器队列满而阻塞，其他连接照常读写，报文也不会因为重试耗尽被丢弃。
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/17 17:40
+ */
+@Slf4j
+@ChannelHandler.Sharable
+public class DiskBackpressureHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * 执行磁盘IO的处理器，用于找到channel对应的执行器
+     */
+    private final ChannelHandler diskHandler;
+    /**
+     * 每个执行器排队任务数的上限
+     */
+    private final int maxPendingTasks;
+
+    public DiskBackpressureHandler(ChannelHandler diskHandler, int maxPendingTasks) {
+        this.diskHandler = diskHandler;
+        this.maxPendingTasks = maxPendingTasks;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ctx.fireChannelRead(msg);
+        Channel channel = ctx.channel();
+        if(!channel.config().isAutoRead()){
+            return;
+        }
+        ChannelHandlerContext diskContext = ctx.pipeline().context(diskHandler);
+        if(diskContext == null){
+            return;
+        }
+        EventExecutor executor = diskContext.executor();
+        if(executor instanceof SingleThreadEventExecutor && ((SingleThreadEventExecutor) executor).pendingTasks() >= maxPendingTasks){
+            channel.config().setAutoRead(false);
+            if(log.isDebugEnabled()){
+                log.debug("disk io queue full, pause reading from {}", channel.remoteAddress());
+            }
+            // 执行器队列不限长度，恢复任务不会被拒绝
+            executor.execute(() -> {
+                channel.config().setAutoRead(true);
+                if(log.isDebugEnabled()){
+                    log.debug("disk io queue drained, resume reading from {}", channel.remoteAddress());
+                }
+            });
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package com.jay.swarm.storage.handler;
 
 import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.DownloadRange;
 import com.jay.swarm.common.fs.FileInfo;
 import com.jay.swarm.common.fs.FileInfoCache;
+import com.jay.swarm.common.network.FileShardWriter;
 import com.jay.swarm.common.network.ShardedFileSender;
 import com.jay.swarm.common.network.callback.DefaultFileTransferCallback;
 import com.jay.swarm.common.network.entity.NetworkPacket;
 import com.jay.swarm.common.network.entity.PacketTypes;
 import com.jay.swarm.common.serialize.Serializer;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
 
@@ -20,6 +24,7 @@ import java.io.File;
  * @author Jay
  * @date 2021/12/14 10:43
  */
+@Slf4j
 public class FileDownloadHandler {
     /**
      * 文件信息缓存
@@ -64,4 +69,77 @@ public class FileDownloadHandler {
         }
 
     }
+
+    /**
+     * 处理分段下载请求
+     * 只发送请求的区间，客户端可以从多个副本同时下载不同区间
+     * @param ctx 上下文
+     * @param packet 请求报文
+     */
+    public void handleRangeRequest(ChannelHandlerContext ctx, NetworkPacket packet){
+        try{
+            DownloadRange range = serializer.deserialize(packet.getContent(), DownloadRange.class);
+            String fileId = range.getFileId();
+            File file = locateFile(fileId);
+            long offset = range.getOffset();
+            long length = range.getLength();
+            if(offset < 0 || length <= 0 || offset + length > file.length()){
+                throw new IllegalArgumentException("invalid download range");
+            }
+            // 发送区间数据
+            ShardedFileSender shardedFileSender = new ShardedFileSender(ctx.channel(), new DefaultFileTransferCallback());
+            shardedFileSender.send(file, fileId, offset, length);
+            // 区间发送完成
+            NetworkPacket response = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, new byte[0]);
+            response.setId(packet.getId());
+            ctx.channel().writeAndFlush(response);
+        }catch (Exception e){
+            log.error("range download error: ", e);
+            NetworkPacket errorPacket = NetworkPacket.buildPacketOfType(PacketTypes.ERROR, String.valueOf(e.getMessage()).getBytes(SwarmConstants.DEFAULT_CHARSET));
+            errorPacket.setId(packet.getId());
+            ctx.channel().writeAndFlush(errorPacket);
+        }
+    }
+
+    /**
+     * 处理区间读取请求
+     * 区间数据直接作为回复报文的数据部分，以FileRegion零拷贝发送。
+     * 只访问请求的区间，开销与区间大小成正比，与文件大小无关。
+     * 区间超出文件末尾时截断到文件末尾。
+     * @param ctx 上下文
+     * @param packet 请求报文
+     */
+    public void handleReadRequest(ChannelHandlerContext ctx, NetworkPacket packet){
+        try{
+            DownloadRange range = serializer.deserialize(packet.getContent(), DownloadRange.class);
+            File file = locateFile(range.getFileId());
+            long offset = range.getOffset();
+            if(offset < 0 || offset > file.length() || range.getLength() < 0){
+                throw new IllegalArgumentException("invalid read range");
+            }
+            long length = Math.min(range.getLength(), file.length() - offset);
+            if(length > NetworkPacket.MAX_PACKET_LENGTH - NetworkPacket.HEADER_LENGTH){
+                throw new IllegalArgumentException("read range too large");
+            }
+            FileShardWriter.write(ctx.channel(), packet.getId(), PacketTypes.SUCCESS, Unpooled.EMPTY_BUFFER, file, offset, length);
+        }catch (Exception e){
+            log.error("range read error: ", e);
+            NetworkPacket errorPacket = NetworkPacket.buildPacketOfType(PacketTypes.ERROR, String.valueOf(e.getMessage()).getBytes(SwarmConstants.DEFAULT_CHARSET));
+            errorPacket.setId(packet.getId());
+            ctx.channel().writeAndFlush(errorPacket);
+        }
+    }
+
+    /**
+     * 定位文件，不读取文件内容
+     * @param fileId 文件ID
+     * @return File
+     */
+    private File locateFile(String fileId){
+        File file = new File(fileInfoCache.getPath(fileId));
+        if(!file.exists() || file.isDirectory()){
+            throw new RuntimeException("file doesn't exist");
+        }
+        return file;
+    }
 }
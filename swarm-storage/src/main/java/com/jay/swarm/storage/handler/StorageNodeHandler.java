@@ -2,8 +2,8 @@ package com.jay.swarm.storage.handler;
 
 import com.jay.swarm.common.config.Config;
 import com.jay.swarm.common.constants.SwarmConstants;
-import com.jay.swarm.common.entity.FileMetaStorage;
 import com.jay.swarm.common.entity.FileUploadEnd;
+import com.jay.swarm.common.entity.TransferCheckpoint;
 import com.jay.swarm.common.fs.FileInfo;
 import com.jay.swarm.common.fs.FileInfoCache;
 import com.jay.swarm.common.fs.locator.FileLocator;
@@ -13,6 +13,7 @@ import com.jay.swarm.common.network.entity.PacketTypes;
 import com.jay.swarm.common.network.handler.FileTransferHandler;
 import com.jay.swarm.common.serialize.Serializer;
 import com.jay.swarm.storage.backup.BackupHelper;
+import com.jay.swarm.storage.meta.MetaUpdateBatcher;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -51,6 +52,11 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
 
     private final Config config;
 
+    /**
+     * 合并发往Overseer的元数据更新
+     */
+    private final MetaUpdateBatcher metaUpdateBatcher;
+
     public StorageNodeHandler(String storageNodeId, FileTransferHandler fileTransferHandler,
                               FileDownloadHandler downloadHandler, FileLocator locator,
                               Serializer serializer, BaseClient overseerClient,
@@ -64,6 +70,8 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
         this.fileInfoCache = fileInfoCache;
         this.backupHelper = new BackupHelper(serializer);
         this.config = config;
+        this.metaUpdateBatcher = new MetaUpdateBatcher(storageNodeId, overseerClient, serializer, config);
+        this.metaUpdateBatcher.start();
     }
 
     @Override
@@ -71,6 +79,8 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
         if(log.isDebugEnabled()){
             log.debug("connection closed by remote address {}", ctx.channel().remoteAddress());
         }
+        // 释放发送方已经断开的传输，关闭文件，断点保留
+        fileTransferHandler.channelClosed(ctx.channel());
     }
 
     @Override
@@ -83,6 +93,14 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
     @Override
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, NetworkPacket packet) {
         short type = packet.getType();
+        // 在磁盘IO队列中等待超过发送方期限的请求，发送方已经放弃等待，不再处理
+        if(packet.isExpired()){
+            if(log.isDebugEnabled()){
+                log.debug("drop expired request, type: {}, id: {}", type, packet.getId());
+            }
+            packet.release();
+            return;
+        }
         try{
             switch (type){
                 // 处理文件传输请求
@@ -90,11 +108,19 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
                     handleTransferHead(channelHandlerContext, packet);break;
                 // 处理文件数据部分
                 case PacketTypes.TRANSFER_FILE_BODY: handleTransferBody(channelHandlerContext, packet);packet.release();break;
+                // 处理断点查询
+                case PacketTypes.RESUME_QUERY: handleResumeQuery(channelHandlerContext, packet);break;
                 // 处理文件传输结束
                 case PacketTypes.TRANSFER_FILE_END: handleTransferEnd(channelHandlerContext, packet);break;
                 // 处理下载请求
                 case PacketTypes.DOWNLOAD_REQUEST:
                     downloadHandler.handleDownloadRequest(channelHandlerContext, packet);packet.release();break;
+                // 处理分段下载请求
+                case PacketTypes.DOWNLOAD_RANGE_REQUEST:
+                    downloadHandler.handleRangeRequest(channelHandlerContext, packet);break;
+                // 处理区间读取请求
+                case PacketTypes.READ_RANGE_REQUEST:
+                    downloadHandler.handleReadRequest(channelHandlerContext, packet);break;
                 default:channelHandlerContext.fireChannelRead(packet);break;
             }
         }catch (Exception e){
@@ -122,6 +148,7 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
         String path = locator.locate(fileInfo.getFileId());
         // 具体处理过程
         fileTransferHandler.handleTransferHead(fileInfo, path);
+        fileTransferHandler.bindChannel(context.channel(), fileInfo.getFileId());
         // 封装response
         NetworkPacket response = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, new byte[0]);
         response.setId(packet.getId());
@@ -139,11 +166,32 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
         ByteBuf data = packet.getData();
         byte[] idBytes = new byte[36];
         data.readBytes(idBytes);
+        // 分片在文件中的位置
+        long position = data.readLong();
+        int crc = data.readInt();
+        String fileId = new String(idBytes, SwarmConstants.DEFAULT_CHARSET);
+        // 条带发送时分片来自HEAD以外的连接
+        fileTransferHandler.bindChannel(context.channel(), fileId);
         // 处理分片
-        fileTransferHandler.handleTransferBody(new String(idBytes, SwarmConstants.DEFAULT_CHARSET), data);
+        boolean verified = fileTransferHandler.handleTransferBody(fileId, position, crc, data);
 
-        // 回复报文
-        NetworkPacket response = NetworkPacket.builder().id(packet.getId()).type(PacketTypes.TRANSFER_RESPONSE).build();
+        // 回复报文，校验失败时要求发送方重传该分片
+        short type = verified ? PacketTypes.TRANSFER_RESPONSE : PacketTypes.TRANSFER_RETRY;
+        NetworkPacket response = NetworkPacket.builder().id(packet.getId()).type(type).build();
+        context.channel().writeAndFlush(response);
+    }
+
+    /**
+     * 处理断点查询，回复已经写入的分片
+     * @param context 上下文
+     * @param packet NetworkPacket
+     * @throws Exception Exception
+     */
+    private void handleResumeQuery(ChannelHandlerContext context, NetworkPacket packet) throws Exception {
+        String fileId = new String(packet.getContent(), SwarmConstants.DEFAULT_CHARSET);
+        TransferCheckpoint checkpoint = fileTransferHandler.handleResumeQuery(fileId);
+        NetworkPacket response = NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, serializer.serialize(checkpoint, TransferCheckpoint.class));
+        response.setId(packet.getId());
         context.channel().writeAndFlush(response);
     }
 
@@ -161,22 +209,13 @@ public class StorageNodeHandler extends SimpleChannelInboundHandler<NetworkPacke
         // 处理END
         fileTransferHandler.handleTransferEnd(fileId);
 
-        String overseerHost = config.get("overseer.host");
-        int port = Integer.parseInt(config.get("overseer.port"));
-
-        // 向Overseer通知存储文件结果，文件ID，节点ID
-        FileMetaStorage fileMetaStorage = FileMetaStorage.builder()
-                .storageId(storageNodeId).fileId(fileId).build();
-        NetworkPacket noticeOverseer = NetworkPacket
-                .buildPacketOfType(PacketTypes.UPDATE_FILE_META_STORAGE,
-                        serializer.serialize(fileMetaStorage, FileMetaStorage.class));
-
-        // 等待Overseer的回复
-        NetworkPacket overseerResp = (NetworkPacket) overseerClient.sendAsync(overseerHost, port, noticeOverseer).get();
-        NetworkPacket response = NetworkPacket.buildPacketOfType(overseerResp.getType(), overseerResp.getContent());
-        response.setId(packet.getId());
-        // 在备份前向用户发送回复，实现高可用性
-        context.channel().writeAndFlush(response);
+        // 向Overseer通知存储文件结果，通知由batcher合并发送，不在EventLoop中等待回复
+        int packetId = packet.getId();
+        metaUpdateBatcher.notice(fileId).thenAccept(response -> {
+            response.setId(packetId);
+            // 在备份前向用户发送回复，实现高可用性
+            context.channel().writeAndFlush(response);
+        });
 
         /*
             查看剩余节点，进行备份接力
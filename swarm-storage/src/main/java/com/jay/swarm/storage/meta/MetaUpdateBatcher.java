@@ -0,0 +1,196 @@
+package com.jay.swarm.storage.meta;
+
+import com.jay.swarm.common.config.Config;
+import com.jay.swarm.common.constants.SwarmConstants;
+import com.jay.swarm.common.entity.BatchFileMetaStorage;
+import com.jay.swarm.common.entity.BatchFileMetaStorageResponse;
+import com.jay.swarm.common.entity.FileMetaStorage;
+import com.jay.swarm.common.entity.FileMetaStorageResult;
+import com.jay.swarm.common.network.BaseClient;
+import com.jay.swarm.common.network.entity.NetworkPacket;
+import com.jay.swarm.common.network.entity.PacketTypes;
+import com.jay.swarm.common.serialize.Serializer;
+import com.jay.swarm.common.util.StringUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *  合并存储节点发往Overseer的元数据更新
+ *  文件保存完成后不再每个文件发送一个UPDATE_FILE_META_STORAGE并在EventLoop中等待回复，
+ *  而是放入队列，发送线程在延迟预算内收集更多的通知，合并成一个BATCH_UPDATE_FILE_META_STORAGE发送。
+ *  Overseer的回复到达后，按回复中每个文件各自的结果完成对应通知的future，由调用者异步回复客户端。
+ *
+ *  配置项：
+ *  storage.notice.delay  合并的延迟预算，毫秒，默认5
+ *  storage.notice.batch  一批的最大条数，默认256
+ * </p>
+ *
+ * @author Jay
+ * @date 2022/01/11 14:20
+ */
+@Slf4j
+public class MetaUpdateBatcher {
+    private static final long DEFAULT_DELAY = 5;
+    private static final int DEFAULT_BATCH = 256;
+
+    private final String storageNodeId;
+    private final BaseClient overseerClient;
+    private final Serializer serializer;
+    private final Config config;
+    /**
+     * 延迟预算，纳秒
+     */
+    private final long delay;
+    private final int maxBatch;
+
+    private final LinkedBlockingQueue<Notice> queue = new LinkedBlockingQueue<>();
+    private final Thread sender;
+    private volatile boolean running;
+
+    public MetaUpdateBatcher(String storageNodeId, BaseClient overseerClient, Serializer serializer, Config config) {
+        this.storageNodeId = storageNodeId;
+        this.overseerClient = overseerClient;
+        this.serializer = serializer;
+        this.config = config;
+        String delayConfig = config.get("storage.notice.delay");
+        long delayMillis = StringUtils.isEmpty(delayConfig) || !delayConfig.matches("^[0-9]+$") ? DEFAULT_DELAY : Long.parseLong(delayConfig);
+        this.delay = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        String batchConfig = config.get("storage.notice.batch");
+        int batch = StringUtils.isEmpty(batchConfig) || !batchConfig.matches("^[1-9][0-9]*$") ? DEFAULT_BATCH : Integer.parseInt(batchConfig);
+        this.maxBatch = Math.min(batch, SwarmConstants.MAX_BATCH_SIZE);
+        this.sender = new Thread(this::sendLoop, "meta-update-sender");
+        this.sender.setDaemon(true);
+    }
+
+    public void start(){
+        running = true;
+        sender.start();
+    }
+
+    /**
+     * 通知Overseer本节点保存了文件
+     * @param fileId 文件ID
+     * @return Overseer回复后完成，SUCCESS或ERROR报文，id需要调用者设置
+     */
+    public CompletableFuture<NetworkPacket> notice(String fileId){
+        Notice notice = new Notice(fileId);
+        queue.offer(notice);
+        return notice.future;
+    }
+
+    private void sendLoop(){
+        List<Notice> batch = new ArrayList<>();
+        try{
+            while(running){
+                Notice first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + delay;
+                while(batch.size() < maxBatch){
+                    long wait = deadline - System.nanoTime();
+                    Notice next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+                send(new ArrayList<>(batch));
+                batch.clear();
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 发送一批通知，不等待回复
+     * @param batch 通知
+     */
+    private void send(List<Notice> batch){
+        List<FileMetaStorage> storages = new ArrayList<>(batch.size());
+        for (Notice notice : batch) {
+            storages.add(FileMetaStorage.builder().storageId(storageNodeId).fileId(notice.fileId).build());
+        }
+        BatchFileMetaStorage request = BatchFileMetaStorage.builder().storages(storages).build();
+        NetworkPacket packet = NetworkPacket.buildPacketOfType(PacketTypes.BATCH_UPDATE_FILE_META_STORAGE,
+                serializer.serialize(request, BatchFileMetaStorage.class));
+        try{
+            String host = config.get("overseer.host");
+            int port = Integer.parseInt(config.get("overseer.port"));
+            overseerClient.sendAsync(host, port, packet).whenComplete((result, error) -> {
+                if(error != null){
+                    fail(batch, "update meta error: " + error.getMessage());
+                    return;
+                }
+                complete(batch, (NetworkPacket) result);
+            });
+        }catch (Exception e){
+            log.error("unable to send meta update to overseer", e);
+            fail(batch, "update meta error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 按回复中各条目的结果完成通知，与单条更新一样，失败的条目回复ERROR + 错误信息
+     * @param batch 通知
+     * @param response Overseer的回复
+     */
+    private void complete(List<Notice> batch, NetworkPacket response){
+        if(response.getType() != PacketTypes.SUCCESS){
+            // 整批被拒绝，如报文无法解析
+            for (Notice notice : batch) {
+                notice.future.complete(NetworkPacket.buildPacketOfType(response.getType(), response.getContent()));
+            }
+            return;
+        }
+        List<FileMetaStorageResult> results;
+        try{
+            results = serializer.deserialize(response.getContent(), BatchFileMetaStorageResponse.class).getResults();
+        }catch (Exception e){
+            log.error("unable to decode meta update response", e);
+            fail(batch, "update meta error: invalid response from overseer");
+            return;
+        }
+        if(results == null || results.size() != batch.size()){
+            log.error("meta update response mismatch, expected {} results, got {}", batch.size(), results == null ? 0 : results.size());
+            fail(batch, "update meta error: invalid response from overseer");
+            return;
+        }
+        for(int i = 0; i < batch.size(); i++){
+            String error = results.get(i).getError();
+            if(StringUtils.isEmpty(error)){
+                batch.get(i).future.complete(NetworkPacket.buildPacketOfType(PacketTypes.SUCCESS, new byte[0]));
+            }else{
+                batch.get(i).future.complete(NetworkPacket.buildPacketOfType(PacketTypes.ERROR, error.getBytes(SwarmConstants.DEFAULT_CHARSET)));
+            }
+        }
+    }
+
+    private void fail(List<Notice> batch, String message){
+        byte[] content = message.getBytes(SwarmConstants.DEFAULT_CHARSET);
+        for (Notice notice : batch) {
+            notice.future.complete(NetworkPacket.buildPacketOfType(PacketTypes.ERROR, content));
+        }
+    }
+
+    public void shutdown(){
+        running = false;
+    }
+
+    private static final class Notice {
+        private final String fileId;
+        private final CompletableFuture<NetworkPacket> future = new CompletableFuture<>();
+
+        Notice(String fileId) {
+            this.fileId = fileId;
+        }
+    }
+}